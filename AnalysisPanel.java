@@ -0,0 +1,163 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Side panel that shows what the engine thinks of the current position
+// The engine runs on its own thread and never stops until the panel is turned off.
+// Every line it finds just goes into an array (no Swing calls at all), and a Swing timer
+// copies the newest lines into the labels at most 10 times a second - so a fast search
+// can't flood the EDT and the EDT can't slow the search down.
+public class AnalysisPanel extends JPanel {
+    public static final int LINES = 3;            // how many best lines to show
+    private static final int REFRESH_MILLIS = 100; // 10 updates a second at most
+    
+    private final JLabel depthLabel;
+    private final JLabel[] scoreLabels = new JLabel[LINES];
+    private final JLabel[] moveLabels = new JLabel[LINES];
+    private final Timer refreshTimer;
+    private volatile Analyzer analyzer; // null while it's turned off
+    
+    // Written by the engine thread, read by the refresh timer
+    private final AtomicReferenceArray<ChessEngine.Line> latest = new AtomicReferenceArray<>(LINES);
+    private volatile boolean whiteToMove = true; // scores are shown from white's side
+    private volatile long version;
+    private long shownVersion = -1;
+    
+    public AnalysisPanel() {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setBackground(new Color(40, 40, 40));
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        setPreferredSize(new Dimension(280, 0));
+        
+        JLabel title = new JLabel("Analysis");
+        title.setFont(new Font("Arial", Font.BOLD, 18));
+        title.setForeground(Color.WHITE);
+        add(title);
+        
+        depthLabel = new JLabel(" ");
+        depthLabel.setFont(new Font("Arial", Font.PLAIN, 12));
+        depthLabel.setForeground(new Color(180, 180, 180));
+        add(depthLabel);
+        add(Box.createVerticalStrut(10));
+        
+        // The labels are made once here and only ever get new text
+        for (int i = 0; i < LINES; i++) {
+            scoreLabels[i] = new JLabel(" ");
+            scoreLabels[i].setFont(new Font("Monospaced", Font.BOLD, 16));
+            scoreLabels[i].setForeground(Color.YELLOW);
+            moveLabels[i] = new JLabel(" ");
+            moveLabels[i].setFont(new Font("Monospaced", Font.PLAIN, 12));
+            moveLabels[i].setForeground(Color.WHITE);
+            add(scoreLabels[i]);
+            add(moveLabels[i]);
+            add(Box.createVerticalStrut(8));
+        }
+        
+        refreshTimer = new Timer(REFRESH_MILLIS, e -> refresh());
+    }
+    
+    // Turns the engine on or off
+    public void setRunning(boolean running) {
+        if (running && analyzer == null) {
+            analyzer = new Analyzer();
+            analyzer.start();
+            refreshTimer.start();
+        } else if (!running && analyzer != null) {
+            analyzer.close();
+            analyzer = null;
+            refreshTimer.stop();
+        }
+    }
+    
+    public boolean isRunning() {
+        return analyzer != null;
+    }
+    
+    // Any thread can call this (the game loop does after every move) - the old search is stopped
+    public void setPosition(String fen) {
+        Analyzer current = analyzer;
+        if (current != null) {
+            current.setPosition(fen);
+        }
+    }
+    
+    private void refresh() {
+        long now = version;
+        if (now == shownVersion) {
+            return; // nothing new, don't touch the labels
+        }
+        shownVersion = now;
+        
+        ChessEngine.Line best = latest.get(0);
+        depthLabel.setText(best == null ? "Thinking..." : "Depth " + best.depth + "   "
+                           + best.nodes / 1000 + "k nodes   " + best.millis / 1000.0 + "s");
+        for (int i = 0; i < LINES; i++) {
+            ChessEngine.Line line = latest.get(i);
+            if (line == null) {
+                scoreLabels[i].setText(" ");
+                moveLabels[i].setText(" ");
+            } else {
+                int score = whiteToMove ? line.score : -line.score;
+                scoreLabels[i].setText(ChessEngine.scoreToText(score));
+                moveLabels[i].setText(line.movesAsText());
+            }
+        }
+    }
+    
+    // The engine thread - searches the newest position until it's told about a different one
+    private class Analyzer extends Thread {
+        private final ChessEngine engine = new ChessEngine();
+        private final ChessBoard board = new ChessBoard();
+        private final AtomicReference<String> pending = new AtomicReference<>();
+        private volatile boolean running = true;
+        
+        Analyzer() {
+            super("chess-analysis");
+            setDaemon(true);
+            setPriority(Thread.MIN_PRIORITY); // the game comes first
+        }
+        
+        void setPosition(String fen) {
+            pending.set(fen);
+            engine.stop();
+            LockSupport.unpark(this);
+        }
+        
+        void close() {
+            running = false;
+            engine.stop();
+            LockSupport.unpark(this);
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                // Clear the stop flag before looking, so a position that arrives from now on stops the search
+                engine.clearStop();
+                String fen = pending.getAndSet(null);
+                if (fen == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    board.loadFEN(fen);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Can't analyse position: " + e.getMessage());
+                    continue;
+                }
+                
+                for (int i = 0; i < LINES; i++) {
+                    latest.set(i, null);
+                }
+                whiteToMove = board.isWhiteTurn();
+                version++;
+                engine.search(board, ChessEngine.MAX_DEPTH, LINES, 0, line -> {
+                    latest.set(line.rank - 1, line);
+                    version++;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.Collections;
+import java.util.Map;
+
+// One game out of a GameArchive
+// Like PgnGame, the tags are ready straight away but the moves stay as the bytes from the file
+// (one index into the move list per move) until someone asks for them
+public class ArchivedGame {
+    private final long id;
+    private final Map<String, String> headers;
+    private final String startFen;
+    private final byte[] moves;
+    
+    public ArchivedGame(long id, Map<String, String> headers, String startFen, byte[] moves) {
+        this.id = id;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.startFen = startFen;
+        this.moves = moves;
+    }
+    
+    // Game number in the archive (the first one is 0)
+    public long getId() {
+        return id;
+    }
+    
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+    
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+    
+    public String getResult() {
+        return headers.getOrDefault("Result", "*");
+    }
+    
+    public String getStartFEN() {
+        return startFen;
+    }
+    
+    public int getMoveCount() {
+        return moves.length;
+    }
+    
+    // The moves packed the same way as ChessBoard moves
+    // Throws IllegalArgumentException if the archive is broken
+    public int[] decodeMoves() {
+        ChessBoard board = new ChessBoard();
+        replay(board);
+        return board.getMoves();
+    }
+    
+    // Sets up the starting position on the board and plays every move onto it
+    public void replay(ChessBoard board) {
+        board.loadFEN(startFen);
+        int[] list = new int[256];
+        for (int i = 0; i < moves.length; i++) {
+            int count = board.generateMoves(list);
+            int index = moves[i] & 0xFF;
+            if (index >= count) {
+                throw new IllegalArgumentException("Game " + id + " is broken at move " + (i + 1));
+            }
+            board.playMove(list[index]);
+        }
+    }
+}
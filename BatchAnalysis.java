@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Analyses every position of every game in some PGN files and writes them back out with
+// the engine's score after each move and ?/?? on the mistakes and blunders
+//
+// Usage: java BatchAnalysis [options] <file.pgn>...
+//   --depth <n>        search every position this deep (default 8)
+//   --nodes <n>        or give every position this many nodes instead
+//   --threads <n>      engine threads (default: number of cores)
+//   --out <file>       where the annotated PGN goes (default: the screen)
+//   --mistake <cp>     a move that loses this many centipawns gets a ? (default 100)
+//   --blunder <cp>     and this many gets a ?? (default 250)
+//   --hash <mb>        transposition table per thread (default 16)
+//
+// Three stages: this thread reads games and hands them out, a work-stealing pool analyses
+// them (a long game is split into pieces so idle threads can steal part of it), and one
+// writer puts them back in the original order. Only a few games per thread are ever in
+// flight - the reader waits for the writer when it gets too far ahead, so memory stays the
+// same however big the files are.
+public class BatchAnalysis {
+    private static final int GAMES_IN_FLIGHT_PER_THREAD = 4;
+    private static final int POSITIONS_PER_TASK = 8; // smaller pieces than this aren't worth splitting
+    private static final int REPORT_MILLIS = 5000;
+    private static final int MATE_CLAMP = 2000; // a missed mate counts as losing this much
+    
+    private int depth = 8;
+    private long nodes = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path out;
+    private int mistake = 100;
+    private int blunder = 250;
+    private int hashMegabytes = 16;
+    private final List<Path> inputs = new ArrayList<>();
+    
+    private ForkJoinPool pool;
+    private ThreadLocal<ChessEngine> engines;
+    private Semaphore inFlight;
+    private volatile boolean writerFailed; // the reader stops handing out games if this is set
+    private final LongAdder positionsDone = new LongAdder();
+    
+    // Finished games wait here until it's their turn to be written
+    private final Map<Long, Analysed> finished = new HashMap<>();
+    private long nextToWrite;
+    private long gameCount = Long.MAX_VALUE; // set once the reader has handed out every game
+    
+    // One game on its way through - the reader makes it, the pool fills in the scores
+    private static class Analysed {
+        final long number;
+        final PgnGame game;
+        String[] fens;    // position before each move, and after the last one
+        int[] moves;
+        int[] scores;     // for the side to move in each position
+        int[] bestMoves;
+        String error;     // set if the game couldn't be read
+        
+        Analysed(long number, PgnGame game) {
+            this.number = number;
+            this.game = game;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        BatchAnalysis analysis = new BatchAnalysis();
+        analysis.parseArgs(args);
+        if (analysis.inputs.isEmpty()) {
+            System.err.println("Usage: java BatchAnalysis [--depth n | --nodes n] [--threads n] [--out file.pgn] files.pgn...");
+            System.exit(1);
+        }
+        analysis.run();
+    }
+    
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--depth": depth = Integer.parseInt(args[++i]); break;
+                case "--nodes": nodes = Long.parseLong(args[++i]); depth = ChessEngine.MAX_DEPTH; break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--out": out = Paths.get(args[++i]); break;
+                case "--mistake": mistake = Integer.parseInt(args[++i]); break;
+                case "--blunder": blunder = Integer.parseInt(args[++i]); break;
+                case "--hash": hashMegabytes = Integer.parseInt(args[++i]); break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    inputs.add(Paths.get(args[i]));
+            }
+        }
+    }
+    
+    private void run() throws Exception {
+        pool = new ForkJoinPool(threads);
+        engines = ThreadLocal.withInitial(() -> {
+            ChessEngine engine = new ChessEngine(new Evaluation(), new TranspositionTable(hashMegabytes));
+            engine.setNodeLimit(nodes);
+            return engine;
+        });
+        inFlight = new Semaphore(threads * GAMES_IN_FLIGHT_PER_THREAD);
+        System.err.println("Analysing with " + threads + " threads at "
+                           + (nodes > 0 ? nodes + " nodes" : "depth " + depth) + " per position");
+        
+        long start = System.nanoTime();
+        long nextReport = System.currentTimeMillis() + REPORT_MILLIS;
+        long games = 0;
+        try (PgnWriter writer = out != null ? new PgnWriter(out) : new PgnWriter(Channels.newChannel(System.out))) {
+            Writer writerThread = new Writer(writer);
+            writerThread.start();
+            
+            reading:
+            for (Path input : inputs) {
+                try (PgnReader reader = new PgnReader(input)) {
+                    for (PgnGame game = reader.next(); game != null; game = reader.next()) {
+                        if (!waitForWriter()) {
+                            break reading;
+                        }
+                        Analysed analysed = new Analysed(games++, game);
+                        pool.execute(() -> analyse(analysed));
+                        
+                        if (System.currentTimeMillis() >= nextReport) {
+                            report(start, games);
+                            nextReport += REPORT_MILLIS;
+                        }
+                    }
+                }
+            }
+            
+            allGamesRead(games);
+            writerThread.join();
+            if (writerThread.error != null) {
+                pool.shutdownNow(); // nobody's going to write out what's left
+                throw writerThread.error;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        report(start, games);
+    }
+    
+    // Waits here if the writer is too far behind - false if the writer has given up
+    private boolean waitForWriter() throws InterruptedException {
+        while (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+            if (writerFailed) {
+                return false;
+            }
+        }
+        return !writerFailed;
+    }
+    
+    private void report(long start, long games) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long positions = positionsDone.sum();
+        System.err.printf("%d games read, %d written, %d positions, %.0f positions/s%n",
+                          games, writtenSoFar(), positions, positions / Math.max(seconds, 0.001));
+    }
+    
+    private synchronized long writtenSoFar() {
+        return nextToWrite;
+    }
+    
+    // Runs in the pool - reads the moves, then analyses all the positions
+    private void analyse(Analysed analysed) {
+        try {
+            ChessBoard board = new ChessBoard();
+            analysed.game.replay(board);
+            analysed.moves = board.getMoves();
+            int count = analysed.moves.length + 1;
+            analysed.fens = new String[count];
+            analysed.scores = new int[count];
+            analysed.bestMoves = new int[count];
+            
+            board.loadFEN(analysed.game.getStartFEN());
+            for (int ply = 0; ply < count; ply++) {
+                analysed.fens[ply] = board.toFEN();
+                if (ply < analysed.moves.length) {
+                    board.playMove(analysed.moves[ply]);
+                }
+            }
+            new Positions(analysed, 0, count).invoke();
+        } catch (IllegalArgumentException e) {
+            analysed.error = e.getMessage();
+        } catch (RuntimeException e) {
+            analysed.error = e.toString();
+        }
+        gameFinished(analysed);
+    }
+    
+    // A range of positions from one game - splits itself in half until it's small enough
+    private class Positions extends RecursiveAction {
+        private final Analysed analysed;
+        private final int from;
+        private final int to;
+        
+        Positions(Analysed analysed, int from, int to) {
+            this.analysed = analysed;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > POSITIONS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Positions(analysed, from, middle), new Positions(analysed, middle, to));
+                return;
+            }
+            ChessEngine engine = engines.get();
+            ChessBoard board = new ChessBoard();
+            for (int ply = from; ply < to; ply++) {
+                board.loadFEN(analysed.fens[ply]);
+                engine.clearStop();
+                List<ChessEngine.Line> lines = engine.search(board, depth, 1, 0, null);
+                if (lines.isEmpty()) {
+                    // No moves at all (or a king is gone) - all we can do is count the material
+                    analysed.scores[ply] = engine.getEvaluation().evaluateForSideToMove(board);
+                    analysed.bestMoves[ply] = -1;
+                } else {
+                    analysed.scores[ply] = lines.get(0).score;
+                    analysed.bestMoves[ply] = lines.get(0).bestMove();
+                }
+                positionsDone.increment();
+            }
+        }
+    }
+    
+    private synchronized void gameFinished(Analysed analysed) {
+        finished.put(analysed.number, analysed);
+        notifyAll();
+    }
+    
+    // Every game has been handed out - the writer stops after this many
+    private synchronized void allGamesRead(long games) {
+        gameCount = games;
+        notifyAll();
+    }
+    
+    // Waits for the next game in order (null once every game is written)
+    private synchronized Analysed nextInOrder() throws InterruptedException {
+        while (!finished.containsKey(nextToWrite)) {
+            if (nextToWrite >= gameCount) {
+                return null;
+            }
+            wait();
+        }
+        return finished.remove(nextToWrite++);
+    }
+    
+    // The comment (and ?/??) after each move
+    private String[] annotate(Analysed analysed) {
+        ChessBoard board = new ChessBoard();
+        board.loadFEN(analysed.game.getStartFEN());
+        String[] annotations = new String[analysed.moves.length];
+        for (int ply = 0; ply < analysed.moves.length; ply++) {
+            boolean whiteMoved = board.isWhiteTurn();
+            int before = clamp(analysed.scores[ply]);
+            int after = -clamp(analysed.scores[ply + 1]); // still from the mover's side
+            int lost = before - after;
+            
+            int forWhite = whiteMoved ? -analysed.scores[ply + 1] : analysed.scores[ply + 1];
+            StringBuilder text = new StringBuilder();
+            if (lost >= blunder) {
+                text.append("$4 ");
+            } else if (lost >= mistake) {
+                text.append("$2 ");
+            }
+            text.append('{').append(ChessEngine.scoreToText(forWhite));
+            int best = analysed.bestMoves[ply];
+            if (lost >= mistake && best >= 0 && best != analysed.moves[ply]) {
+                text.append(" best was ").append(board.toSan(best));
+            }
+            text.append('}');
+            annotations[ply] = text.toString();
+            board.playMove(analysed.moves[ply]);
+        }
+        return annotations;
+    }
+    
+    private static int clamp(int score) {
+        return Math.max(-MATE_CLAMP, Math.min(MATE_CLAMP, score));
+    }
+    
+    // Writes the games out in the order they came in, and lets the reader carry on
+    private class Writer extends Thread {
+        private final PgnWriter writer;
+        Exception error;
+        
+        Writer(PgnWriter writer) {
+            super("batch-analysis-writer");
+            this.writer = writer;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                Analysed analysed;
+                while ((analysed = nextInOrder()) != null) {
+                    if (analysed.error != null) {
+                        System.err.println("Skipping game " + (analysed.number + 1) + ": " + analysed.error);
+                    } else {
+                        Map<String, String> headers = new LinkedHashMap<>(analysed.game.getHeaders());
+                        headers.put("Annotator", "ChessEngine " + (nodes > 0 ? nodes + " nodes" : "depth " + depth));
+                        writer.write(headers, analysed.game.getStartFEN(), analysed.moves, annotate(analysed));
+                    }
+                    inFlight.release();
+                }
+                writer.flush();
+            } catch (IOException | RuntimeException e) {
+                // A full disk, the output being closed (piped into head), or a bug in annotate()
+                System.err.println("Couldn't write the analysis: " + e);
+                error = e;
+                writerFailed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
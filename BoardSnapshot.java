@@ -0,0 +1,53 @@
+// A frozen copy of the game at one moment - it never changes after it's made,
+// so any thread (like the EDT while painting) can read it without locking.
+// The GameLoop makes a new one after every change.
+public final class BoardSnapshot {
+    private final char[] pieces;   // index row * 8 + col
+    private final long[] targets;  // where the piece on each square can move (bit row * 8 + col)
+    private final boolean whiteTurn;
+    private final int ply;
+    private final long hash;
+    private final String result;   // null while the game is still going
+    
+    BoardSnapshot(ChessBoard board, String result) {
+        pieces = new char[64];
+        for (int square = 0; square < 64; square++) {
+            pieces[square] = board.getPiece(square / 8, square % 8);
+        }
+        targets = new long[64];
+        board.copyLegalTargets(targets);
+        whiteTurn = board.isWhiteTurn();
+        ply = board.getPly();
+        hash = board.getHash();
+        this.result = result;
+    }
+    
+    public char getPiece(int row, int col) {
+        return pieces[row * 8 + col];
+    }
+    
+    // Every square the piece on (row, col) can legally move to right now
+    public long getTargets(int row, int col) {
+        return targets[row * 8 + col];
+    }
+    
+    public boolean isWhiteTurn() {
+        return whiteTurn;
+    }
+    
+    public int getPly() {
+        return ply;
+    }
+    
+    public long getHash() {
+        return hash;
+    }
+    
+    public boolean isGameOver() {
+        return result != null;
+    }
+    
+    public String getResult() {
+        return result;
+    }
+}
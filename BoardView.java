@@ -0,0 +1,287 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The chess board itself - one component that paints all 64 squares
+// Pieces are drawn into little images (sprites) once per square size and then just copied,
+// so a repaint doesn't have to lay out any text. The sprites are only made again when the window is resized.
+//
+// The whole board is kept in an image too. When the game loop says some squares changed
+// (or the highlights change) only those squares are redrawn into it and repainted,
+// so a normal move is 2 squares of work instead of 64.
+// Pieces come from the loop's latest BoardSnapshot, never from the ChessBoard itself.
+public class BoardView extends JComponent implements GameLoop.Listener {
+    private final GameLoop game;
+    private final SquareClickListener listener;
+    
+    // Highlighting - the selected piece and where it can go
+    private int selectedRow = -1;
+    private int selectedCol = -1;
+    private long moveTargets;    // bit (row * 8 + col) set = highlight that square
+    private long captureTargets;
+    private long premoveSquares; // from and to squares of queued premoves
+    
+    // Sprite cache, one image per piece in PIECES for the current square size
+    static final String PIECES = "KQRBNPkqrbnp";
+    private BufferedImage[] sprites;
+    private int spriteSize = -1;
+    
+    // The drawn board, and which squares in it are out of date (bit row * 8 + col)
+    // The game loop tells us about changes from its own thread, hence the AtomicLong
+    private BufferedImage boardImage;
+    private final AtomicLong dirtySquares = new AtomicLong(-1L);
+    
+    // Colors for the board - tried to make it look nice! (the simul window uses them too)
+    static final Color LIGHT_SQUARE = new Color(240, 217, 181);
+    static final Color DARK_SQUARE = new Color(181, 136, 99);
+    static final Color SELECTED_COLOR = new Color(246, 246, 130);
+    private static final Color POSSIBLE_MOVE_COLOR = new Color(186, 202, 68);
+    private static final Color CAPTURE_MOVE_COLOR = new Color(255, 100, 100); // red-ish for captures
+    private static final Color PREMOVE_COLOR = new Color(100, 140, 220); // blue for premoves
+    static final Color LIGHT_MOVE = blendColors(LIGHT_SQUARE, POSSIBLE_MOVE_COLOR);
+    static final Color DARK_MOVE = blendColors(DARK_SQUARE, POSSIBLE_MOVE_COLOR);
+    private static final Color LIGHT_CAPTURE = blendColors(LIGHT_SQUARE, CAPTURE_MOVE_COLOR);
+    private static final Color DARK_CAPTURE = blendColors(DARK_SQUARE, CAPTURE_MOVE_COLOR);
+    private static final Color LIGHT_PREMOVE = blendColors(LIGHT_SQUARE, PREMOVE_COLOR);
+    private static final Color DARK_PREMOVE = blendColors(DARK_SQUARE, PREMOVE_COLOR);
+    
+    public interface SquareClickListener {
+        void squareClicked(int row, int col);
+    }
+    
+    public BoardView(GameLoop game, SquareClickListener listener) {
+        this.game = game;
+        this.listener = listener;
+        setOpaque(true);
+        setPreferredSize(new Dimension(640, 640));
+        game.addListener(this);
+        
+        // Work out which square was clicked from the mouse position
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int size = squareSize();
+                if (size <= 0 || !SwingUtilities.isLeftMouseButton(e)) {
+                    return;
+                }
+                int col = (e.getX() - boardX()) / size;
+                int row = (e.getY() - boardY()) / size;
+                if (e.getX() >= boardX() && e.getY() >= boardY() && row < 8 && col < 8) {
+                    listener.squareClicked(row, col);
+                }
+            }
+        });
+    }
+    
+    public void setHighlights(int row, int col, long moveTargets, long captureTargets) {
+        // Only the squares whose highlight actually changes need redrawing
+        long changed = (this.moveTargets ^ moveTargets) | (this.captureTargets ^ captureTargets);
+        if (row != selectedRow || col != selectedCol) {
+            changed |= squareBit(selectedRow, selectedCol) | squareBit(row, col);
+        }
+        
+        this.selectedRow = row;
+        this.selectedCol = col;
+        this.moveTargets = moveTargets;
+        this.captureTargets = captureTargets;
+        squaresChanged(changed);
+    }
+    
+    public void setPremoves(long squares) {
+        long changed = premoveSquares ^ squares;
+        premoveSquares = squares;
+        squaresChanged(changed);
+    }
+    
+    private static long squareBit(int row, int col) {
+        return row < 0 ? 0 : 1L << (row * 8 + col);
+    }
+    
+    // Called on the game loop thread after a move - the new snapshot is already published by then
+    @Override
+    public void gameChanged(BoardSnapshot snapshot, long changedSquares) {
+        squaresChanged(changedSquares);
+    }
+    
+    // repaint() is fine from any thread
+    private void squaresChanged(long squares) {
+        dirtySquares.getAndAccumulate(squares, (a, b) -> a | b);
+        int size = squareSize();
+        if (size <= 0) {
+            return;
+        }
+        int x0 = boardX();
+        int y0 = boardY();
+        while (squares != 0) {
+            int square = Long.numberOfTrailingZeros(squares);
+            squares &= squares - 1;
+            repaint(x0 + (square % 8) * size, y0 + (square / 8) * size, size, size);
+        }
+    }
+    
+    // Stop listening to the game, for when the window goes away
+    public void detach() {
+        game.removeListener(this);
+    }
+    
+    public void clearHighlights() {
+        setHighlights(-1, -1, 0, 0);
+    }
+    
+    // Squares are as big as fits inside the border
+    private int squareSize() {
+        Insets insets = getInsets();
+        int width = getWidth() - insets.left - insets.right;
+        int height = getHeight() - insets.top - insets.bottom;
+        return Math.min(width, height) / 8;
+    }
+    
+    // Top left corner of the board (centered if the window isn't square)
+    private int boardX() {
+        Insets insets = getInsets();
+        int width = getWidth() - insets.left - insets.right;
+        return insets.left + (width - squareSize() * 8) / 2;
+    }
+    
+    private int boardY() {
+        Insets insets = getInsets();
+        int height = getHeight() - insets.top - insets.bottom;
+        return insets.top + (height - squareSize() * 8) / 2;
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        int size = squareSize();
+        if (size <= 0) {
+            return;
+        }
+        if (size != spriteSize) {
+            // Resized - new sprites and redraw everything
+            sprites = buildSprites(size);
+            spriteSize = size;
+            boardImage = new BufferedImage(size * 8, size * 8, BufferedImage.TYPE_INT_RGB);
+            dirtySquares.set(-1L);
+        }
+        
+        // Bring the board image up to date, only touching the squares that changed
+        // Take the dirty squares before the snapshot - if a move lands in between, its squares
+        // stay dirty for the next paint instead of being drawn from the old position
+        long dirty = dirtySquares.getAndSet(0);
+        if (dirty != 0) {
+            BoardSnapshot snapshot = game.getSnapshot();
+            Graphics imageGraphics = boardImage.getGraphics();
+            while (dirty != 0) {
+                int square = Long.numberOfTrailingZeros(dirty);
+                dirty &= dirty - 1;
+                drawSquare(imageGraphics, snapshot, square / 8, square % 8, size);
+            }
+            imageGraphics.dispose();
+        }
+        
+        int x0 = boardX();
+        int y0 = boardY();
+        
+        // Background around the board (only shows if the window isn't square)
+        Rectangle clip = g.getClipBounds();
+        if (clip == null || !new Rectangle(x0, y0, size * 8, size * 8).contains(clip)) {
+            g.setColor(getBackground() != null ? getBackground() : Color.DARK_GRAY);
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
+        
+        // Copying the image only copies the part inside the clip
+        g.drawImage(boardImage, x0, y0, null);
+    }
+    
+    private void drawSquare(Graphics g, BoardSnapshot snapshot, int row, int col, int size) {
+        int x = col * size;
+        int y = row * size;
+        g.setColor(squareColor(row, col));
+        g.fillRect(x, y, size, size);
+        
+        int index = PIECES.indexOf(snapshot.getPiece(row, col));
+        if (index >= 0) {
+            g.drawImage(sprites[index], x, y, null);
+        }
+    }
+    
+    private Color squareColor(int row, int col) {
+        boolean light = (row + col) % 2 == 0;
+        long bit = 1L << (row * 8 + col);
+        if (row == selectedRow && col == selectedCol) {
+            return SELECTED_COLOR;
+        } else if ((captureTargets & bit) != 0) {
+            return light ? LIGHT_CAPTURE : DARK_CAPTURE;
+        } else if ((moveTargets & bit) != 0) {
+            return light ? LIGHT_MOVE : DARK_MOVE;
+        } else if ((premoveSquares & bit) != 0) {
+            return light ? LIGHT_PREMOVE : DARK_PREMOVE;
+        }
+        return light ? LIGHT_SQUARE : DARK_SQUARE;
+    }
+    
+    // Draws every piece once at this size, in the order of PIECES
+    static BufferedImage[] buildSprites(int size) {
+        BufferedImage[] sprites = new BufferedImage[PIECES.length()];
+        Font font = pieceFont(size);
+        for (int i = 0; i < PIECES.length(); i++) {
+            BufferedImage sprite = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = sprite.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setFont(font);
+            g.setColor(Color.BLACK);
+            
+            String symbol = getPieceSymbol(PIECES.charAt(i));
+            FontMetrics metrics = g.getFontMetrics();
+            int x = (size - metrics.stringWidth(symbol)) / 2;
+            int y = (size - metrics.getHeight()) / 2 + metrics.getAscent();
+            g.drawString(symbol, x, y);
+            g.dispose();
+            
+            sprites[i] = sprite;
+        }
+        return sprites;
+    }
+    
+    // Same font as the old buttons if it's there, otherwise anything that has the chess symbols
+    private static Font pieceFont(int size) {
+        int points = size * 3 / 4;
+        String[] names = {"Arial Unicode MS", "Segoe UI Symbol", "DejaVu Sans", Font.SERIF, Font.DIALOG};
+        for (String name : names) {
+            Font font = new Font(name, Font.PLAIN, points);
+            if (font.canDisplay('♔')) {
+                return font;
+            }
+        }
+        return new Font(Font.DIALOG, Font.PLAIN, points);
+    }
+    
+    private static String getPieceSymbol(char piece) {
+        switch (piece) {
+            case 'K': return "♔";
+            case 'Q': return "♕";
+            case 'R': return "♖";
+            case 'B': return "♗";
+            case 'N': return "♘";
+            case 'P': return "♙";
+            case 'k': return "♚";
+            case 'q': return "♛";
+            case 'r': return "♜";
+            case 'b': return "♝";
+            case 'n': return "♞";
+            case 'p': return "♟";
+            default: return "";
+        }
+    }
+    
+    // Mix two colors together for the highlighting effect
+    private static Color blendColors(Color base, Color overlay) {
+        int r = (int)(base.getRed() * 0.5 + overlay.getRed() * 0.5);
+        int g = (int)(base.getGreen() * 0.5 + overlay.getGreen() * 0.5);
+        int b = (int)(base.getBlue() * 0.5 + overlay.getBlue() * 0.5);
+        return new Color(r, g, b);
+    }
+}
@@ -1,13 +1,95 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 // ChessBoard class - stores the game state and checks if moves are valid
 // We decided to use uppercase for white and lowercase for black pieces
+//
+// Castling, en-passant and promotion are in (so real games from PGN files can be played through),
+// but check still isn't enforced - you can leave your king hanging, and taking it wins.
 public class ChessBoard {
     private char[][] board;
     private boolean whiteTurn;
     
+    // Castling rights (bits below), the en-passant square (-1 = none, otherwise row * 8 + col of
+    // the square a pawn can capture onto) and moves since the last capture or pawn move
+    private int castling;
+    private int epSquare = -1;
+    private int halfmoveClock;
+    private static final int WHITE_SHORT = 1;
+    private static final int WHITE_LONG = 2;
+    private static final int BLACK_SHORT = 4;
+    private static final int BLACK_LONG = 8;
+    
+    // Position hash (Zobrist hashing) - updated a little on every move instead of recalculated
+    // Online players compare these to find out if their boards stopped matching
+    private long hash;
+    
+    // Moves are packed into an int: from * 64 + to + promotion * 4096 (squares are row * 8 + col)
+    // promotion is 0 for none, or 1-4 for PROMOTION_PIECES
+    public static final String PROMOTION_PIECES = "nbrq";
+    
+    public static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    
+    // Every move played since the starting position, so we can rewind and replay
+    // hashHistory[i] is the hash after i moves (hashHistory[0] is the starting position)
+    // stateHistory keeps the castling rights, en-passant square and halfmove clock from before each move
+    private int[] moveHistory = new int[256];
+    private char[] capturedHistory = new char[256]; // what each move took (' ' for nothing), for undoMove
+    private int[] stateHistory = new int[256];
+    private long[] hashHistory = new long[257];
+    private int moveCount;
+    private int startPly;        // move number of the starting position (not 0 after a SYNC)
+    private char[][] startBoard; // where the history starts from
+    private boolean startWhiteTurn;
+    private int startState;
+    private int startFullmove = 1;
+    private String startFen;
+    
+    // Where every piece of the side to move can go (bit row * 8 + col), worked out once per turn
+    // The same array is filled in again after every move, it's only recalculated when someone asks
+    private final long[] legalTargets = new long[64];
+    private final int[] sanMoves = new int[256]; // scratch list for reading and writing SAN
+    private boolean legalTargetsStale = true;
+    
+    // Anyone who wants to know which squares changed (like the board view, so it only redraws those)
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    
+    public interface ChangeListener {
+        // Bit (row * 8 + col) is set for every square whose piece changed
+        void squaresChanged(long squares);
+    }
+    
+    // Random numbers for the hash, one per piece type per square plus one for black to move,
+    // then one per castling right and one per en-passant file
+    // Fixed seed so both players get the same numbers and their hashes can be compared
+    private static final String PIECES = "PNBRQKpnbrqk";
+    private static final long[][] PIECE_KEYS = new long[12][64];
+    private static final long BLACK_TO_MOVE_KEY;
+    private static final long[] CASTLING_KEYS = new long[4];
+    private static final long[] EP_FILE_KEYS = new long[8];
+    static {
+        Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < 12; i++) {
+            for (int sq = 0; sq < 64; sq++) {
+                PIECE_KEYS[i][sq] = random.nextLong();
+            }
+        }
+        BLACK_TO_MOVE_KEY = random.nextLong();
+        for (int i = 0; i < 4; i++) {
+            CASTLING_KEYS[i] = random.nextLong();
+        }
+        for (int i = 0; i < 8; i++) {
+            EP_FILE_KEYS[i] = random.nextLong();
+        }
+    }
+    
     public ChessBoard() {
         board = new char[8][8];
         whiteTurn = true;
         initializeBoard();
+        startHistory(0);
     }
     
     // Sets up the initial chess board position
@@ -32,6 +114,48 @@ public class ChessBoard {
         for (int i = 0; i < 8; i++) {
             board[6][i] = 'P';
         }
+        
+        castling = WHITE_SHORT | WHITE_LONG | BLACK_SHORT | BLACK_LONG;
+        epSquare = -1;
+        halfmoveClock = 0;
+        startFullmove = 1;
+    }
+    
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+    
+    private void fireSquaresChanged(long squares) {
+        if (squares != 0) {
+            for (ChangeListener listener : listeners) {
+                listener.squaresChanged(squares);
+            }
+        }
+    }
+    
+    // For big changes (new game, resync) - compares against a copy of the old board
+    private char[][] copyPieces() {
+        char[][] copy = new char[8][];
+        for (int row = 0; row < 8; row++) {
+            copy[row] = board[row].clone();
+        }
+        return copy;
+    }
+    
+    private void fireChangedSince(char[][] before) {
+        long changed = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                if (before[row][col] != board[row][col]) {
+                    changed |= 1L << (row * 8 + col);
+                }
+            }
+        }
+        fireSquaresChanged(changed);
     }
     
     public char getPiece(int row, int col) {
@@ -42,171 +166,922 @@ public class ChessBoard {
         return whiteTurn;
     }
     
-    public void switchTurn() {
+    private void switchTurn() {
         whiteTurn = !whiteTurn;
+        hash ^= BLACK_TO_MOVE_KEY;
     }
     
-    private boolean isWhitePiece(char piece) {
-        return piece >= 'A' && piece <= 'Z';
+    public long getHash() {
+        return hash;
+    }
+    
+    // How many moves have been played in this game (this is the move sequence number online)
+    public int getPly() {
+        return startPly + moveCount;
+    }
+    
+    // The move number as it's written in PGN and FEN (goes up after black moves)
+    public int getFullmoveNumber() {
+        return startFullmove + (moveCount + (startWhiteTurn ? 0 : 1)) / 2;
+    }
+    
+    // Moves since the last capture or pawn move (for the 50 move rule)
+    public int getHalfmoveClock() {
+        return halfmoveClock;
+    }
+    
+    // The position the move history starts from
+    public String getStartFEN() {
+        return startFen;
+    }
+    
+    // True if we still remember the position after this many moves
+    public boolean hasPly(int ply) {
+        return ply >= startPly && ply <= getPly();
     }
     
-    private boolean isBlackPiece(char piece) {
-        return piece >= 'a' && piece <= 'z';
+    public long getHashAt(int ply) {
+        if (!hasPly(ply)) {
+            throw new IllegalArgumentException("No position stored for move " + ply);
+        }
+        return hashHistory[ply - startPly];
+    }
+    
+    // The move that was played to reach this ply, like "e2e4" (or "e7e8q" for a promotion)
+    public String getMoveAt(int ply) {
+        return moveToNotation(getMoveCodeAt(ply));
+    }
+    
+    // Every move since the start of the history, packed, oldest first
+    public int[] getMoves() {
+        return Arrays.copyOf(moveHistory, moveCount);
+    }
+    
+    // Same as getMoveAt, but packed (from * 64 + to + promotion * 4096)
+    public int getMoveCodeAt(int ply) {
+        if (ply <= startPly || ply > getPly()) {
+            throw new IllegalArgumentException("No move stored for move " + ply);
+        }
+        return moveHistory[ply - startPly - 1];
+    }
+    
+    // Go back to the position after the given number of moves
+    // We just replay the moves from the start, they were already checked when they were played
+    public void rewindTo(int ply) {
+        if (!hasPly(ply)) {
+            throw new IllegalArgumentException("Can't rewind to move " + ply);
+        }
+        char[][] before = copyPieces();
+        int movesToKeep = ply - startPly;
+        restoreStart();
+        for (int i = 0; i < movesToKeep; i++) {
+            makeMove(moveHistory[i]);
+        }
+        fireChangedSince(before);
+    }
+    
+    private boolean isWhitePiece(char piece) {
+        return piece >= 'A' && piece <= 'Z';
     }
     
     // Main function to try moving a piece
     // Returns true if the move worked, false if it didn't
+    // A pawn reaching the end becomes a queen
     public boolean movePiece(int fromRow, int fromCol, int toRow, int toCol) {
-        char piece = board[fromRow][fromCol];
-        
-        // Can't move an empty square
-        if (piece == ' ') {
+        return movePiece(fromRow, fromCol, toRow, toCol, 'q');
+    }
+    
+    // Same, but picks what a promoting pawn turns into ('q', 'r', 'b' or 'n')
+    public boolean movePiece(int fromRow, int fromCol, int toRow, int toCol, char promotion) {
+        if (!isLegalMove(fromRow, fromCol, toRow, toCol)) {
             return false;
         }
         
-        // Make sure it's the right player's turn
-        if (whiteTurn && !isWhitePiece(piece)) {
-            return false;
-        }
-        if (!whiteTurn && !isBlackPiece(piece)) {
-            return false;
+        int move = (fromRow * 8 + fromCol) * 64 + toRow * 8 + toCol;
+        if (isPromotion(fromRow, fromCol, toRow)) {
+            int piece = PROMOTION_PIECES.indexOf(Character.toLowerCase(promotion));
+            if (piece < 0) {
+                return false;
+            }
+            move += (piece + 1) * 4096;
         }
         
-        // Can't capture your own pieces
-        char destPiece = board[toRow][toCol];
-        if (whiteTurn && isWhitePiece(destPiece)) {
+        // All good, make the move
+        fireSquaresChanged(makeMove(move));
+        Metrics.moveMade();
+        return true;
+    }
+    
+    // Same as movePiece but takes a move like "e2e4" (or "e7e8n" to pick the promotion)
+    public boolean movePiece(String move) {
+        if (move.length() != 4 && move.length() != 5) {
             return false;
         }
-        if (!whiteTurn && isBlackPiece(destPiece)) {
-            return false;
+        char promotion = move.length() == 5 ? move.charAt(4) : 'q';
+        return movePiece('8' - move.charAt(1), move.charAt(0) - 'a',
+                         '8' - move.charAt(3), move.charAt(2) - 'a', promotion);
+    }
+    
+    private boolean isPromotion(int fromRow, int fromCol, int toRow) {
+        char piece = board[fromRow][fromCol];
+        return (piece == 'P' && toRow == 0) || (piece == 'p' && toRow == 7);
+    }
+    
+    // Turns squares into a move like "e2e4" (row 0 is rank 8)
+    public static String toNotation(int fromRow, int fromCol, int toRow, int toCol) {
+        return "" + (char) ('a' + fromCol) + (char) ('8' - fromRow)
+                  + (char) ('a' + toCol) + (char) ('8' - toRow);
+    }
+    
+    // Same for a packed move, with the promotion letter on the end if there is one
+    public static String moveToNotation(int move) {
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        String text = toNotation(from / 8, from % 8, to / 8, to % 8);
+        int promotion = movePromotion(move);
+        return promotion == 0 ? text : text + PROMOTION_PIECES.charAt(promotion - 1);
+    }
+    
+    public static int moveFrom(int move) {
+        return (move >> 6) & 63;
+    }
+    
+    public static int moveTo(int move) {
+        return move & 63;
+    }
+    
+    // 0 for none, otherwise 1 + the index in PROMOTION_PIECES
+    public static int movePromotion(int move) {
+        return move >> 12;
+    }
+    
+    // For the engine: fills in every legal move for the side to move (packed)
+    // and returns how many there are (there's always less than 256)
+    public int generateMoves(int[] moves) {
+        updateLegalTargets();
+        int count = 0;
+        for (int from = 0; from < 64; from++) {
+            for (long targets = legalTargets[from]; targets != 0; targets &= targets - 1) {
+                int to = Long.numberOfTrailingZeros(targets);
+                if (isPromotion(from / 8, from % 8, to / 8)) {
+                    for (int piece = 4; piece >= 1; piece--) { // queen first
+                        moves[count++] = piece * 4096 + from * 64 + to;
+                    }
+                } else {
+                    moves[count++] = from * 64 + to;
+                }
+            }
         }
+        return count;
+    }
+    
+    // Plays a move from generateMoves - no checking here, so don't pass it anything else!
+    public void playMove(int move) {
+        fireSquaresChanged(makeMove(move));
+    }
+    
+    // Takes back the last move (can't go back past a loaded position)
+    public void undoMove() {
+        if (moveCount == 0) {
+            throw new IllegalStateException("No move to undo");
+        }
+        fireSquaresChanged(takeBack());
+    }
+    
+    // undoMove without telling anyone, returns the squares that changed
+    private long takeBack() {
+        moveCount--;
+        int move = moveHistory[moveCount];
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        int fromRow = from / 8;
+        int toRow = to / 8;
+        char piece = board[toRow][to % 8];
+        if (movePromotion(move) != 0) {
+            piece = isWhitePiece(piece) ? 'P' : 'p';
+        }
+        char captured = capturedHistory[moveCount];
+        long changed = (1L << from) | (1L << to);
         
-        // Check if this piece can actually move like that
-        if (!isValidMove(piece, fromRow, fromCol, toRow, toCol)) {
-            return false;
+        board[fromRow][from % 8] = piece;
+        board[toRow][to % 8] = captured;
+        if ((piece == 'P' || piece == 'p') && from % 8 != to % 8 && captured == ' ') {
+            // En-passant - the pawn we took was beside us, not where we landed
+            board[fromRow][to % 8] = piece == 'P' ? 'p' : 'P';
+            changed |= 1L << (fromRow * 8 + to % 8);
+        }
+        if ((piece == 'K' || piece == 'k') && Math.abs(to - from) == 2) {
+            changed |= moveCastlingRook(fromRow, to % 8, true);
         }
         
-        // All good, make the move
-        board[toRow][toCol] = piece;
-        board[fromRow][fromCol] = ' ';
-        switchTurn();
-        return true;
+        setState(stateHistory[moveCount]);
+        whiteTurn = !whiteTurn;
+        hash = hashHistory[moveCount];
+        legalTargetsStale = true;
+        return changed;
     }
     
-    // Checks if a piece can move to a square based on how that piece moves
-    // NOTE: We're not doing check/checkmate stuff, just basic movement rules
-    private boolean isValidMove(char piece, int fromRow, int fromCol, int toRow, int toCol) {
-        char pieceType = Character.toLowerCase(piece);
-        int rowDiff = toRow - fromRow;
-        int colDiff = toCol - fromCol;
-        
-        switch (pieceType) {
-            case 'p': // Pawn
-                return isValidPawnMove(piece, fromRow, fromCol, toRow, toCol);
-                
-            case 'r': // Rook
-                return (rowDiff == 0 || colDiff == 0) && isPathClear(fromRow, fromCol, toRow, toCol);
-                
-            case 'n': // Knight
-                return (Math.abs(rowDiff) == 2 && Math.abs(colDiff) == 1) || 
-                       (Math.abs(rowDiff) == 1 && Math.abs(colDiff) == 2);
-                
-            case 'b': // Bishop
-                return Math.abs(rowDiff) == Math.abs(colDiff) && isPathClear(fromRow, fromCol, toRow, toCol);
-                
-            case 'q': // Queen
-                return ((rowDiff == 0 || colDiff == 0) || (Math.abs(rowDiff) == Math.abs(colDiff))) 
-                       && isPathClear(fromRow, fromCol, toRow, toCol);
-                
-            case 'k': // King
-                return Math.abs(rowDiff) <= 1 && Math.abs(colDiff) <= 1;
-                
-            default:
-                return false;
+    // Would this move leave the mover's own king attacked? Tries it quietly and takes it back
+    // Check isn't enforced in play, but SAN needs it to tell apart moves like two knights where one is pinned
+    public boolean leavesKingAttacked(int move) {
+        boolean white = whiteTurn;
+        makeMove(move);
+        boolean attacked = false;
+        char king = white ? 'K' : 'k';
+        for (int sq = 0; sq < 64; sq++) {
+            if (board[sq / 8][sq % 8] == king) {
+                attacked = isSquareAttacked(sq / 8, sq % 8, !white);
+                break;
+            }
         }
+        takeBack();
+        return attacked;
     }
     
-    private boolean isValidPawnMove(char piece, int fromRow, int fromCol, int toRow, int toCol) {
-        boolean isWhite = isWhitePiece(piece);
-        int direction = isWhite ? -1 : 1; // white goes up (negative), black goes down (positive)
-        int rowDiff = toRow - fromRow;
-        int colDiff = Math.abs(toCol - fromCol);
+    // Writes a move (from generateMoves) in standard algebraic notation like "Nbd7", "exd6", "e8=Q+" or "O-O"
+    public String toSan(int move) {
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        char piece = board[from / 8][from % 8];
+        char type = Character.toUpperCase(piece);
+        StringBuilder san = new StringBuilder(8);
         
-        // Normal move - one square forward
-        if (colDiff == 0 && rowDiff == direction && board[toRow][toCol] == ' ') {
-            return true;
+        if (type == 'K' && Math.abs(to - from) == 2) {
+            san.append(to % 8 == 6 ? "O-O" : "O-O-O");
+        } else if (type == 'P') {
+            if (from % 8 != to % 8) {
+                san.append((char) ('a' + from % 8)).append('x');
+            }
+            appendSquare(san, to);
+            if (movePromotion(move) != 0) {
+                san.append('=').append(Character.toUpperCase(PROMOTION_PIECES.charAt(movePromotion(move) - 1)));
+            }
+        } else {
+            san.append(type);
+            // Another piece of the same kind that can also go there? Then say which one we mean
+            boolean clash = false;
+            boolean sameFile = false;
+            boolean sameRank = false;
+            int count = generateMoves(sanMoves);
+            for (int i = 0; i < count; i++) {
+                int other = sanMoves[i];
+                int otherFrom = moveFrom(other);
+                if (moveTo(other) == to && otherFrom != from && board[otherFrom / 8][otherFrom % 8] == piece
+                        && !leavesKingAttacked(other)) {
+                    clash = true;
+                    sameFile |= otherFrom % 8 == from % 8;
+                    sameRank |= otherFrom / 8 == from / 8;
+                }
+            }
+            if (clash && (!sameFile || sameRank)) {
+                san.append((char) ('a' + from % 8));
+            }
+            if (clash && sameFile) {
+                san.append((char) ('8' - from / 8));
+            }
+            if (board[to / 8][to % 8] != ' ') {
+                san.append('x');
+            }
+            appendSquare(san, to);
         }
         
-        // First move can be 2 squares
-        int startRow = isWhite ? 6 : 1;
-        if (colDiff == 0 && fromRow == startRow && rowDiff == 2 * direction 
-            && board[toRow][toCol] == ' ' && board[fromRow + direction][fromCol] == ' ') {
-            return true;
+        // + for check, # if there's no way out of it
+        makeMove(move);
+        if (isInCheck()) {
+            san.append(hasSafeMove() ? '+' : '#');
         }
-        
-        // Capturing - diagonal move
-        if (colDiff == 1 && rowDiff == direction && board[toRow][toCol] != ' ') {
-            return true;
+        takeBack();
+        return san.toString();
+    }
+    
+    private static void appendSquare(StringBuilder text, int square) {
+        text.append((char) ('a' + square % 8)).append((char) ('8' - square / 8));
+    }
+    
+    private boolean hasSafeMove() {
+        int[] replies = new int[256];
+        int count = generateMoves(replies);
+        for (int i = 0; i < count; i++) {
+            if (!leavesKingAttacked(replies[i])) {
+                return true;
+            }
         }
-        
         return false;
     }
     
-    // Make sure nothing is blocking the path (for rooks, bishops, queens)
-    private boolean isPathClear(int fromRow, int fromCol, int toRow, int toCol) {
-        int rowStep = Integer.compare(toRow, fromRow);
-        int colStep = Integer.compare(toCol, fromCol);
+    // Reads a move in standard algebraic notation for the side to move (the other way round from toSan)
+    // Also takes "0-0", a missing "=" ("e8Q") and any +, #, ! or ? on the end
+    // Throws IllegalArgumentException if no move (or more than one) fits
+    public int parseSan(String san) {
+        int end = san.length();
+        while (end > 0 && "+#!?".indexOf(san.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        String text = san.substring(0, end);
+        int count = generateMoves(sanMoves);
         
-        int currentRow = fromRow + rowStep;
-        int currentCol = fromCol + colStep;
+        if (text.equals("O-O") || text.equals("0-0") || text.equals("O-O-O") || text.equals("0-0-0")) {
+            int kingToCol = text.length() == 3 ? 6 : 2;
+            char king = whiteTurn ? 'K' : 'k';
+            for (int i = 0; i < count; i++) {
+                int from = moveFrom(sanMoves[i]);
+                int to = moveTo(sanMoves[i]);
+                if (board[from / 8][from % 8] == king && from % 8 == 4 && to % 8 == kingToCol) {
+                    return sanMoves[i];
+                }
+            }
+            throw new IllegalArgumentException("Can't castle: " + san);
+        }
         
-        while (currentRow != toRow || currentCol != toCol) {
-            if (board[currentRow][currentCol] != ' ') {
-                return false;
+        // Promotion on the end, with or without the =
+        int promotion = 0;
+        if (end >= 2 && "QRBNqrbn".indexOf(text.charAt(end - 1)) >= 0 && !Character.isUpperCase(text.charAt(0))
+                || end >= 2 && text.charAt(end - 2) == '=') {
+            promotion = PROMOTION_PIECES.indexOf(Character.toLowerCase(text.charAt(end - 1))) + 1;
+            if (promotion == 0) {
+                throw new IllegalArgumentException("Bad promotion: " + san);
             }
-            currentRow += rowStep;
-            currentCol += colStep;
+            end -= text.charAt(end - 2) == '=' ? 2 : 1;
         }
         
-        return true;
+        int start = 0;
+        char type = 'P';
+        if (end > 0 && "NBRQK".indexOf(text.charAt(0)) >= 0) {
+            type = text.charAt(0);
+            start = 1;
+        }
+        if (end - start < 2) {
+            throw new IllegalArgumentException("Bad move: " + san);
+        }
+        int toCol = text.charAt(end - 2) - 'a';
+        int toRow = '8' - text.charAt(end - 1);
+        if (!isOnBoard(toRow, toCol)) {
+            throw new IllegalArgumentException("Bad square in move: " + san);
+        }
+        
+        // Whatever is left between the piece and the square is a file and/or rank to pick the piece (and the x)
+        int fromCol = -1;
+        int fromRow = -1;
+        for (int i = start; i < end - 2; i++) {
+            char c = text.charAt(i);
+            if (c >= 'a' && c <= 'h') {
+                fromCol = c - 'a';
+            } else if (c >= '1' && c <= '8') {
+                fromRow = '8' - c;
+            } else if (c != 'x' && c != ':' && c != '-') {
+                throw new IllegalArgumentException("Bad move: " + san);
+            }
+        }
+        
+        // The moves that fit get packed to the front of the list
+        char piece = whiteTurn ? type : Character.toLowerCase(type);
+        int to = toRow * 8 + toCol;
+        int matches = 0;
+        for (int i = 0; i < count; i++) {
+            int move = sanMoves[i];
+            int from = moveFrom(move);
+            if (moveTo(move) != to || board[from / 8][from % 8] != piece
+                    || (fromCol >= 0 && from % 8 != fromCol) || (fromRow >= 0 && from / 8 != fromRow)) {
+                continue;
+            }
+            // No promotion letter means a queen
+            if (movePromotion(move) != 0 && movePromotion(move) != (promotion == 0 ? 4 : promotion)) {
+                continue;
+            }
+            sanMoves[matches++] = move;
+        }
+        
+        // More than one piece can get there - SAN leaves out the ones pinned to their king
+        if (matches > 1) {
+            int legal = 0;
+            for (int i = 0; i < matches; i++) {
+                if (!leavesKingAttacked(sanMoves[i])) {
+                    sanMoves[legal++] = sanMoves[i];
+                }
+            }
+            matches = legal;
+        }
+        if (matches == 0) {
+            throw new IllegalArgumentException("Illegal move: " + san);
+        }
+        if (matches > 1) {
+            throw new IllegalArgumentException("Ambiguous move: " + san);
+        }
+        return sanMoves[0];
     }
     
-    // For network play - just apply the move without checking if it's valid
-    public void applyMove(int fromRow, int fromCol, int toRow, int toCol) {
-        board[toRow][toCol] = board[fromRow][fromCol];
-        board[fromRow][fromCol] = ' ';
-        switchTurn();
+    // Moves the rook that goes with a castling king (or puts it back), returns the squares it touched
+    private long moveCastlingRook(int row, int kingToCol, boolean undo) {
+        int rookFrom = kingToCol == 6 ? 7 : 0;
+        int rookTo = kingToCol == 6 ? 5 : 3;
+        if (undo) {
+            int swap = rookFrom;
+            rookFrom = rookTo;
+            rookTo = swap;
+        }
+        char rook = board[row][rookFrom];
+        board[row][rookTo] = rook;
+        board[row][rookFrom] = ' ';
+        hash ^= PIECE_KEYS[PIECES.indexOf(rook)][row * 8 + rookFrom] ^ PIECE_KEYS[PIECES.indexOf(rook)][row * 8 + rookTo];
+        return (1L << (row * 8 + rookFrom)) | (1L << (row * 8 + rookTo));
     }
     
-    // This is for highlighting possible moves - checks if move is valid without actually moving
-    public boolean isValidMoveCheck(int fromRow, int fromCol, int toRow, int toCol) {
+    // Castling rights, en-passant square and halfmove clock packed in one int for the history
+    private int getState() {
+        return castling | ((epSquare + 1) << 4) | (halfmoveClock << 11);
+    }
+    
+    private void setState(int state) {
+        castling = state & 15;
+        epSquare = ((state >> 4) & 127) - 1;
+        halfmoveClock = state >>> 11;
+    }
+    
+    // The castling and en-passant part of the hash
+    private long stateHash() {
+        long h = 0;
+        for (int i = 0; i < 4; i++) {
+            if ((castling & (1 << i)) != 0) {
+                h ^= CASTLING_KEYS[i];
+            }
+        }
+        if (epSquare >= 0) {
+            h ^= EP_FILE_KEYS[epSquare % 8];
+        }
+        return h;
+    }
+    
+    // Moves the piece, updates the hash and remembers the move - no checking here!
+    // Returns the squares that changed
+    private long makeMove(int move) {
+        int from = moveFrom(move);
+        int to = moveTo(move);
+        int fromRow = from / 8;
+        int fromCol = from % 8;
+        int toRow = to / 8;
+        int toCol = to % 8;
         char piece = board[fromRow][fromCol];
+        char captured = board[toRow][toCol];
+        boolean pawn = piece == 'P' || piece == 'p';
+        long changed = (1L << from) | (1L << to);
         
-        if (piece == ' ') {
-            return false;
+        if (moveCount == moveHistory.length) {
+            moveHistory = Arrays.copyOf(moveHistory, moveCount * 2);
+            capturedHistory = Arrays.copyOf(capturedHistory, moveCount * 2);
+            stateHistory = Arrays.copyOf(stateHistory, moveCount * 2);
+            hashHistory = Arrays.copyOf(hashHistory, moveCount * 2 + 1);
         }
+        moveHistory[moveCount] = move;
+        capturedHistory[moveCount] = captured;
+        stateHistory[moveCount] = getState();
         
-        if (whiteTurn && !isWhitePiece(piece)) {
-            return false;
+        hash ^= stateHash();
+        hash ^= PIECE_KEYS[PIECES.indexOf(piece)][from];
+        if (captured != ' ') {
+            hash ^= PIECE_KEYS[PIECES.indexOf(captured)][to];
         }
-        if (!whiteTurn && !isBlackPiece(piece)) {
-            return false;
+        
+        // En-passant - the pawn we take is beside us
+        if (pawn && to == epSquare && captured == ' ' && fromCol != toCol) {
+            char taken = board[fromRow][toCol];
+            hash ^= PIECE_KEYS[PIECES.indexOf(taken)][fromRow * 8 + toCol];
+            board[fromRow][toCol] = ' ';
+            changed |= 1L << (fromRow * 8 + toCol);
         }
         
-        char destPiece = board[toRow][toCol];
-        if (whiteTurn && isWhitePiece(destPiece)) {
-            return false;
+        char landing = piece;
+        if (movePromotion(move) != 0) {
+            landing = PROMOTION_PIECES.charAt(movePromotion(move) - 1);
+            landing = isWhitePiece(piece) ? Character.toUpperCase(landing) : landing;
+        }
+        hash ^= PIECE_KEYS[PIECES.indexOf(landing)][to];
+        board[toRow][toCol] = landing;
+        board[fromRow][fromCol] = ' ';
+        
+        if ((piece == 'K' || piece == 'k') && Math.abs(toCol - fromCol) == 2) {
+            changed |= moveCastlingRook(fromRow, toCol, false);
         }
-        if (!whiteTurn && isBlackPiece(destPiece)) {
+        
+        // Moving the king or a rook (or having a rook taken) loses those castling rights
+        castling &= ~(rightsLostAt(from) | rightsLostAt(to));
+        epSquare = pawn && Math.abs(toRow - fromRow) == 2 ? (fromRow + toRow) / 2 * 8 + fromCol : -1;
+        halfmoveClock = pawn || captured != ' ' ? 0 : halfmoveClock + 1;
+        hash ^= stateHash();
+        
+        switchTurn();
+        legalTargetsStale = true;
+        moveCount++;
+        hashHistory[moveCount] = hash;
+        return changed;
+    }
+    
+    private static int rightsLostAt(int square) {
+        switch (square) {
+            case 60: return WHITE_SHORT | WHITE_LONG; // e1
+            case 63: return WHITE_SHORT;              // h1
+            case 56: return WHITE_LONG;               // a1
+            case 4:  return BLACK_SHORT | BLACK_LONG; // e8
+            case 7:  return BLACK_SHORT;              // h8
+            case 0:  return BLACK_LONG;               // a8
+            default: return 0;
+        }
+    }
+    
+    // Same as isValidMoveCheck but safe to call with anything (like moves from the network)
+    // Squares off the board just count as illegal instead of crashing
+    public boolean isLegalMove(int fromRow, int fromCol, int toRow, int toCol) {
+        if (!isOnBoard(fromRow, fromCol) || !isOnBoard(toRow, toCol)) {
             return false;
         }
+        return isValidMoveCheck(fromRow, fromCol, toRow, toCol);
+    }
+    
+    private boolean isOnBoard(int row, int col) {
+        return row >= 0 && row < 8 && col >= 0 && col < 8;
+    }
+    
+    // This is for highlighting possible moves - checks if move is valid without actually moving
+    // NOTE: We're not doing check/checkmate stuff, just how the pieces move
+    public boolean isValidMoveCheck(int fromRow, int fromCol, int toRow, int toCol) {
+        return (getLegalTargets(fromRow, fromCol) & (1L << (toRow * 8 + toCol))) != 0;
+    }
+    
+    // Every square the piece on (row, col) can move to, as bits (row * 8 + col)
+    // The whole board is worked out once per turn so picking up a piece is just an array lookup
+    public long getLegalTargets(int row, int col) {
+        updateLegalTargets();
+        return legalTargets[row * 8 + col];
+    }
+    
+    // Copies all 64 of them at once (for snapshots)
+    public void copyLegalTargets(long[] into) {
+        updateLegalTargets();
+        System.arraycopy(legalTargets, 0, into, 0, 64);
+    }
+    
+    private static final int[][] KNIGHT_STEPS = {{-2, -1}, {-2, 1}, {-1, -2}, {-1, 2}, {1, -2}, {1, 2}, {2, -1}, {2, 1}};
+    private static final int[][] KING_STEPS = {{-1, -1}, {-1, 0}, {-1, 1}, {0, -1}, {0, 1}, {1, -1}, {1, 0}, {1, 1}};
+    private static final int[][] ROOK_LINES = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}};
+    private static final int[][] BISHOP_LINES = {{-1, -1}, {-1, 1}, {1, -1}, {1, 1}};
+    
+    // Walks each piece's moves instead of trying all 64 squares for it
+    private void updateLegalTargets() {
+        if (!legalTargetsStale) {
+            return;
+        }
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                char piece = board[row][col];
+                long targets = 0;
+                if (piece != ' ' && isWhitePiece(piece) == whiteTurn) {
+                    switch (Character.toLowerCase(piece)) {
+                        case 'p':
+                            targets = pawnTargets(piece, row, col);
+                            break;
+                        case 'n':
+                            targets = stepTargets(row, col, KNIGHT_STEPS);
+                            break;
+                        case 'k':
+                            targets = stepTargets(row, col, KING_STEPS) | castlingTargets(row, col);
+                            break;
+                        case 'r':
+                            targets = lineTargets(row, col, ROOK_LINES);
+                            break;
+                        case 'b':
+                            targets = lineTargets(row, col, BISHOP_LINES);
+                            break;
+                        case 'q':
+                            targets = lineTargets(row, col, ROOK_LINES) | lineTargets(row, col, BISHOP_LINES);
+                            break;
+                    }
+                }
+                legalTargets[row * 8 + col] = targets;
+            }
+        }
+        legalTargetsStale = false;
+    }
+    
+    // Empty or an enemy piece (it's always the side to move's piece we're looking at)
+    private boolean canLandOn(int row, int col) {
+        char piece = board[row][col];
+        return piece == ' ' || isWhitePiece(piece) != whiteTurn;
+    }
+    
+    private long pawnTargets(char piece, int row, int col) {
+        boolean isWhite = isWhitePiece(piece);
+        int direction = isWhite ? -1 : 1;
+        int next = row + direction;
+        if (next < 0 || next > 7) {
+            return 0; // can only happen in a made up position, pawns promote before this
+        }
         
-        return isValidMove(piece, fromRow, fromCol, toRow, toCol);
+        long targets = 0;
+        if (board[next][col] == ' ') {
+            targets |= 1L << (next * 8 + col);
+            int startRow = isWhite ? 6 : 1;
+            if (row == startRow && board[next + direction][col] == ' ') {
+                targets |= 1L << ((next + direction) * 8 + col);
+            }
+        }
+        for (int side = -1; side <= 1; side += 2) {
+            int c = col + side;
+            if (c < 0 || c > 7) {
+                continue;
+            }
+            boolean capture = board[next][c] != ' ' && canLandOn(next, c);
+            if (capture || next * 8 + c == epSquare) {
+                targets |= 1L << (next * 8 + c);
+            }
+        }
+        return targets;
+    }
+    
+    private long stepTargets(int row, int col, int[][] steps) {
+        long targets = 0;
+        for (int[] step : steps) {
+            int r = row + step[0];
+            int c = col + step[1];
+            if (isOnBoard(r, c) && canLandOn(r, c)) {
+                targets |= 1L << (r * 8 + c);
+            }
+        }
+        return targets;
+    }
+    
+    private long lineTargets(int row, int col, int[][] lines) {
+        long targets = 0;
+        for (int[] line : lines) {
+            int r = row + line[0];
+            int c = col + line[1];
+            while (isOnBoard(r, c)) {
+                if (board[r][c] != ' ') {
+                    if (canLandOn(r, c)) {
+                        targets |= 1L << (r * 8 + c); // capture, then the line stops
+                    }
+                    break;
+                }
+                targets |= 1L << (r * 8 + c);
+                r += line[0];
+                c += line[1];
+            }
+        }
+        return targets;
+    }
+    
+    // The king jumps two squares towards the rook - only if neither has moved, the squares between
+    // are empty, and the king isn't in check or crossing an attacked square
+    private long castlingTargets(int row, int col) {
+        int homeRow = whiteTurn ? 7 : 0;
+        if (row != homeRow || col != 4 || isSquareAttacked(row, 4, !whiteTurn)) {
+            return 0;
+        }
+        long targets = 0;
+        char rook = whiteTurn ? 'R' : 'r';
+        int shortRight = whiteTurn ? WHITE_SHORT : BLACK_SHORT;
+        int longRight = whiteTurn ? WHITE_LONG : BLACK_LONG;
+        if ((castling & shortRight) != 0 && board[row][7] == rook && board[row][5] == ' ' && board[row][6] == ' '
+                && !isSquareAttacked(row, 5, !whiteTurn) && !isSquareAttacked(row, 6, !whiteTurn)) {
+            targets |= 1L << (row * 8 + 6);
+        }
+        if ((castling & longRight) != 0 && board[row][0] == rook && board[row][1] == ' ' && board[row][2] == ' '
+                && board[row][3] == ' ' && !isSquareAttacked(row, 3, !whiteTurn) && !isSquareAttacked(row, 2, !whiteTurn)) {
+            targets |= 1L << (row * 8 + 2);
+        }
+        return targets;
+    }
+    
+    // Could a piece of that color take something on this square?
+    public boolean isSquareAttacked(int row, int col, boolean byWhite) {
+        // Pawns attack diagonally forwards, so look one row back from their point of view
+        int pawnRow = byWhite ? row + 1 : row - 1;
+        char pawn = byWhite ? 'P' : 'p';
+        if (pawnRow >= 0 && pawnRow < 8) {
+            if ((col > 0 && board[pawnRow][col - 1] == pawn) || (col < 7 && board[pawnRow][col + 1] == pawn)) {
+                return true;
+            }
+        }
+        if (attackedByStep(row, col, KNIGHT_STEPS, byWhite ? 'N' : 'n')
+                || attackedByStep(row, col, KING_STEPS, byWhite ? 'K' : 'k')) {
+            return true;
+        }
+        return attackedAlongLine(row, col, ROOK_LINES, byWhite ? 'R' : 'r', byWhite ? 'Q' : 'q')
+            || attackedAlongLine(row, col, BISHOP_LINES, byWhite ? 'B' : 'b', byWhite ? 'Q' : 'q');
+    }
+    
+    private boolean attackedByStep(int row, int col, int[][] steps, char attacker) {
+        for (int[] step : steps) {
+            int r = row + step[0];
+            int c = col + step[1];
+            if (isOnBoard(r, c) && board[r][c] == attacker) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean attackedAlongLine(int row, int col, int[][] lines, char attacker, char queen) {
+        for (int[] line : lines) {
+            int r = row + line[0];
+            int c = col + line[1];
+            while (isOnBoard(r, c)) {
+                char piece = board[r][c];
+                if (piece != ' ') {
+                    if (piece == attacker || piece == queen) {
+                        return true;
+                    }
+                    break;
+                }
+                r += line[0];
+                c += line[1];
+            }
+        }
+        return false;
+    }
+    
+    // Is the side to move's king attacked? (false if they don't have one)
+    public boolean isInCheck() {
+        char king = whiteTurn ? 'K' : 'k';
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                if (board[row][col] == king) {
+                    return isSquareAttacked(row, col, !whiteTurn);
+                }
+            }
+        }
+        return false;
     }
     
     // Start a new game
     public void reset() {
+        char[][] before = copyPieces();
         whiteTurn = true;
         initializeBoard();
+        startHistory(0);
+        fireChangedSince(before);
+    }
+    
+    // Makes the current position the start of the move history
+    private void startHistory(int ply) {
+        startPly = ply;
+        moveCount = 0;
+        startBoard = new char[8][8];
+        for (int row = 0; row < 8; row++) {
+            startBoard[row] = board[row].clone();
+        }
+        startWhiteTurn = whiteTurn;
+        startState = getState();
+        hash = computeHash();
+        hashHistory[0] = hash;
+        legalTargetsStale = true;
+        startFen = toFEN();
+    }
+    
+    private void restoreStart() {
+        for (int row = 0; row < 8; row++) {
+            board[row] = startBoard[row].clone();
+        }
+        whiteTurn = startWhiteTurn;
+        setState(startState);
+        moveCount = 0;
+        hash = hashHistory[0];
+        legalTargetsStale = true;
+    }
+    
+    // Works out the hash from scratch - only needed when a whole new position is loaded
+    private long computeHash() {
+        long h = whiteTurn ? 0 : BLACK_TO_MOVE_KEY;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                char piece = board[row][col];
+                if (piece != ' ') {
+                    h ^= PIECE_KEYS[PIECES.indexOf(piece)][row * 8 + col];
+                }
+            }
+        }
+        return h ^ stateHash();
+    }
+    
+    // Writes the position as a FEN string so the other player can copy it exactly
+    public String toFEN() {
+        StringBuilder fen = new StringBuilder();
+        for (int row = 0; row < 8; row++) {
+            int empty = 0;
+            for (int col = 0; col < 8; col++) {
+                char piece = board[row][col];
+                if (piece == ' ') {
+                    empty++;
+                } else {
+                    if (empty > 0) {
+                        fen.append(empty);
+                        empty = 0;
+                    }
+                    fen.append(piece);
+                }
+            }
+            if (empty > 0) {
+                fen.append(empty);
+            }
+            if (row < 7) {
+                fen.append('/');
+            }
+        }
+        fen.append(whiteTurn ? " w " : " b ");
+        
+        if (castling == 0) {
+            fen.append('-');
+        }
+        for (int i = 0; i < 4; i++) {
+            if ((castling & (1 << i)) != 0) {
+                fen.append("KQkq".charAt(i));
+            }
+        }
+        
+        if (epSquare < 0) {
+            fen.append(" -");
+        } else {
+            fen.append(' ').append((char) ('a' + epSquare % 8)).append((char) ('8' - epSquare / 8));
+        }
+        fen.append(' ').append(halfmoveClock).append(' ').append(getFullmoveNumber());
+        return fen.toString();
+    }
+    
+    // Loads a position from a FEN string
+    // Throws IllegalArgumentException if the string is broken, and leaves the board alone
+    public void loadFEN(String fen) {
+        loadFEN(fen, 0);
+    }
+    
+    // Same, but the position counts as being reached after "ply" moves (used when resyncing)
+    public void loadFEN(String fen, int ply) {
+        String[] parts = fen.trim().split("\\s+");
+        String[] rows = parts[0].split("/");
+        if (rows.length != 8) {
+            throw new IllegalArgumentException("FEN needs 8 rows: " + fen);
+        }
+        
+        char[][] newBoard = new char[8][8];
+        for (int row = 0; row < 8; row++) {
+            int col = 0;
+            for (char c : rows[row].toCharArray()) {
+                if (c >= '1' && c <= '8' && col + (c - '0') <= 8) {
+                    for (int i = 0; i < c - '0'; i++) {
+                        newBoard[row][col++] = ' ';
+                    }
+                } else if ("KQRBNPkqrbnp".indexOf(c) >= 0 && col < 8) {
+                    newBoard[row][col++] = c;
+                } else {
+                    throw new IllegalArgumentException("Bad FEN row: " + rows[row]);
+                }
+            }
+            if (col != 8) {
+                throw new IllegalArgumentException("FEN row doesn't have 8 squares: " + rows[row]);
+            }
+        }
+        
+        if (parts.length > 1 && !parts[1].equals("w") && !parts[1].equals("b")) {
+            throw new IllegalArgumentException("Bad side to move in FEN: " + parts[1]);
+        }
+        
+        // Castling, en-passant and the move counters are optional (old versions sent "- - 0 1")
+        int newCastling = 0;
+        if (parts.length > 2 && !parts[2].equals("-")) {
+            for (char c : parts[2].toCharArray()) {
+                int right = "KQkq".indexOf(c);
+                if (right < 0) {
+                    throw new IllegalArgumentException("Bad castling rights in FEN: " + parts[2]);
+                }
+                newCastling |= 1 << right;
+            }
+        }
+        int newEp = -1;
+        if (parts.length > 3 && !parts[3].equals("-")) {
+            String ep = parts[3];
+            if (ep.length() != 2 || ep.charAt(0) < 'a' || ep.charAt(0) > 'h' || (ep.charAt(1) != '3' && ep.charAt(1) != '6')) {
+                throw new IllegalArgumentException("Bad en-passant square in FEN: " + ep);
+            }
+            newEp = ('8' - ep.charAt(1)) * 8 + (ep.charAt(0) - 'a');
+        }
+        int newHalfmove = 0;
+        int newFullmove = 1;
+        try {
+            if (parts.length > 4) {
+                newHalfmove = Math.max(0, Math.min(Integer.parseInt(parts[4]), 100000));
+            }
+            if (parts.length > 5) {
+                newFullmove = Math.max(1, Integer.parseInt(parts[5]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad move counters in FEN: " + fen);
+        }
+        
+        char[][] before = board;
+        board = newBoard;
+        whiteTurn = parts.length < 2 || parts[1].equals("w");
+        castling = newCastling;
+        epSquare = newEp;
+        halfmoveClock = newHalfmove;
+        startFullmove = newFullmove;
+        startHistory(ply);
+        fireChangedSince(before);
     }
 }
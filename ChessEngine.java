@@ -0,0 +1,467 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The chess engine - looks ahead to find good moves, used for analysis
+// Alpha-beta search that goes one move deeper each time (iterative deepening), remembers
+// positions in a transposition table, and keeps following captures at the end of each line
+// so it doesn't stop halfway through a trade.
+//
+// It plays by the same rules as ChessBoard - no check, so taking the king is how you win.
+// A "mate" score here means the king gets taken in that many moves.
+public class ChessEngine {
+    public static final int MATE = 100000;
+    public static final int MAX_DEPTH = 64;
+    private static final int INFINITY = 1000000;
+    private static final int MAX_PLY = 128; // the search depth plus the captures after it
+    
+    // For putting the best captures first (take the biggest piece with the smallest one)
+    private static final String ORDER_PIECES = "pnbrqk";
+    private static final int[] ORDER_VALUES = {1, 3, 3, 5, 9, 100};
+    
+    private final Evaluation evaluation;
+    private final TranspositionTable table;
+    
+    // Everything the search needs is made once and reused, nothing gets allocated per node
+    private final int[][] moves = new int[MAX_PLY][256];
+    private final int[][] moveOrder = new int[MAX_PLY][256];
+    private final int[][] pv = new int[MAX_PLY][MAX_PLY];
+    private final int[] pvLength = new int[MAX_PLY];
+    private final int[][] killers = new int[MAX_PLY][2]; // quiet moves that caused a cutoff
+    private ChessBoard board;
+    private long nodes;
+    // Counted here and handed to Metrics every 2048 nodes, so the search never waits on another thread
+    private long nodesReported;
+    private long tableProbes;
+    private long tableHits;
+    private long deadline;
+    private long nodeLimit = Long.MAX_VALUE;
+    private volatile boolean stopped;
+    
+    // One line of analysis - the moves, how good it is and how deep we looked
+    public static final class Line {
+        public final int depth;
+        public final int rank;   // 1 = best line, 2 = second best...
+        public final int score;  // for the side to move, in centipawns (or near MATE)
+        public final int[] moves; // packed like ChessBoard moves, first one is the move to play
+        public final long nodes;
+        public final long millis;
+        
+        Line(int depth, int rank, int score, int[] moves, long nodes, long millis) {
+            this.depth = depth;
+            this.rank = rank;
+            this.score = score;
+            this.moves = moves;
+            this.nodes = nodes;
+            this.millis = millis;
+        }
+        
+        public int bestMove() {
+            return moves.length > 0 ? moves[0] : -1;
+        }
+        
+        // Like "e2e4 e7e5 g1f3"
+        public String movesAsText() {
+            StringBuilder text = new StringBuilder();
+            for (int move : moves) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(moveToText(move));
+            }
+            return text.toString();
+        }
+    }
+    
+    public interface InfoListener {
+        // Called on the search thread every time a line is finished - keep it quick
+        void lineFound(Line line);
+    }
+    
+    public ChessEngine() {
+        this(new Evaluation(), new TranspositionTable(16));
+    }
+    
+    public ChessEngine(Evaluation evaluation, TranspositionTable table) {
+        this.evaluation = evaluation;
+        this.table = table;
+        Metrics.watch(table);
+    }
+    
+    public TranspositionTable getTable() {
+        return table;
+    }
+    
+    public Evaluation getEvaluation() {
+        return evaluation;
+    }
+    
+    // Positions looked at in the last (or current) search
+    public long getNodes() {
+        return nodes;
+    }
+    
+    // Searches stop after about this many nodes (0 = no limit) - for fixed-effort analysis
+    public void setNodeLimit(long limit) {
+        nodeLimit = limit > 0 ? limit : Long.MAX_VALUE;
+    }
+    
+    // Can be called from any thread, the search stops within a few thousand nodes
+    public void stop() {
+        stopped = true;
+    }
+    
+    // search() doesn't clear the stop flag by itself, so a stop() that arrives just before a search
+    // starts still stops it. Call this first, before deciding what to search.
+    public void clearStop() {
+        stopped = false;
+    }
+    
+    public boolean isStopped() {
+        return stopped;
+    }
+    
+    public static String moveToText(int move) {
+        return ChessBoard.moveToNotation(move);
+    }
+    
+    // "+0.35", "-1.20", "mate 3", "mate -2" (always from the side to move)
+    public static String scoreToText(int score) {
+        if (Math.abs(score) > MATE - MAX_PLY) {
+            int plies = MATE - Math.abs(score);
+            int movesToMate = (plies + 1) / 2;
+            return "mate " + (score > 0 ? movesToMate : -movesToMate);
+        }
+        return String.format("%+.2f", score / 100.0);
+    }
+    
+    // Searches the position on the board (it's used as scratch paper, but it's put back how it was)
+    // Goes up to maxDepth, or stops after millis (0 = no limit), the node limit or when stop() is called.
+    // multiPv is how many different best lines to find. Returns the lines from the deepest
+    // search that finished (or whatever it had if it was stopped straight away).
+    public List<Line> search(ChessBoard board, int maxDepth, int multiPv, long millis, InfoListener listener) {
+        this.board = board;
+        nodes = 0;
+        nodesReported = 0;
+        long start = System.nanoTime();
+        deadline = millis > 0 ? start + millis * 1_000_000 : Long.MAX_VALUE;
+        for (int[] killer : killers) {
+            killer[0] = -1;
+            killer[1] = -1;
+        }
+        
+        int rootCount = board.generateMoves(moves[0]);
+        int[] rootMoves = Arrays.copyOf(moves[0], rootCount);
+        multiPv = Math.max(1, Math.min(multiPv, rootCount));
+        List<Line> best = new ArrayList<>();
+        
+        for (int depth = 1; depth <= Math.min(maxDepth, MAX_DEPTH) && rootCount > 0; depth++) {
+            List<Line> lines = new ArrayList<>();
+            int[] excluded = new int[multiPv];
+            for (int rank = 1; rank <= multiPv; rank++) {
+                int score = searchRoot(rootMoves, depth, excluded, rank - 1);
+                if (pvLength[0] == 0 || (stopped && !(best.isEmpty() && rank == 1))) {
+                    break; // didn't finish (a half done line at depth 1 is still better than nothing)
+                }
+                Line line = new Line(depth, rank, score, Arrays.copyOf(pv[0], pvLength[0]),
+                                     nodes, (System.nanoTime() - start) / 1_000_000);
+                lines.add(line);
+                excluded[rank - 1] = line.bestMove();
+                if (listener != null) {
+                    listener.lineFound(line);
+                }
+                if (stopped) {
+                    break;
+                }
+            }
+            
+            if (lines.size() == multiPv || best.isEmpty()) {
+                best = lines;
+            }
+            if (stopped) {
+                break;
+            }
+            
+            // Search the best moves first next time, it makes the cutoffs happen sooner
+            for (int i = lines.size() - 1; i >= 0; i--) {
+                moveToFront(rootMoves, lines.get(i).bestMove());
+            }
+        }
+        reportMetrics();
+        return best;
+    }
+    
+    // Quick way to ask for a single move (-1 if there are no moves at all)
+    public int findBestMove(ChessBoard board, int maxDepth, long millis) {
+        List<Line> lines = search(board, maxDepth, 1, millis, null);
+        if (lines.isEmpty()) {
+            // Stopped before even one move was searched - any move beats none
+            int count = board.generateMoves(moves[0]);
+            return count > 0 ? moves[0][0] : -1;
+        }
+        return lines.get(0).bestMove();
+    }
+    
+    private static void moveToFront(int[] rootMoves, int move) {
+        for (int i = 0; i < rootMoves.length; i++) {
+            if (rootMoves[i] == move) {
+                System.arraycopy(rootMoves, 0, rootMoves, 1, i);
+                rootMoves[0] = move;
+                return;
+            }
+        }
+    }
+    
+    // The top of the tree - like negamax but skips moves that are already in a better line
+    private int searchRoot(int[] rootMoves, int depth, int[] excluded, int excludedCount) {
+        int alpha = -INFINITY;
+        int bestScore = -INFINITY;
+        pvLength[0] = 0;
+        
+        for (int move : rootMoves) {
+            if (contains(excluded, excludedCount, move)) {
+                continue;
+            }
+            int score = scoreMove(move, depth, 0, alpha, INFINITY);
+            if (stopped) {
+                break; // that move didn't finish, its score means nothing
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                alpha = Math.max(alpha, score);
+                updatePv(0, move);
+            }
+        }
+        return bestScore;
+    }
+    
+    private static boolean contains(int[] moves, int count, int move) {
+        for (int i = 0; i < count; i++) {
+            if (moves[i] == move) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Plays the move, searches what's after it and takes it back
+    // Taking the king ends the game right there, there's nothing to search after that
+    private int scoreMove(int move, int depth, int ply, int alpha, int beta) {
+        int to = ChessBoard.moveTo(move);
+        char captured = board.getPiece(to / 8, to % 8);
+        if (captured == 'k' || captured == 'K') {
+            pvLength[ply + 1] = 0;
+            return MATE - ply - 1;
+        }
+        board.playMove(move);
+        int score = -negamax(depth - 1, ply + 1, -beta, -alpha);
+        board.undoMove();
+        return score;
+    }
+    
+    private int negamax(int depth, int ply, int alpha, int beta) {
+        pvLength[ply] = 0;
+        if (depth <= 0 || ply >= MAX_PLY - 1) {
+            return quiesce(ply, alpha, beta);
+        }
+        if (countNode()) {
+            return 0;
+        }
+        
+        long hash = board.getHash();
+        long entry = table.probe(hash);
+        int ttMove = -1;
+        tableProbes++;
+        if (entry != 0) {
+            tableHits++;
+            ttMove = TranspositionTable.moveOf(entry);
+            if (TranspositionTable.depthOf(entry) >= depth) {
+                int score = scoreFromTable(TranspositionTable.scoreOf(entry), ply);
+                int flag = TranspositionTable.flagOf(entry);
+                if (flag == TranspositionTable.EXACT
+                        || (flag == TranspositionTable.LOWER && score >= beta)
+                        || (flag == TranspositionTable.UPPER && score <= alpha)) {
+                    if (ttMove >= 0) {
+                        pv[ply][0] = ttMove;
+                        pvLength[ply] = 1;
+                    }
+                    return score;
+                }
+            }
+        }
+        
+        int count = board.generateMoves(moves[ply]);
+        if (count == 0) {
+            return 0; // nothing can move - call it a draw
+        }
+        orderMoves(ply, count, ttMove, false);
+        
+        int originalAlpha = alpha;
+        int bestScore = -INFINITY;
+        int bestMove = -1;
+        for (int i = 0; i < count; i++) {
+            int move = pickMove(ply, i, count);
+            int score = scoreMove(move, depth, ply, alpha, beta);
+            if (stopped) {
+                return 0;
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                bestMove = move;
+                if (score > alpha) {
+                    alpha = score;
+                    updatePv(ply, move);
+                    if (alpha >= beta) {
+                        int to = ChessBoard.moveTo(move);
+                        if (board.getPiece(to / 8, to % 8) == ' ') {
+                            addKiller(ply, move);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        
+        int flag = bestScore >= beta ? TranspositionTable.LOWER
+                 : bestScore > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+        table.store(hash, bestMove, depth, flag, scoreToTable(bestScore, ply));
+        return bestScore;
+    }
+    
+    // Only captures from here on, until the position is quiet
+    private int quiesce(int ply, int alpha, int beta) {
+        pvLength[ply] = 0;
+        if (countNode()) {
+            return 0;
+        }
+        int standPat = evaluation.evaluateForSideToMove(board);
+        if (ply >= MAX_PLY - 1 || standPat >= beta) {
+            return standPat;
+        }
+        if (standPat > alpha) {
+            alpha = standPat;
+        }
+        
+        int count = orderMoves(ply, board.generateMoves(moves[ply]), -1, true);
+        for (int i = 0; i < count; i++) {
+            int move = pickMove(ply, i, count);
+            int score = scoreMove(move, 0, ply, alpha, beta);
+            if (stopped) {
+                return 0;
+            }
+            if (score > alpha) {
+                alpha = score;
+                updatePv(ply, move);
+                if (alpha >= beta) {
+                    break;
+                }
+            }
+        }
+        return alpha;
+    }
+    
+    // Counts the node and every so often checks the clock - returns true if we have to stop
+    private boolean countNode() {
+        if ((++nodes & 2047) == 0) {
+            reportMetrics();
+            if (System.nanoTime() > deadline || nodes >= nodeLimit) {
+                stopped = true;
+            }
+        }
+        return stopped;
+    }
+    
+    private void reportMetrics() {
+        Metrics.engineWork(nodes - nodesReported, tableProbes, tableHits);
+        nodesReported = nodes;
+        tableProbes = 0;
+        tableHits = 0;
+    }
+    
+    // Gives each move a sort key - best guess first, then captures, then killer moves
+    // With capturesOnly the quiet moves are dropped, returns how many moves are left
+    private int orderMoves(int ply, int count, int ttMove, boolean capturesOnly) {
+        int[] list = moves[ply];
+        int[] keys = moveOrder[ply];
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int move = list[i];
+            int from = ChessBoard.moveFrom(move);
+            int to = ChessBoard.moveTo(move);
+            char victim = board.getPiece(to / 8, to % 8);
+            int key;
+            if (move == ttMove) {
+                key = 1_000_000;
+            } else if (victim != ' ') {
+                char attacker = board.getPiece(from / 8, from % 8);
+                key = 100_000 + 100 * ORDER_VALUES[ORDER_PIECES.indexOf(Character.toLowerCase(victim))]
+                      - ORDER_VALUES[ORDER_PIECES.indexOf(Character.toLowerCase(attacker))];
+            } else if (capturesOnly) {
+                continue;
+            } else if (move == killers[ply][0] || move == killers[ply][1]) {
+                key = 90_000;
+            } else {
+                key = 0;
+            }
+            list[kept] = move;
+            keys[kept] = key;
+            kept++;
+        }
+        return kept;
+    }
+    
+    // Finds the best of the moves that are left and swaps it into place i
+    private int pickMove(int ply, int i, int count) {
+        int[] list = moves[ply];
+        int[] keys = moveOrder[ply];
+        int best = i;
+        for (int j = i + 1; j < count; j++) {
+            if (keys[j] > keys[best]) {
+                best = j;
+            }
+        }
+        int move = list[best];
+        list[best] = list[i];
+        list[i] = move;
+        int key = keys[best];
+        keys[best] = keys[i];
+        keys[i] = key;
+        return move;
+    }
+    
+    private void addKiller(int ply, int move) {
+        if (killers[ply][0] != move) {
+            killers[ply][1] = killers[ply][0];
+            killers[ply][0] = move;
+        }
+    }
+    
+    // This move followed by the best line from the next ply
+    private void updatePv(int ply, int move) {
+        pv[ply][0] = move;
+        int childLength = pvLength[ply + 1];
+        System.arraycopy(pv[ply + 1], 0, pv[ply], 1, childLength);
+        pvLength[ply] = childLength + 1;
+    }
+    
+    // Mate scores are stored as "mate from this position", not from where the search started
+    private static int scoreToTable(int score, int ply) {
+        if (score > MATE - MAX_PLY) {
+            return score + ply;
+        }
+        if (score < -MATE + MAX_PLY) {
+            return score - ply;
+        }
+        return score;
+    }
+    
+    private static int scoreFromTable(int score, int ply) {
+        if (score > MATE - MAX_PLY) {
+            return score - ply;
+        }
+        if (score < -MATE + MAX_PLY) {
+            return score + ply;
+        }
+        return score;
+    }
+}
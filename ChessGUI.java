@@ -1,18 +1,37 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // Main game window - this handles all the UI stuff for the chess board
+// The board itself belongs to the GameLoop - we only change it with game.submit(...)
+// and draw from the loop's snapshots, so clicks, network moves and clocks never fight over it
 public class ChessGUI extends JFrame {
-    private final ChessBoard board;
-    private final JButton[][] squares;
-    private JButton selectedSquare;
+    private final ChessBoard board; // only touch this inside game.submit(...)!
+    private final GameLoop game;
+    private final BoardView boardView;
+    private final AnalysisPanel analysisPanel = new AnalysisPanel();
+    private final ExplorerPanel explorerPanel = new ExplorerPanel();
     private int selectedRow = -1;
     private int selectedCol = -1;
     private final JLabel statusLabel;
-    private NetworkManager networkManager;
+    private volatile NetworkManager networkManager; // used from the game loop too
     private final GameSettings settings;
     private boolean isWhitePlayer = true; // In online mode: host=white, joiner=black
     
+    // Premoves - moves queued up during the opponent's turn, stored as (from * 64 + to)
+    // The game loop plays the first one the moment the opponent's move arrives,
+    // without waiting for the window to redraw or for us to react
+    private final Queue<Integer> premoves = new ConcurrentLinkedQueue<>();
+    
     // Timer stuff for timed matches
     private final JLabel whiteTimerLabel;
     private final JLabel blackTimerLabel;
@@ -22,19 +41,21 @@ public class ChessGUI extends JFrame {
     private Timer blackTimer;
     private int whiteTimeRemaining;
     private int blackTimeRemaining;
-    private boolean gameOver = false;
     
-    // Colors for the board - tried to make it look nice!
-    private static final Color LIGHT_SQUARE = new Color(240, 217, 181);
-    private static final Color DARK_SQUARE = new Color(181, 136, 99);
-    private static final Color SELECTED_COLOR = new Color(246, 246, 130);
-    private static final Color POSSIBLE_MOVE_COLOR = new Color(186, 202, 68);  
-    private static final Color CAPTURE_MOVE_COLOR = new Color(255, 100, 100); // red-ish for captures
+    // What the window is showing right now, so we only react to real changes
+    private final AtomicBoolean updateQueued = new AtomicBoolean(false);
+    private int shownPly = 0;
+    private long shownHash;
+    private boolean shownWhiteTurn = true;
+    private String shownResult;
     
     public ChessGUI(GameSettings settings, String hostIp) {
         this.settings = settings;
         board = new ChessBoard();
-        squares = new JButton[8][8];
+        game = new GameLoop(board);
+        shownHash = game.getSnapshot().getHash();
+        game.addListener(this::gameChanged);
+        game.start();
         
         // In online mode: host is always white, joiner is always black
         if (settings.isOnlineGame()) {
@@ -72,40 +93,13 @@ public class ChessGUI extends JFrame {
         topPanel.add(blackNameLabel, BorderLayout.WEST);
         topPanel.add(blackTimerLabel, BorderLayout.EAST);
         
-        // The actual chess board
-        JPanel boardPanel = new JPanel(new GridLayout(8, 8, 0, 0)); // 0 gaps so squares touch
-        boardPanel.setPreferredSize(new Dimension(640, 640));
-        boardPanel.setBorder(BorderFactory.createCompoundBorder(
+        // The actual chess board - one component that draws everything itself
+        boardView = new BoardView(game, this::handleSquareClick);
+        boardView.setBorder(BorderFactory.createCompoundBorder(
             BorderFactory.createLineBorder(new Color(101, 67, 33), 8), // border to make it look like wood
             BorderFactory.createLineBorder(new Color(139, 90, 43), 3)
         ));
         
-        for (int row = 0; row < 8; row++) {
-            for (int col = 0; col < 8; col++) {
-                JButton square = new JButton();
-                square.setFont(new Font("Arial Unicode MS", Font.PLAIN, 48));
-                square.setFocusPainted(false);
-                square.setOpaque(true);
-                square.setBorderPainted(false); // no borders so it looks cleaner
-                square.setContentAreaFilled(true);
-                square.setMargin(new Insets(0, 0, 0, 0));
-                
-                // Make the checkerboard pattern
-                if ((row + col) % 2 == 0) {
-                    square.setBackground(LIGHT_SQUARE);
-                } else {
-                    square.setBackground(DARK_SQUARE);
-                }
-                
-                final int r = row;
-                final int c = col;
-                square.addActionListener(e -> handleSquareClick(r, c));
-                
-                squares[row][col] = square;
-                boardPanel.add(square);
-            }
-        }
-        
         // White player panel at bottom
         JPanel bottomPanel = new JPanel(new BorderLayout());
         bottomPanel.setBackground(new Color(50, 50, 50));
@@ -139,10 +133,37 @@ public class ChessGUI extends JFrame {
         menuButton.setFont(new Font("Arial", Font.PLAIN, 12));
         menuButton.addActionListener(e -> backToMenu());
         
+        // No engine help for the people actually playing online (watching is fine)
+        JToggleButton analysisButton = new JToggleButton("Analysis");
+        analysisButton.setFont(new Font("Arial", Font.PLAIN, 12));
+        analysisButton.addActionListener(e -> setAnalysis(analysisButton.isSelected()));
+        
+        // Same for the opening explorer - it asks for a position index (made by PositionIndex) the first time
+        JToggleButton explorerButton = new JToggleButton("Explorer");
+        explorerButton.setFont(new Font("Arial", Font.PLAIN, 12));
+        explorerButton.addActionListener(e -> explorerButton.setSelected(setExplorer(explorerButton.isSelected())));
+        
+        // Saving and loading games is only for local games, online the moves belong to both players
+        JButton saveButton = new JButton("Save PGN");
+        saveButton.setFont(new Font("Arial", Font.PLAIN, 12));
+        saveButton.addActionListener(e -> savePgn());
+        
+        JButton openButton = new JButton("Open Game");
+        openButton.setFont(new Font("Arial", Font.PLAIN, 12));
+        openButton.addActionListener(e -> openGame());
+        
         controlPanel.add(statusLabel);
         controlPanel.add(Box.createHorizontalStrut(20));
         controlPanel.add(resetButton);
         controlPanel.add(menuButton);
+        if (!settings.isOnlineGame()) {
+            controlPanel.add(saveButton);
+            controlPanel.add(openButton);
+        }
+        if (!settings.isOnlineGame() || settings.isSpectator()) {
+            controlPanel.add(analysisButton);
+            controlPanel.add(explorerButton);
+        }
         
         // Combine bottom section
         JPanel bottomSection = new JPanel(new BorderLayout());
@@ -151,17 +172,28 @@ public class ChessGUI extends JFrame {
         bottomSection.add(controlPanel, BorderLayout.SOUTH);
         
         add(topPanel, BorderLayout.NORTH);
-        add(boardPanel, BorderLayout.CENTER);
+        add(boardView, BorderLayout.CENTER);
         add(bottomSection, BorderLayout.SOUTH);
+        JPanel sidePanel = new JPanel();
+        sidePanel.setLayout(new BoxLayout(sidePanel, BoxLayout.Y_AXIS));
+        sidePanel.setBackground(new Color(40, 40, 40));
+        analysisPanel.setVisible(false);
+        explorerPanel.setVisible(false);
+        sidePanel.add(analysisPanel);
+        sidePanel.add(explorerPanel);
+        add(sidePanel, BorderLayout.EAST);
         
-        updateBoard();
         pack();
         setLocationRelativeTo(null);
         setVisible(true);
         
         // Setup network if online game
         if (settings.isOnlineGame()) {
-            if (settings.isHost()) {
+            if (settings.isSpectator()) {
+                if (hostIp != null) {
+                    watchGame(hostIp);
+                }
+            } else if (settings.isHost()) {
                 hostGame();
             } else if (hostIp != null) {
                 joinGame(hostIp);
@@ -177,11 +209,19 @@ public class ChessGUI extends JFrame {
     }
     
     private void handleSquareClick(int row, int col) {
-        if (gameOver) return;
+        BoardSnapshot snapshot = game.getSnapshot();
+        if (snapshot.isGameOver()) return;
+        if (settings.isSpectator()) return; // spectators can only watch
+        
+        // Online and it's not our turn - clicks queue up premoves instead
+        if (settings.isOnlineGame() && snapshot.isWhiteTurn() != isWhitePlayer) {
+            handlePremoveClick(snapshot, row, col);
+            return;
+        }
         
         if (selectedRow == -1) {
             // First click - picking up a piece
-            char piece = board.getPiece(row, col);
+            char piece = snapshot.getPiece(row, col);
             if (piece != ' ') {
                 // Make sure they're moving their own piece
                 boolean isWhite = Character.isUpperCase(piece);
@@ -197,11 +237,10 @@ public class ChessGUI extends JFrame {
                 }
                 
                 // Make sure it's the right turn
-                if ((board.isWhiteTurn() && isWhite) || (!board.isWhiteTurn() && !isWhite)) {
+                if ((snapshot.isWhiteTurn() && isWhite) || (!snapshot.isWhiteTurn() && !isWhite)) {
                     selectedRow = row;
                     selectedCol = col;
-                    selectedSquare = squares[row][col];
-                    highlightSelected(row, col);
+                    highlightSelected(snapshot, row, col);
                 }
             }
         } else {
@@ -210,100 +249,166 @@ public class ChessGUI extends JFrame {
                 // Clicked same square - deselect
                 clearSelection();
             } else {
-                // Try to move the piece
-                boolean moved = board.movePiece(selectedRow, selectedCol, row, col);
-                if (moved) {
-                    // Send move to opponent if networked
-                    if (networkManager != null) {
-                        String move = positionToNotation(selectedRow, selectedCol) + 
-                                     positionToNotation(row, col);
-                        networkManager.sendMove(move);
+                // Try to move the piece - the game loop checks it again against the real board,
+                // in case a network move or the clock got there first
+                int fromRow = selectedRow;
+                int fromCol = selectedCol;
+                cancelPremoves(); // moving by hand replaces anything queued up
+                game.submit(() -> {
+                    if (game.getResult() == null && board.movePiece(fromRow, fromCol, row, col)) {
+                        // Send move to opponent if networked
+                        NetworkManager network = networkManager;
+                        if (network != null) {
+                            network.sendMove(board.getMoveAt(board.getPly()));
+                        }
                     }
-                    updateBoard();
-                    updateStatus();
-                    switchTimer();
-                    updatePlayerHighlight();
-                }
+                });
                 clearSelection();
             }
         }
     }
     
-    private void highlightSelected(int row, int col) {
-        selectedSquare.setBackground(SELECTED_COLOR);
-        
-        // Show all the places this piece can move
-        for (int r = 0; r < 8; r++) {
-            for (int c = 0; c < 8; c++) {
-                if (board.isValidMoveCheck(row, col, r, c)) {
-                    // Different color if it's a capture move
-                    boolean isCapture = board.getPiece(r, c) != ' ';
-                    Color originalColor = (r + c) % 2 == 0 ? LIGHT_SQUARE : DARK_SQUARE;
-                    Color highlightColor = isCapture ? CAPTURE_MOVE_COLOR : POSSIBLE_MOVE_COLOR;
-                    squares[r][c].setBackground(blendColors(originalColor, highlightColor));
-                }
+    // Premoves can't be checked yet (the opponent hasn't moved), so any square will do
+    // A piece can also be picked up where an earlier premove puts it
+    private void handlePremoveClick(BoardSnapshot snapshot, int row, int col) {
+        if (selectedRow == -1) {
+            char piece = snapshot.getPiece(row, col);
+            boolean ourPiece = piece != ' ' && Character.isUpperCase(piece) == isWhitePlayer;
+            if (ourPiece || premoveLandsOn(row * 8 + col)) {
+                selectedRow = row;
+                selectedCol = col;
+                boardView.setHighlights(row, col, 0, 0);
+            } else {
+                cancelPremoves(); // clicking anywhere else throws the premoves away
+            }
+        } else if (row == selectedRow && col == selectedCol) {
+            clearSelection();
+        } else {
+            premoves.add((selectedRow * 8 + selectedCol) * 64 + row * 8 + col);
+            clearSelection();
+            showPremoves();
+            // In case the opponent's move already landed and this snapshot is old
+            game.submit(this::playPremove);
+        }
+    }
+    
+    private boolean premoveLandsOn(int square) {
+        for (int move : premoves) {
+            if (move % 64 == square) {
+                return true;
             }
         }
+        return false;
     }
     
-    // Mix two colors together for the highlighting effect
-    private Color blendColors(Color base, Color overlay) {
-        int r = (int)(base.getRed() * 0.5 + overlay.getRed() * 0.5);
-        int g = (int)(base.getGreen() * 0.5 + overlay.getGreen() * 0.5);
-        int b = (int)(base.getBlue() * 0.5 + overlay.getBlue() * 0.5);
-        return new Color(r, g, b);
+    private void cancelPremoves() {
+        if (!premoves.isEmpty()) {
+            premoves.clear();
+            showPremoves();
+        }
     }
     
-    private void clearSelection() {
-        if (selectedSquare != null && selectedRow != -1) {
-            // Restore all squares to their original colors
-            for (int row = 0; row < 8; row++) {
-                for (int col = 0; col < 8; col++) {
-                    Color originalColor;
-                    if ((row + col) % 2 == 0) {
-                        originalColor = LIGHT_SQUARE;
-                    } else {
-                        originalColor = DARK_SQUARE;
-                    }
-                    squares[row][col].setBackground(originalColor);
-                    squares[row][col].setOpaque(true); // Ensure square is opaque
-                }
+    private void showPremoves() {
+        long squares = 0;
+        for (int move : premoves) {
+            squares |= (1L << (move / 64)) | (1L << (move % 64));
+        }
+        boardView.setPremoves(squares);
+    }
+    
+    // Runs on the game loop thread - plays the next premove if it's our turn
+    // If it isn't legal any more the rest are thrown away too, they were planned around it
+    private void playPremove() {
+        if (game.getResult() != null || board.isWhiteTurn() != isWhitePlayer) {
+            return;
+        }
+        Integer move = premoves.poll();
+        if (move == null) {
+            return;
+        }
+        
+        int from = move / 64;
+        int to = move % 64;
+        if (board.movePiece(from / 8, from % 8, to / 8, to % 8)) {
+            NetworkManager network = networkManager;
+            if (network != null) {
+                network.sendMove(board.getMoveAt(board.getPly()));
+            }
+        } else {
+            premoves.clear();
+        }
+        SwingUtilities.invokeLater(this::showPremoves);
+    }
+    
+    private void highlightSelected(BoardSnapshot snapshot, int row, int col) {
+        // Show all the places this piece can move
+        long moveTargets = snapshot.getTargets(row, col);
+        long captureTargets = 0;
+        for (long rest = moveTargets; rest != 0; rest &= rest - 1) {
+            int square = Long.numberOfTrailingZeros(rest);
+            // Different color if it's a capture move
+            if (snapshot.getPiece(square / 8, square % 8) != ' ') {
+                captureTargets |= 1L << square;
             }
         }
+        moveTargets &= ~captureTargets;
+        boardView.setHighlights(row, col, moveTargets, captureTargets);
+    }
+    
+    private void clearSelection() {
+        boardView.clearHighlights();
         selectedRow = -1;
         selectedCol = -1;
-        selectedSquare = null;
     }
     
-    private void updateBoard() {
-        for (int row = 0; row < 8; row++) {
-            for (int col = 0; col < 8; col++) {
-                char piece = board.getPiece(row, col);
-                squares[row][col].setText(getPieceSymbol(piece));
-            }
+    // Called on the game loop thread whenever it publishes a new snapshot
+    // Lots of changes in a row only queue up one update for the EDT
+    private void gameChanged(BoardSnapshot snapshot, long changedSquares) {
+        if (analysisPanel.isRunning()) {
+            analysisPanel.setPosition(board.toFEN()); // we're on the loop thread, so the board is ours
+        }
+        if (explorerPanel.isRunning()) {
+            explorerPanel.setPosition(board.toFEN());
+        }
+        if (updateQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::showLatestSnapshot);
         }
     }
     
-    private String getPieceSymbol(char piece) {
-        switch (piece) {
-            case 'K': return "♔";
-            case 'Q': return "♕";
-            case 'R': return "♖";
-            case 'B': return "♗";
-            case 'N': return "♘";
-            case 'P': return "♙";
-            case 'k': return "♚";
-            case 'q': return "♛";
-            case 'r': return "♜";
-            case 'b': return "♝";
-            case 'n': return "♞";
-            case 'p': return "♟";
-            default: return "";
+    private void showLatestSnapshot() {
+        updateQueued.set(false);
+        BoardSnapshot snapshot = game.getSnapshot();
+        
+        if (snapshot.getPly() != shownPly || snapshot.getHash() != shownHash) {
+            // Someone moved (or the board was resynced) - the piece we picked up might be gone
+            clearSelection();
+            shownPly = snapshot.getPly();
+            shownHash = snapshot.getHash();
+        }
+        if (snapshot.isWhiteTurn() != shownWhiteTurn) {
+            shownWhiteTurn = snapshot.isWhiteTurn();
+            if (!snapshot.isGameOver()) {
+                switchTimer();
+            }
+        }
+        
+        if (snapshot.isGameOver() && shownResult == null) {
+            shownResult = snapshot.getResult();
+            endGame(shownResult);
+        } else {
+            if (!snapshot.isGameOver()) {
+                shownResult = null;
+            }
+            updateStatus();
+            updatePlayerHighlight();
         }
     }
     
     private void updateStatus() {
-        if (board.isWhiteTurn()) {
+        BoardSnapshot snapshot = game.getSnapshot();
+        if (snapshot.isGameOver()) {
+            statusLabel.setText(snapshot.getResult());
+        } else if (snapshot.isWhiteTurn()) {
             statusLabel.setText("White's Turn");
         } else {
             statusLabel.setText("Black's Turn");
@@ -311,7 +416,7 @@ public class ChessGUI extends JFrame {
     }
     
     private void updatePlayerHighlight() {
-        if (board.isWhiteTurn()) {
+        if (game.getSnapshot().isWhiteTurn()) {
             whiteNameLabel.setForeground(Color.YELLOW);
             blackNameLabel.setForeground(Color.WHITE);
         } else {
@@ -320,12 +425,11 @@ public class ChessGUI extends JFrame {
         }
     }
     
+    // The network thread shows the "waiting for opponent" dialog with our IP,
+    // so nothing here blocks the window from showing up
     private void hostGame() {
         networkManager = new NetworkManager(true, this);
         networkManager.start();
-        JOptionPane.showMessageDialog(this, 
-            "Hosting game on port 5555\nYour IP: " + NetworkManager.getLocalIP(),
-            "Host Game", JOptionPane.INFORMATION_MESSAGE);
     }
     
     private void joinGame(String host) {
@@ -334,30 +438,238 @@ public class ChessGUI extends JFrame {
         networkManager.start();
     }
     
+    private void watchGame(String host) {
+        networkManager = new NetworkManager(false, this);
+        networkManager.setHost(host);
+        networkManager.setSpectator(true);
+        networkManager.start();
+    }
+    
     private void newGame() {
         stopTimers();
-        board.reset();
-        updateBoard();
-        updateStatus();
         clearSelection();
-        gameOver = false;
-        
+        cancelPremoves();
+        game.submit(() -> {
+            board.reset();
+            game.setResult(null);
+        });
+        resetClocks(true);
+    }
+    
+    private void resetClocks(boolean whiteToMove) {
         if (settings.isTimerEnabled()) {
             whiteTimeRemaining = settings.getTimePerPlayerSeconds();
             blackTimeRemaining = settings.getTimePerPlayerSeconds();
             whiteTimerLabel.setText(formatTime(whiteTimeRemaining));
             blackTimerLabel.setText(formatTime(blackTimeRemaining));
-            startWhiteTimer();
+            if (whiteToMove) {
+                startWhiteTimer();
+            } else {
+                startBlackTimer();
+            }
+        }
+    }
+    
+    // Saves the game so far - the moves are copied on the game loop, the file is written on its own thread
+    private void savePgn() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("game.pgn"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
         }
+        Path path = chooser.getSelectedFile().toPath();
         
-        updatePlayerHighlight();
+        game.submit(() -> {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Event", "Casual game");
+            headers.put("Date", new SimpleDateFormat("yyyy.MM.dd").format(new Date()));
+            headers.put("White", settings.getWhitePlayerName());
+            headers.put("Black", settings.getBlackPlayerName());
+            headers.put("Result", pgnResult());
+            String startFen = board.getStartFEN();
+            int[] moves = board.getMoves();
+            
+            new Thread(() -> {
+                try (PgnWriter writer = new PgnWriter(path)) {
+                    writer.write(headers, startFen, moves);
+                } catch (IOException e) {
+                    System.err.println("Couldn't save " + path + ": " + e.getMessage());
+                    showError("Couldn't save the game:\n" + e.getMessage());
+                }
+            }, "chess-save-pgn").start();
+        });
+    }
+    
+    // PGN result for the game on the board (game loop only)
+    // Nobody's won until a king is taken or a clock runs out - and then it's the side to move who lost
+    private String pgnResult() {
+        boolean whiteKing = false;
+        boolean blackKing = false;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                whiteKing |= board.getPiece(row, col) == 'K';
+                blackKing |= board.getPiece(row, col) == 'k';
+            }
+        }
+        if (!whiteKing || !blackKing) {
+            return whiteKing ? "1-0" : "0-1";
+        }
+        if (game.getResult() != null) {
+            return board.isWhiteTurn() ? "0-1" : "1-0";
+        }
+        return "*";
+    }
+    
+    // Loads a game and carries on from its last position - the first game of a PGN file,
+    // or any game from a game archive (.games file)
+    // Reading and checking the moves happens on its own thread, the board only gets the finished game
+    private void openGame() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path path = chooser.getSelectedFile().toPath();
+        if (path.getFileName().toString().endsWith(".games")) {
+            openArchivedGame(path);
+            return;
+        }
+        
+        new Thread(() -> {
+            ChessBoard loaded = new ChessBoard();
+            try (PgnReader reader = new PgnReader(path)) {
+                PgnGame pgn = reader.next();
+                if (pgn == null) {
+                    showError("There's no game in " + path.getFileName());
+                    return;
+                }
+                pgn.replay(loaded);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Couldn't open " + path + ": " + e.getMessage());
+                showError("Couldn't open the game:\n" + e.getMessage());
+                return;
+            }
+            showLoadedGame(loaded);
+        }, "chess-open-game").start();
+    }
+    
+    private void openArchivedGame(Path path) {
+        GameArchive archive;
+        try {
+            archive = GameArchive.openForReading(path);
+        } catch (IOException e) {
+            showError("Couldn't open the archive:\n" + e.getMessage());
+            return;
+        }
+        if (archive.size() == 0) {
+            showError("There's no game in " + path.getFileName());
+            closeQuietly(archive);
+            return;
+        }
+        String answer = JOptionPane.showInputDialog(this, "Game number (1 - " + archive.size() + "):", archive.size());
+        long number;
+        try {
+            number = answer == null ? -1 : Long.parseLong(answer.trim());
+        } catch (NumberFormatException e) {
+            number = 0;
+        }
+        if (number < 1 || number > archive.size()) {
+            if (answer != null) {
+                showError("There's no game " + answer.trim());
+            }
+            closeQuietly(archive);
+            return;
+        }
+        
+        long id = number - 1;
+        new Thread(() -> {
+            ChessBoard loaded = new ChessBoard();
+            try {
+                archive.get(id).replay(loaded);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Couldn't open game " + (id + 1) + " of " + path + ": " + e.getMessage());
+                showError("Couldn't open the game:\n" + e.getMessage());
+                return;
+            } finally {
+                closeQuietly(archive);
+            }
+            showLoadedGame(loaded);
+        }, "chess-open-game").start();
+    }
+    
+    private static void closeQuietly(GameArchive archive) {
+        try {
+            archive.close();
+        } catch (IOException e) {
+            System.err.println("Error closing archive: " + e.getMessage());
+        }
+    }
+    
+    // Puts a game that was read in on the board (any thread)
+    private void showLoadedGame(ChessBoard loaded) {
+        SwingUtilities.invokeLater(() -> {
+            stopTimers();
+            clearSelection();
+            cancelPremoves();
+            String startFen = loaded.getStartFEN();
+            int[] moves = loaded.getMoves();
+            game.submit(() -> {
+                board.loadFEN(startFen);
+                for (int move : moves) {
+                    board.playMove(move);
+                }
+                game.setResult(null);
+            });
+            resetClocks(loaded.isWhiteTurn());
+        });
+    }
+    
+    private void showError(String message) {
+        SwingUtilities.invokeLater(() ->
+            JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE));
+    }
+    
+    private void setAnalysis(boolean on) {
+        analysisPanel.setRunning(on);
+        analysisPanel.setVisible(on);
+        if (on) {
+            game.submit(() -> analysisPanel.setPosition(board.toFEN()));
+        }
+        pack(); // make room for the panel (or give it back)
+    }
+    
+    // Returns whether the explorer ended up on (not if they cancel picking an index)
+    private boolean setExplorer(boolean on) {
+        if (on && !explorerPanel.hasIndex()) {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setDialogTitle("Pick a position index");
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return false;
+            }
+            try {
+                explorerPanel.setIndex(new PositionIndex(chooser.getSelectedFile().toPath()));
+            } catch (IOException e) {
+                showError("Couldn't open the position index:\n" + e.getMessage());
+                return false;
+            }
+        }
+        explorerPanel.setRunning(on);
+        explorerPanel.setVisible(on);
+        if (on) {
+            game.submit(() -> explorerPanel.setPosition(board.toFEN()));
+        }
+        pack();
+        return on;
     }
     
     private void backToMenu() {
         stopTimers();
+        analysisPanel.setRunning(false);
+        explorerPanel.setRunning(false);
         if (networkManager != null) {
             networkManager.close();
         }
+        boardView.detach();
+        game.close();
         dispose();
         SwingUtilities.invokeLater(() -> new MainMenu());
     }
@@ -372,7 +684,7 @@ public class ChessGUI extends JFrame {
                 whiteTimerLabel.setForeground(Color.RED);
             }
             if (whiteTimeRemaining <= 0) {
-                endGame(settings.getBlackPlayerName() + " wins - Time out!");
+                flagFell(settings.getBlackPlayerName() + " wins - Time out!");
             }
         });
         whiteTimer.start();
@@ -387,7 +699,7 @@ public class ChessGUI extends JFrame {
                 blackTimerLabel.setForeground(Color.RED);
             }
             if (blackTimeRemaining <= 0) {
-                endGame(settings.getWhitePlayerName() + " wins - Time out!");
+                flagFell(settings.getWhitePlayerName() + " wins - Time out!");
             }
         });
         blackTimer.start();
@@ -405,7 +717,7 @@ public class ChessGUI extends JFrame {
     private void switchTimer() {
         if (!settings.isTimerEnabled()) return;
         
-        if (board.isWhiteTurn()) {
+        if (game.getSnapshot().isWhiteTurn()) {
             startWhiteTimer();
             blackTimerLabel.setForeground(new Color(200, 200, 200));
         } else {
@@ -414,8 +726,17 @@ public class ChessGUI extends JFrame {
         }
     }
     
+    // Out of time - the game loop decides, so a move that got in first still counts
+    private void flagFell(String message) {
+        stopTimers();
+        game.submit(() -> {
+            if (game.getResult() == null) {
+                game.setResult(message);
+            }
+        });
+    }
+    
     private void endGame(String message) {
-        gameOver = true;
         stopTimers();
         statusLabel.setText(message);
         JOptionPane.showMessageDialog(this, message, "Game Over", JOptionPane.INFORMATION_MESSAGE);
@@ -428,35 +749,43 @@ public class ChessGUI extends JFrame {
         return String.format("%02d:%02d", minutes, secs);
     }
     
-    public void applyNetworkMove(String move) {
-        if (move.length() == 4) {
-            int fromRow = notationToRow(move.charAt(1));
-            int fromCol = notationToCol(move.charAt(0));
-            int toRow = notationToRow(move.charAt(3));
-            int toCol = notationToCol(move.charAt(2));
-            
-            board.applyMove(fromRow, fromCol, toRow, toCol);
-            
-            SwingUtilities.invokeLater(() -> {
-                updateBoard();
-                updateStatus();
-                switchTimer();
-                updatePlayerHighlight();
-            });
+    // Called on the game loop thread when the opponent sends a move (like "e2e4")
+    // Returns false if the move is broken or illegal - then the board is left untouched
+    // The window catches up by itself when the loop publishes the new snapshot
+    public boolean applyNetworkMove(String move) {
+        // The opponent can only move on their own turn
+        if (board.isWhiteTurn() == isWhitePlayer) {
+            return false;
         }
+        
+        // movePiece checks the move the same way it does for our own clicks
+        if (!board.movePiece(move)) {
+            return false;
+        }
+        
+        // Our premove goes right after the network code has finished with their move
+        if (!premoves.isEmpty()) {
+            game.submit(this::playPremove);
+        }
+        return true;
     }
     
-    private String positionToNotation(int row, int col) {
-        char colChar = (char) ('a' + col);
-        char rowChar = (char) ('8' - row);
-        return "" + colChar + rowChar;
+    // Shows things like "Reconnecting..." while the connection is down
+    public void showNetworkStatus(String text) {
+        SwingUtilities.invokeLater(() -> {
+            if (text == null) {
+                updateStatus();
+            } else {
+                statusLabel.setText(text);
+            }
+        });
     }
     
-    private int notationToRow(char rowChar) {
-        return '8' - rowChar;
+    public GameLoop getGame() {
+        return game;
     }
     
-    private int notationToCol(char colChar) {
-        return colChar - 'a';
+    public GameSettings getSettings() {
+        return settings;
     }
 }
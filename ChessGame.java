@@ -1,13 +1,46 @@
 import javax.swing.*;
 
 // Main class - this is where the program starts
+//
+// Usage: java ChessGame [options]
+//   uci                    run just the engine for chess GUIs, no window (see UciEngine)
+//   --fast-start           skip the system look and feel, the slowest thing before the menu shows
+//   --exit-after-startup   quit once the menu is up and the background setup is done
+//                          (the training run for the class data sharing archive, see build-cds.sh)
 public class ChessGame {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        // "java ChessGame uci" runs just the engine for chess GUIs, no window
+        if (args.length > 0 && args[0].equals("uci")) {
+            UciEngine.main(args);
+            return;
+        }
+        
+        Startup.mark("main");
+        boolean systemLookAndFeel = true;
+        for (String arg : args) {
+            switch (arg) {
+                case "--fast-start": systemLookAndFeel = false; break;
+                case "--exit-after-startup": Startup.exitWhenFinished(); break;
+                default:
+                    // Launchers and IDEs pass things of their own (like -psn_... on a Mac), so just carry on
+                    System.err.println("Ignoring unknown option: " + arg);
+            }
+        }
+        
+        // None of this is needed to show the menu, so it waits until the menu is up
+        Metrics.watchEventQueue();
+        Startup.later(Metrics::start);
+        Startup.later(ChessGame::warmUp);
+        
         // Try to use the system's look and feel so it looks native
-        try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {
-            // If it doesn't work, just use default
+        // (it has to be set before any windows are made, so it can't wait)
+        if (systemLookAndFeel) {
+            try {
+                UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+            } catch (Exception e) {
+                // If it doesn't work, just use default
+            }
+            Startup.mark("look and feel");
         }
         
         // Start the main menu
@@ -15,4 +48,22 @@ public class ChessGame {
             new MainMenu();
         });
     }
+    
+    // Runs everything the first game needs once, so starting it (and turning on analysis) doesn't
+    // stall while classes load, the engine gets compiled and the piece font is found.
+    // The game screen's classes are loaded too, which also puts them in the class data sharing archive.
+    private static void warmUp() {
+        ChessBoard board = new ChessBoard();
+        new ChessEngine(new Evaluation(), new TranspositionTable(1)).search(board, 4, 1, 200, null);
+        BoardView.buildSprites(64);
+        String[] gameClasses = {"ChessGUI", "GameLoop", "BoardSnapshot", "AnalysisPanel", "ExplorerPanel",
+                                "NetworkManager", "SpectatorHub", "PgnReader", "PgnWriter"};
+        for (String name : gameClasses) {
+            try {
+                Class.forName(name, false, ChessGame.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                System.err.println("Couldn't load " + name + ": " + e.getMessage());
+            }
+        }
+    }
 }
@@ -0,0 +1,520 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+// Headless game server - hosts lots of games at once without any windows
+// Speaks the same one-line-per-message protocol as NetworkManager, so a normal
+// joiner can play on it, plus a couple of extras:
+//   HELLO <ply> <hash> [any]  - first line from a player, "any" means either colour is fine
+//                               (without it you get black, like when joining a normal host)
+//   HELLO 0 <hash> <w|b> <id> - the server's answer once you have an opponent
+//   WATCH <id>                - first line from a spectator, watch game number <id>
+//   PONG <token>              - answer to our "PING <token>", used to time the round trip
+//
+// Give it a GameArchive and every game is saved there when it ends.
+// The server keeps its own ChessBoard per game and checks every move before passing it on,
+// so a broken or cheating client can't mess up the game for the other player.
+// Everything runs on one thread with non-blocking sockets.
+public class ChessServer extends Thread {
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final GameArchive archive; // null if finished games aren't kept
+    private volatile boolean running = true;
+    
+    private final Map<Integer, Game> games = new HashMap<>();
+    private final Deque<Connection> waitingAny = new ArrayDeque<>();   // happy with either colour
+    private final Deque<Connection> waitingBlack = new ArrayDeque<>(); // normal joiners, they expect black
+    private int nextGameId = 1;
+    private long nextPingAt;
+    
+    // Counters for anyone who wants to watch the server (only written by the server thread)
+    private volatile int playerCount;
+    private volatile int spectatorCount;
+    private volatile long movesRelayed;
+    
+    private static final int MAX_LINE = 1024;
+    private static final int MAX_QUEUED_BYTES = 64 * 1024; // a player this far behind isn't reading, drop them
+    private static final int PING_MILLIS = 5000;
+    private static final ByteBuffer BYE = encode("BYE");
+    
+    private static class Game {
+        final int id;
+        final ChessBoard board = new ChessBoard();
+        Connection white;
+        Connection black;
+        final List<Connection> spectators = new ArrayList<>();
+        ByteBuffer latestFrame; // the current board as a SYNC line, shared by every spectator
+        
+        Game(int id) {
+            this.id = id;
+        }
+    }
+    
+    private static class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int queuedBytes;
+        boolean greeted;      // has sent its first line (even if we turned it away)
+        boolean player;       // said HELLO, so it's in playerCount
+        boolean spectator;
+        boolean white;
+        boolean closeWhenSent;
+        Game game;
+        ByteBuffer lastFrame; // spectators only - the frame we last started sending
+        
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+    
+    public ChessServer(int port) throws IOException {
+        this(port, null);
+    }
+    
+    public ChessServer(int port, GameArchive archive) throws IOException {
+        super("chess-server");
+        this.archive = archive;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5555;
+        GameArchive archive = args.length > 1 ? new GameArchive(Paths.get(args[1])) : null;
+        ChessServer server = new ChessServer(port, archive);
+        Metrics.start();
+        System.out.println("Chess server listening on port " + port);
+        if (archive != null) {
+            System.out.println("Saving finished games to " + args[1] + " (" + archive.size() + " so far)");
+        }
+        server.start();
+    }
+    
+    public int getPlayerCount() {
+        return playerCount;
+    }
+    
+    public int getSpectatorCount() {
+        return spectatorCount;
+    }
+    
+    public long getMovesRelayed() {
+        return movesRelayed;
+    }
+    
+    @Override
+    public void run() {
+        nextPingAt = System.currentTimeMillis() + PING_MILLIS;
+        try {
+            while (running) {
+                selector.select(PING_MILLIS);
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(c);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(c);
+                    }
+                }
+                
+                // Keep the players' connections alive (NetworkManager gives up after 15 quiet seconds)
+                long now = System.currentTimeMillis();
+                if (now >= nextPingAt) {
+                    nextPingAt = now + PING_MILLIS;
+                    // Players that know about PONG send the time straight back, which times the round trip
+                    ByteBuffer ping = encode("PING " + System.nanoTime());
+                    for (Game game : games.values()) {
+                        send(game.white, ping);
+                        send(game.black, ping);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+        } finally {
+            // Games still going when the server stops are kept too (with no result)
+            for (Game game : games.values()) {
+                saveGame(game);
+            }
+            if (archive != null) {
+                try {
+                    archive.flush();
+                } catch (IOException e) {
+                    System.err.println("Error saving game archive: " + e.getMessage());
+                }
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server: " + e.getMessage());
+            }
+        }
+    }
+    
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+    
+    // Reads whatever arrived and handles every complete line
+    private void read(Connection c) {
+        try {
+            if (c.channel.read(c.in) < 0) {
+                disconnect(c);
+                return;
+            }
+        } catch (IOException e) {
+            disconnect(c);
+            return;
+        }
+        
+        c.in.flip();
+        int lineStart = 0;
+        for (int i = 0; i < c.in.limit(); i++) {
+            if (c.in.get(i) == '\n') {
+                String line = new String(c.in.array(), lineStart, i - lineStart, StandardCharsets.UTF_8).trim();
+                lineStart = i + 1;
+                if (!line.isEmpty()) {
+                    handleLine(c, line);
+                }
+                if (!c.channel.isOpen()) {
+                    return;
+                }
+            }
+        }
+        c.in.position(lineStart);
+        c.in.compact();
+        
+        if (!c.in.hasRemaining()) {
+            // A whole buffer without a newline - not one of our messages
+            disconnect(c);
+        }
+    }
+    
+    private void handleLine(Connection c, String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (!c.greeted) {
+                greet(c, parts);
+                return;
+            }
+            if (c.spectator) {
+                return; // spectators don't get a say
+            }
+            
+            Game game = c.game;
+            switch (parts[0]) {
+                case "MOVE":
+                    if (game != null) {
+                        handleMove(c, game, line, Integer.parseInt(parts[1]), parts[2],
+                                   Long.parseUnsignedLong(parts[3], 16));
+                    }
+                    break;
+                case "RESYNC":
+                    if (game != null) {
+                        handleResync(c, game, parts);
+                    }
+                    break;
+                case "HELLO":
+                    // Already playing - if their board is different just send ours
+                    if (game != null && (Integer.parseInt(parts[1]) != game.board.getPly()
+                            || Long.parseUnsignedLong(parts[2], 16) != game.board.getHash())) {
+                        send(c, syncFrame(game));
+                    }
+                    break;
+                case "BYE":
+                    disconnect(c);
+                    break;
+                case "PING":
+                    if (parts.length > 1) {
+                        send(c, encode("PONG " + parts[1]));
+                    }
+                    break;
+                case "PONG":
+                    Metrics.roundTrip(System.nanoTime() - Long.parseLong(parts[1]));
+                    break;
+                case "ERROR":
+                    break;
+                default:
+                    send(c, encode("ERROR unknown message " + parts[0]));
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            send(c, encode("ERROR bad message " + parts[0]));
+        }
+    }
+    
+    private void greet(Connection c, String[] parts) {
+        c.greeted = true;
+        if (parts[0].equals("WATCH")) {
+            Game game = games.get(Integer.parseInt(parts[1]));
+            if (game == null) {
+                c.closeWhenSent = true;
+                send(c, encode("ERROR no game " + parts[1]));
+                return;
+            }
+            c.spectator = true;
+            c.game = game;
+            game.spectators.add(c);
+            spectatorCount++;
+            Metrics.spectatorJoined();
+            sendFrame(c);
+        } else if (parts[0].equals("HELLO")) {
+            c.player = true;
+            playerCount++;
+            Metrics.connectionOpened();
+            boolean any = parts.length > 3 && parts[3].equals("any");
+            findOpponent(c, any);
+        } else {
+            c.closeWhenSent = true;
+            send(c, encode("ERROR expected HELLO or WATCH"));
+        }
+    }
+    
+    private void findOpponent(Connection c, boolean any) {
+        Connection opponent = waitingBlack.poll();
+        if (opponent != null && any) {
+            startGame(c, opponent);
+        } else {
+            if (opponent != null) {
+                waitingBlack.addFirst(opponent); // two players who both want black
+            }
+            opponent = waitingAny.poll();
+            if (opponent != null) {
+                startGame(opponent, c);
+            } else if (any) {
+                waitingAny.add(c);
+            } else {
+                waitingBlack.add(c);
+            }
+        }
+    }
+    
+    private void startGame(Connection white, Connection black) {
+        Game game = new Game(nextGameId++);
+        game.white = white;
+        game.black = black;
+        white.game = game;
+        white.white = true;
+        black.game = game;
+        games.put(game.id, game);
+        
+        String hash = Long.toHexString(game.board.getHash());
+        send(white, encode("HELLO 0 " + hash + " w " + game.id));
+        send(black, encode("HELLO 0 " + hash + " b " + game.id));
+        game.latestFrame = syncFrame(game);
+    }
+    
+    private void handleMove(Connection c, Game game, String line, int ply, String move, long hash) {
+        boolean theirTurn = game.board.isWhiteTurn() == c.white;
+        if (!theirTurn || ply != game.board.getPly() + 1 || !game.board.movePiece(move)) {
+            send(c, encode("ERROR illegal move " + move));
+            send(c, syncFrame(game));
+            return;
+        }
+        movesRelayed++;
+        
+        // The move is fine - pass their exact line on and update the spectators
+        send(c.white ? game.black : game.white, encode(line));
+        if (game.board.getHash() != hash) {
+            send(c, syncFrame(game)); // legal move, but their board was already off
+        }
+        
+        game.latestFrame = syncFrame(game);
+        for (int i = game.spectators.size() - 1; i >= 0; i--) {
+            sendFrame(game.spectators.get(i));
+        }
+    }
+    
+    // Same answers a NetworkManager gives
+    private void handleResync(Connection c, Game game, String[] parts) {
+        ChessBoard board = game.board;
+        if (parts[1].equals("FULL")) {
+            send(c, syncFrame(game));
+            return;
+        }
+        int ply = Integer.parseInt(parts[1]);
+        if (!board.hasPly(ply) || board.getHashAt(ply) != Long.parseUnsignedLong(parts[2], 16)) {
+            send(c, syncFrame(game));
+            return;
+        }
+        StringBuilder reply = new StringBuilder("MOVES ");
+        reply.append(ply).append(' ').append(Long.toHexString(board.getHash()));
+        for (int i = ply + 1; i <= board.getPly(); i++) {
+            reply.append(' ').append(board.getMoveAt(i));
+        }
+        send(c, encode(reply.toString()));
+    }
+    
+    private ByteBuffer syncFrame(Game game) {
+        return encode("SYNC " + game.board.getPly() + " " + game.board.toFEN());
+    }
+    
+    private static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+    
+    // Queues a message - shared buffers are fine, every connection gets its own view
+    private void send(Connection c, ByteBuffer message) {
+        if (c == null || !c.channel.isOpen()) {
+            return;
+        }
+        c.out.add(message.duplicate());
+        c.queuedBytes += message.remaining();
+        if (c.queuedBytes > MAX_QUEUED_BYTES) {
+            disconnect(c);
+            return;
+        }
+        flush(c);
+    }
+    
+    // Spectators never queue up - if they're still busy they get the newest board when they're done
+    private void sendFrame(Connection c) {
+        if (c.out.isEmpty() && c.lastFrame != c.game.latestFrame && c.game.latestFrame != null) {
+            c.lastFrame = c.game.latestFrame;
+            send(c, c.lastFrame);
+        }
+    }
+    
+    private void flush(Connection c) {
+        try {
+            while (!c.out.isEmpty()) {
+                ByteBuffer head = c.out.peek();
+                int written = c.channel.write(head);
+                c.queuedBytes -= written;
+                if (head.hasRemaining()) {
+                    c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                c.out.poll();
+            }
+            c.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            disconnect(c);
+            return;
+        }
+        
+        if (c.closeWhenSent) {
+            disconnect(c);
+        } else if (c.spectator) {
+            sendFrame(c); // catch up to the newest board
+        }
+    }
+    
+    private void disconnect(Connection c) {
+        if (!c.channel.isOpen()) {
+            return;
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        
+        if (c.spectator) {
+            c.game.spectators.remove(c);
+            spectatorCount--;
+            Metrics.spectatorLeft();
+            return;
+        }
+        if (!c.player) {
+            return; // never said HELLO (or was turned away), so it was never counted
+        }
+        playerCount--;
+        Metrics.connectionClosed();
+        
+        Game game = c.game;
+        if (game == null) {
+            waitingAny.remove(c);
+            waitingBlack.remove(c);
+            return;
+        }
+        
+        // A player left, so the game is over - tell everyone still in it
+        // (the opponent's own disconnect comes back through here once their BYE is sent, it's already over by then)
+        if (games.remove(game.id) == null) {
+            return;
+        }
+        saveGame(game);
+        Connection opponent = c.white ? game.black : game.white;
+        if (opponent.channel.isOpen()) {
+            opponent.closeWhenSent = true;
+            send(opponent, BYE);
+        }
+        for (Connection spectator : new ArrayList<>(game.spectators)) {
+            disconnect(spectator);
+        }
+    }
+    
+    // Puts a finished game in the archive (if there's one and anybody actually moved)
+    private void saveGame(Game game) {
+        if (archive == null || game.board.getPly() == 0) {
+            return;
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Event", "Server game");
+        headers.put("Date", new SimpleDateFormat("yyyy.MM.dd").format(new Date()));
+        headers.put("Round", String.valueOf(game.id));
+        headers.put("Result", result(game.board));
+        try {
+            archive.add(headers, game.board.getStartFEN(), game.board.getMoves());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Couldn't archive game " + game.id + ": " + e.getMessage());
+        }
+    }
+    
+    // Without check there's no checkmate - someone's won if a king has been taken, otherwise nobody knows
+    private static String result(ChessBoard board) {
+        boolean whiteKing = false;
+        boolean blackKing = false;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                whiteKing |= board.getPiece(row, col) == 'K';
+                blackKing |= board.getPiece(row, col) == 'k';
+            }
+        }
+        if (whiteKing && blackKing) {
+            return "*";
+        }
+        return whiteKing ? "1-0" : "0-1";
+    }
+}
@@ -0,0 +1,628 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Plays two engine setups against each other until it's clear which one is stronger
+// Used to check that a change to the engine or the evaluation actually helps before keeping it.
+//
+// Usage: java EngineMatch [options]
+//   --first <setup>      the new version, e.g. "weights=tuned.txt" (default: the normal engine)
+//   --second <setup>     what it's compared against (default: the normal engine)
+//   --tc <sec+inc>       clock for each side, e.g. 10+0.1 (default), or 0 for no clock
+//   --games <n>          most games to play before giving up (default 20000)
+//   --threads <n>        games played at once (default: number of cores)
+//   --openings <file>    start from these positions - a .pgn file (the first few moves of each
+//                        game) or one FEN/EPD per line (default: a built-in list of main lines)
+//   --plies <n>          how many moves to take from each PGN game (default 8)
+//   --balance <cp>       leave out openings the engine thinks are worse than this for one side (default 150)
+//   --elo0 <elo>         the change is no better than this... (default 0)
+//   --elo1 <elo>         ...or it's at least this much better (default 5)
+//   --alpha <p>          chance of saying it's better when it isn't (default 0.05)
+//   --beta <p>           chance of missing it when it is (default 0.05)
+//   --archive <file>     put every game in this game archive
+//
+// A setup is a comma separated list: name=..., weights=<file>, depth=<n>, nodes=<n>, hash=<mb>
+//
+// Every opening is played twice with the colours swapped, so neither side gets the lucky openings.
+// The match stops as soon as the sequential probability ratio test (SPRT) can decide between
+// elo0 and elo1, which usually takes far fewer games than a fixed number would. Pairs of games
+// are scored together (0, 0.5, 1, 1.5 or 2 points) since both games of a pair share an opening.
+//
+// Each thread has its own board, its own two engines and their hash tables, so the games never
+// wait for each other - the only things shared are the game counter and the queue of results.
+public class EngineMatch {
+    private static final int REPORT_MILLIS = 5000;
+    private static final int MAX_PLIES = 500;        // a game this long is called a draw
+    private static final int ADJUDICATE_SCORE = 1000; // both engines agree someone's this far ahead...
+    private static final int ADJUDICATE_PLIES = 8;    // ...for this many moves in a row, so stop there
+    private static final int BALANCE_DEPTH = 5;
+    
+    // Main lines from the start position, roughly equal for both sides
+    private static final String[] BUILT_IN_OPENINGS = {
+        "e4 e5 Nf3 Nc6 Bb5 a6",
+        "e4 e5 Nf3 Nc6 Bc4 Bc5",
+        "e4 e5 Nf3 Nc6 d4 exd4 Nxd4",
+        "e4 e5 Nf3 Nf6",
+        "e4 e5 Nc3 Nf6 f4",
+        "e4 c5 Nf3 d6 d4 cxd4 Nxd4 Nf6 Nc3",
+        "e4 c5 Nf3 Nc6 d4 cxd4 Nxd4",
+        "e4 c5 Nf3 e6 d4 cxd4 Nxd4",
+        "e4 c5 Nc3 Nc6 g3",
+        "e4 c5 c3 Nf6 e5 Nd5",
+        "e4 e6 d4 d5 Nc3 Nf6",
+        "e4 e6 d4 d5 e5 c5",
+        "e4 c6 d4 d5 Nc3 dxe4 Nxe4",
+        "e4 d5 exd5 Qxd5 Nc3 Qa5",
+        "e4 d6 d4 Nf6 Nc3 g6",
+        "e4 Nf6 e5 Nd5 d4 d6",
+        "d4 d5 c4 e6 Nc3 Nf6",
+        "d4 d5 c4 c6 Nf3 Nf6",
+        "d4 d5 c4 dxc4 Nf3 Nf6",
+        "d4 d5 Nf3 Nf6 Bf4",
+        "d4 Nf6 c4 e6 Nc3 Bb4",
+        "d4 Nf6 c4 e6 Nf3 b6",
+        "d4 Nf6 c4 g6 Nc3 Bg7 e4 d6",
+        "d4 Nf6 c4 g6 Nc3 d5",
+        "d4 Nf6 c4 c5 d5 e6",
+        "d4 Nf6 Nf3 e6 Bg5",
+        "d4 f5 g3 Nf6 Bg2",
+        "c4 e5 Nc3 Nf6 Nf3 Nc6",
+        "c4 c5 Nc3 Nc6 g3 g6",
+        "Nf3 d5 g3 Nf6 Bg2",
+        "Nf3 Nf6 c4 g6 Nc3",
+        "g3 d5 Bg2 e5"
+    };
+    
+    private Player first = new Player("first");
+    private Player second = new Player("second");
+    private long baseMillis = 10000;
+    private long incrementMillis = 100;
+    private int maxGames = 20000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path openingsFile;
+    private int openingPlies = 8;
+    private int balance = 150;
+    private double elo0 = 0;
+    private double elo1 = 5;
+    private double alpha = 0.05;
+    private double beta = 0.05;
+    private Path archivePath;
+    
+    private final List<Opening> openings = new ArrayList<>();
+    private final AtomicInteger nextGame = new AtomicInteger();
+    private final BlockingQueue<Finished> results = new LinkedBlockingQueue<>();
+    private volatile boolean decided;
+    
+    // Results so far, for the first engine - only the main thread touches these
+    private int wins;
+    private int losses;
+    private int draws;
+    private final int[] pairCounts = new int[5]; // pairs scoring 0, 0.5, 1, 1.5 and 2 points
+    private final Map<Integer, Double> halfPairs = new HashMap<>(); // first game of a pair, waiting for the second
+    
+    // One of the two engine setups
+    private static class Player {
+        String name;
+        Evaluation evaluation = new Evaluation(); // never changes, so every thread can share it
+        int depth = ChessEngine.MAX_DEPTH;
+        long nodes = 0;
+        int hashMegabytes = 16;
+        
+        Player(String name) {
+            this.name = name;
+        }
+        
+        static Player parse(String defaultName, String setup) throws IOException {
+            Player player = new Player(defaultName);
+            for (String part : setup.split(",")) {
+                if (part.isBlank()) {
+                    continue;
+                }
+                int equals = part.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Expected name=value in engine setup: " + part);
+                }
+                String value = part.substring(equals + 1).trim();
+                switch (part.substring(0, equals).trim()) {
+                    case "name": player.name = value; break;
+                    case "weights": player.evaluation = Evaluation.load(Paths.get(value)); break;
+                    case "depth": player.depth = Integer.parseInt(value); break;
+                    case "nodes": player.nodes = Long.parseLong(value); break;
+                    case "hash": player.hashMegabytes = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown engine setting: " + part);
+                }
+            }
+            return player;
+        }
+        
+        ChessEngine newEngine() {
+            ChessEngine engine = new ChessEngine(evaluation, new TranspositionTable(hashMegabytes));
+            engine.setNodeLimit(nodes);
+            return engine;
+        }
+    }
+    
+    // Where a pair of games starts
+    private static class Opening {
+        final String fen;
+        final int[] moves;
+        
+        Opening(String fen, int[] moves) {
+            this.fen = fen;
+            this.moves = moves;
+        }
+    }
+    
+    // A game that's over - goes from a worker thread to the main thread
+    private static class Finished {
+        final int number;
+        final boolean firstIsWhite;
+        final String result;
+        final String termination;
+        final String startFen;
+        final int[] moves;
+        
+        Finished(int number, boolean firstIsWhite, String result, String termination, String startFen, int[] moves) {
+            this.number = number;
+            this.firstIsWhite = firstIsWhite;
+            this.result = result;
+            this.termination = termination;
+            this.startFen = startFen;
+            this.moves = moves;
+        }
+        
+        // Points for the first engine
+        double firstScore() {
+            double white = result.equals("1-0") ? 1 : result.equals("0-1") ? 0 : 0.5;
+            return firstIsWhite ? white : 1 - white;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        EngineMatch match = new EngineMatch();
+        match.parseArgs(args);
+        match.run();
+    }
+    
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--first": first = Player.parse("first", args[++i]); break;
+                case "--second": second = Player.parse("second", args[++i]); break;
+                case "--tc": parseTimeControl(args[++i]); break;
+                case "--games": maxGames = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--openings": openingsFile = Paths.get(args[++i]); break;
+                case "--plies": openingPlies = Integer.parseInt(args[++i]); break;
+                case "--balance": balance = Integer.parseInt(args[++i]); break;
+                case "--elo0": elo0 = Double.parseDouble(args[++i]); break;
+                case "--elo1": elo1 = Double.parseDouble(args[++i]); break;
+                case "--alpha": alpha = Double.parseDouble(args[++i]); break;
+                case "--beta": beta = Double.parseDouble(args[++i]); break;
+                case "--archive": archivePath = Paths.get(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (first.name.equals(second.name)) {
+            second.name = second.name + " (2)";
+        }
+        for (Player player : new Player[] {first, second}) {
+            if (baseMillis == 0 && player.depth == ChessEngine.MAX_DEPTH && player.nodes == 0) {
+                throw new IllegalArgumentException("Without a clock, " + player.name + " needs a depth or nodes limit");
+            }
+        }
+    }
+    
+    // "10+0.1" = 10 seconds each plus 0.1 seconds a move
+    private void parseTimeControl(String text) {
+        int plus = text.indexOf('+');
+        baseMillis = Math.round(Double.parseDouble(plus < 0 ? text : text.substring(0, plus)) * 1000);
+        incrementMillis = plus < 0 ? 0 : Math.round(Double.parseDouble(text.substring(plus + 1)) * 1000);
+    }
+    
+    private void run() throws Exception {
+        loadOpenings();
+        System.err.println(first.name + " vs " + second.name + ", " + openings.size() + " openings, "
+                           + threads + " games at a time, SPRT elo0=" + elo0 + " elo1=" + elo1);
+        
+        GameArchive archive = archivePath != null ? new GameArchive(archivePath) : null;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.start();
+        }
+        
+        long start = System.currentTimeMillis();
+        long nextReport = start + REPORT_MILLIS;
+        try {
+            while (true) {
+                Finished game = results.poll(100, TimeUnit.MILLISECONDS);
+                if (game == null) {
+                    if (allDone(workers) && results.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (archive != null) {
+                    archive.add(headers(game), game.startFen, game.moves);
+                }
+                if (!decided) {
+                    count(game);
+                }
+                if (System.currentTimeMillis() >= nextReport) {
+                    report();
+                    nextReport = System.currentTimeMillis() + REPORT_MILLIS;
+                }
+            }
+        } finally {
+            if (archive != null) {
+                archive.close();
+            }
+        }
+        
+        report();
+        double llr = llr();
+        if (llr >= upperBound()) {
+            System.out.println("H1 accepted: " + first.name + " is stronger");
+        } else if (llr <= lowerBound()) {
+            System.out.println("H0 accepted: " + first.name + " isn't " + elo1 + " Elo stronger");
+        } else {
+            System.out.println("No decision after " + (wins + losses + draws) + " games");
+        }
+        System.out.printf("%d games in %.1f s%n", wins + losses + draws, (System.currentTimeMillis() - start) / 1000.0);
+    }
+    
+    private static boolean allDone(List<Worker> workers) {
+        for (Worker worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void count(Finished game) {
+        double score = game.firstScore();
+        if (score == 1) {
+            wins++;
+        } else if (score == 0) {
+            losses++;
+        } else {
+            draws++;
+        }
+        
+        // Both games of a pair have to be in before the pair counts
+        Double other = halfPairs.remove(game.number / 2);
+        if (other == null) {
+            halfPairs.put(game.number / 2, score);
+            return;
+        }
+        pairCounts[(int) Math.round((score + other) * 2)]++;
+        double llr = llr();
+        if (llr >= upperBound() || llr <= lowerBound()) {
+            decided = true;
+        }
+    }
+    
+    private double lowerBound() {
+        return Math.log(beta / (1 - alpha));
+    }
+    
+    private double upperBound() {
+        return Math.log((1 - beta) / alpha);
+    }
+    
+    // Log likelihood ratio of elo1 against elo0 from the pair results so far
+    // (the usual normal approximation, using the mean and variance of the pair scores)
+    private double llr() {
+        int pairs = 0;
+        double sum = 0;
+        for (int i = 0; i < 5; i++) {
+            pairs += pairCounts[i];
+            sum += pairCounts[i] * i / 4.0;
+        }
+        if (pairs == 0) {
+            return 0;
+        }
+        double mean = sum / pairs;
+        double variance = 0;
+        for (int i = 0; i < 5; i++) {
+            variance += pairCounts[i] * (i / 4.0 - mean) * (i / 4.0 - mean);
+        }
+        variance /= pairs;
+        if (variance <= 0) {
+            return 0; // every pair the same so far - too early to say anything
+        }
+        double s0 = expectedScore(elo0);
+        double s1 = expectedScore(elo1);
+        return pairs * (s1 - s0) * (2 * mean - s0 - s1) / (2 * variance);
+    }
+    
+    private static double expectedScore(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+    
+    private static double eloFromScore(double score) {
+        score = Math.max(0.001, Math.min(0.999, score));
+        return -400 * Math.log10(1 / score - 1);
+    }
+    
+    private void report() {
+        int games = wins + losses + draws;
+        double score = games == 0 ? 0.5 : (wins + draws / 2.0) / games;
+        double margin = 0;
+        if (games > 0) {
+            double variance = (wins * Math.pow(1 - score, 2) + losses * Math.pow(score, 2)
+                               + draws * Math.pow(0.5 - score, 2)) / games;
+            margin = 1.96 * Math.sqrt(variance / games);
+        }
+        double elo = eloFromScore(score);
+        System.err.printf("%d games: %d - %d - %d  Elo %+.1f +/- %.1f  LLR %.2f (%.2f, %.2f)%n",
+                          games, wins, losses, draws, elo,
+                          games == 0 ? 0 : (eloFromScore(score + margin) - eloFromScore(score - margin)) / 2,
+                          llr(), lowerBound(), upperBound());
+    }
+    
+    private Map<String, String> headers(Finished game) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Event", first.name + " vs " + second.name);
+        headers.put("Site", "EngineMatch");
+        headers.put("Date", new SimpleDateFormat("yyyy.MM.dd").format(new Date()));
+        headers.put("Round", String.valueOf(game.number + 1));
+        headers.put("White", game.firstIsWhite ? first.name : second.name);
+        headers.put("Black", game.firstIsWhite ? second.name : first.name);
+        headers.put("Result", game.result);
+        headers.put("Termination", game.termination);
+        if (baseMillis > 0) {
+            headers.put("TimeControl", (baseMillis / 1000.0) + "+" + (incrementMillis / 1000.0));
+        }
+        return headers;
+    }
+    
+    private void loadOpenings() throws IOException {
+        ChessBoard board = new ChessBoard();
+        if (openingsFile == null) {
+            for (String line : BUILT_IN_OPENINGS) {
+                board.loadFEN(ChessBoard.START_FEN);
+                for (String san : line.split(" ")) {
+                    board.playMove(board.parseSan(san));
+                }
+                openings.add(new Opening(ChessBoard.START_FEN, board.getMoves()));
+            }
+        } else if (openingsFile.toString().toLowerCase().endsWith(".pgn")) {
+            try (PgnReader reader = new PgnReader(openingsFile)) {
+                for (PgnGame game = reader.next(); game != null; game = reader.next()) {
+                    try {
+                        game.replay(board);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Skipping opening: " + e.getMessage());
+                        continue;
+                    }
+                    int[] moves = board.getMoves();
+                    if (moves.length >= openingPlies) {
+                        openings.add(new Opening(game.getStartFEN(), Arrays.copyOf(moves, openingPlies)));
+                    }
+                }
+            }
+        } else {
+            for (String line : Files.readAllLines(openingsFile)) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts[0].isEmpty() || parts[0].startsWith("#")) {
+                    continue;
+                }
+                // EPD lines have operations where the move counters would be
+                String fen = parts.length > 4 && !parts[4].matches("\\d+")
+                           ? String.join(" ", parts[0], parts[1], parts[2], parts[3])
+                           : line.trim();
+                try {
+                    board.loadFEN(fen);
+                    openings.add(new Opening(board.toFEN(), new int[0]));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Skipping opening: " + e.getMessage());
+                }
+            }
+        }
+        
+        // A quick search of each one, to throw out the openings that are already lost
+        ChessEngine engine = new ChessEngine();
+        int before = openings.size();
+        openings.removeIf(opening -> {
+            setUp(board, opening);
+            engine.clearStop();
+            List<ChessEngine.Line> lines = engine.search(board, BALANCE_DEPTH, 1, 0, null);
+            return lines.isEmpty() || Math.abs(lines.get(0).score) > balance;
+        });
+        if (openings.size() < before) {
+            System.err.println("Left out " + (before - openings.size()) + " unbalanced openings");
+        }
+        if (openings.isEmpty()) {
+            throw new IllegalArgumentException("No usable openings");
+        }
+    }
+    
+    private static void setUp(ChessBoard board, Opening opening) {
+        board.loadFEN(opening.fen);
+        for (int move : opening.moves) {
+            board.playMove(move);
+        }
+    }
+    
+    // Plays games one after another until the match is over - one of these per core
+    private class Worker extends Thread {
+        private final ChessBoard board = new ChessBoard();
+        private final ChessEngine firstEngine = first.newEngine();
+        private final ChessEngine secondEngine = second.newEngine();
+        private final int[] moves = new int[256];
+        private final int[] whiteScores = new int[ADJUDICATE_PLIES]; // last few scores, from white's side
+        
+        Worker(int number) {
+            super("engine-match-" + number);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (!decided) {
+                int number = nextGame.getAndIncrement();
+                if (number >= maxGames) {
+                    break;
+                }
+                Finished game = play(number);
+                if (game != null) {
+                    results.add(game);
+                }
+            }
+        }
+        
+        // null if the match was decided before the game finished
+        private Finished play(int number) {
+            boolean firstIsWhite = number % 2 == 0;
+            Opening opening = openings.get((number / 2) % openings.size());
+            setUp(board, opening);
+            firstEngine.getTable().clear();
+            secondEngine.getTable().clear();
+            long[] clocks = {baseMillis, baseMillis}; // white, black
+            int scored = 0;
+            
+            while (!decided) {
+                String[] over = gameOver();
+                if (over != null) {
+                    return finished(number, firstIsWhite, over[0], over[1]);
+                }
+                
+                boolean white = board.isWhiteTurn();
+                boolean firstToMove = white == firstIsWhite;
+                ChessEngine engine = firstToMove ? firstEngine : secondEngine;
+                Player player = firstToMove ? first : second;
+                int side = white ? 0 : 1;
+                
+                long millis = 0;
+                if (baseMillis > 0) {
+                    millis = Math.max(1, Math.min(clocks[side] / 30 + incrementMillis * 3 / 4, clocks[side] / 2));
+                }
+                long started = System.nanoTime();
+                engine.clearStop();
+                List<ChessEngine.Line> lines = engine.search(board, player.depth, 1, millis, null);
+                if (baseMillis > 0) {
+                    clocks[side] -= (System.nanoTime() - started) / 1_000_000;
+                    if (clocks[side] < 0) {
+                        return finished(number, firstIsWhite, white ? "0-1" : "1-0", "time forfeit");
+                    }
+                    clocks[side] += incrementMillis;
+                }
+                
+                int move = lines.isEmpty() ? firstLegalMove() : lines.get(0).bestMove();
+                if (board.leavesKingAttacked(move)) {
+                    return finished(number, firstIsWhite, white ? "0-1" : "1-0", "illegal move");
+                }
+                
+                // Stop early once both engines agree the game is decided
+                if (!lines.isEmpty()) {
+                    int score = lines.get(0).score;
+                    whiteScores[scored++ % ADJUDICATE_PLIES] = white ? score : -score;
+                    if (scored >= ADJUDICATE_PLIES) {
+                        String result = agreedResult();
+                        if (result != null) {
+                            board.playMove(move);
+                            return finished(number, firstIsWhite, result, "adjudication");
+                        }
+                    }
+                } else {
+                    scored = 0;
+                }
+                board.playMove(move);
+            }
+            return null;
+        }
+        
+        private String agreedResult() {
+            boolean whiteWins = true;
+            boolean blackWins = true;
+            for (int score : whiteScores) {
+                whiteWins &= score >= ADJUDICATE_SCORE;
+                blackWins &= score <= -ADJUDICATE_SCORE;
+            }
+            return whiteWins ? "1-0" : blackWins ? "0-1" : null;
+        }
+        
+        private Finished finished(int number, boolean firstIsWhite, String result, String termination) {
+            return new Finished(number, firstIsWhite, result, termination, board.getStartFEN(), board.getMoves());
+        }
+        
+        // {result, why} if the game is over, or null
+        private String[] gameOver() {
+            if (firstLegalMove() < 0) {
+                if (board.isInCheck()) {
+                    return new String[] {board.isWhiteTurn() ? "0-1" : "1-0", "checkmate"};
+                }
+                return new String[] {"1/2-1/2", "stalemate"};
+            }
+            if (board.getHalfmoveClock() >= 100) {
+                return new String[] {"1/2-1/2", "50 move rule"};
+            }
+            if (isRepetition()) {
+                return new String[] {"1/2-1/2", "repetition"};
+            }
+            if (isInsufficientMaterial()) {
+                return new String[] {"1/2-1/2", "insufficient material"};
+            }
+            if (board.getMoves().length >= MAX_PLIES) {
+                return new String[] {"1/2-1/2", "too long"};
+            }
+            return null;
+        }
+        
+        private int firstLegalMove() {
+            int count = board.generateMoves(moves);
+            for (int i = 0; i < count; i++) {
+                if (!board.leavesKingAttacked(moves[i])) {
+                    return moves[i];
+                }
+            }
+            return -1;
+        }
+        
+        // Third time the same position has come up (only since the last capture or pawn move can it repeat)
+        private boolean isRepetition() {
+            int ply = board.getPly();
+            long hash = board.getHash();
+            int seen = 1;
+            for (int earlier = ply - 2; earlier >= ply - board.getHalfmoveClock() && board.hasPly(earlier); earlier -= 2) {
+                if (board.getHashAt(earlier) == hash && ++seen == 3) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        // Just the kings, maybe with one bishop or knight
+        private boolean isInsufficientMaterial() {
+            int minors = 0;
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    char piece = Character.toLowerCase(board.getPiece(row, col));
+                    if (piece == 'b' || piece == 'n') {
+                        minors++;
+                    } else if (piece != ' ' && piece != 'k') {
+                        return false;
+                    }
+                }
+            }
+            return minors <= 1;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Works out how good a position is for the engine
+// Score is in centipawns (100 = one pawn) from white's side: positive = good for white
+//
+// All the numbers live in one int array so they can be tuned later:
+//   weights[0..5]          - what each piece is worth (P, N, B, R, Q, K)
+//   weights[6 + p*64 + sq] - bonus for piece p standing on square sq (row * 8 + col),
+//                            written from white's side - black uses the same table flipped
+// The starting numbers are the "simplified evaluation function" tables
+public class Evaluation {
+    public static final String PIECE_ORDER = "pnbrqk";
+    public static final int WEIGHT_COUNT = 6 + 6 * 64;
+    
+    private static final int[] PIECE_VALUES = {100, 320, 330, 500, 900, 0};
+    
+    private static final int[][] SQUARE_TABLES = {
+        { // pawn
+             0,  0,  0,  0,  0,  0,  0,  0,
+            50, 50, 50, 50, 50, 50, 50, 50,
+            10, 10, 20, 30, 30, 20, 10, 10,
+             5,  5, 10, 25, 25, 10,  5,  5,
+             0,  0,  0, 20, 20,  0,  0,  0,
+             5, -5,-10,  0,  0,-10, -5,  5,
+             5, 10, 10,-20,-20, 10, 10,  5,
+             0,  0,  0,  0,  0,  0,  0,  0
+        },
+        { // knight
+            -50,-40,-30,-30,-30,-30,-40,-50,
+            -40,-20,  0,  0,  0,  0,-20,-40,
+            -30,  0, 10, 15, 15, 10,  0,-30,
+            -30,  5, 15, 20, 20, 15,  5,-30,
+            -30,  0, 15, 20, 20, 15,  0,-30,
+            -30,  5, 10, 15, 15, 10,  5,-30,
+            -40,-20,  0,  5,  5,  0,-20,-40,
+            -50,-40,-30,-30,-30,-30,-40,-50
+        },
+        { // bishop
+            -20,-10,-10,-10,-10,-10,-10,-20,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -10,  0,  5, 10, 10,  5,  0,-10,
+            -10,  5,  5, 10, 10,  5,  5,-10,
+            -10,  0, 10, 10, 10, 10,  0,-10,
+            -10, 10, 10, 10, 10, 10, 10,-10,
+            -10,  5,  0,  0,  0,  0,  5,-10,
+            -20,-10,-10,-10,-10,-10,-10,-20
+        },
+        { // rook
+             0,  0,  0,  0,  0,  0,  0,  0,
+             5, 10, 10, 10, 10, 10, 10,  5,
+            -5,  0,  0,  0,  0,  0,  0, -5,
+            -5,  0,  0,  0,  0,  0,  0, -5,
+            -5,  0,  0,  0,  0,  0,  0, -5,
+            -5,  0,  0,  0,  0,  0,  0, -5,
+            -5,  0,  0,  0,  0,  0,  0, -5,
+             0,  0,  0,  5,  5,  0,  0,  0
+        },
+        { // queen
+            -20,-10,-10, -5, -5,-10,-10,-20,
+            -10,  0,  0,  0,  0,  0,  0,-10,
+            -10,  0,  5,  5,  5,  5,  0,-10,
+             -5,  0,  5,  5,  5,  5,  0, -5,
+              0,  0,  5,  5,  5,  5,  0, -5,
+            -10,  5,  5,  5,  5,  5,  0,-10,
+            -10,  0,  5,  0,  0,  0,  0,-10,
+            -20,-10,-10, -5, -5,-10,-10,-20
+        },
+        { // king
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -30,-40,-40,-50,-50,-40,-40,-30,
+            -20,-30,-30,-40,-40,-30,-30,-20,
+            -10,-20,-20,-20,-20,-20,-20,-10,
+             20, 20,  0,  0,  0,  0, 20, 20,
+             20, 30, 10,  0,  0, 10, 30, 20
+        }
+    };
+    
+    private final int[] weights;
+    
+    public Evaluation() {
+        this(defaultWeights());
+    }
+    
+    public Evaluation(int[] weights) {
+        if (weights.length != WEIGHT_COUNT) {
+            throw new IllegalArgumentException("Need " + WEIGHT_COUNT + " weights, got " + weights.length);
+        }
+        this.weights = weights.clone();
+    }
+    
+    public static int[] defaultWeights() {
+        int[] weights = new int[WEIGHT_COUNT];
+        for (int p = 0; p < 6; p++) {
+            weights[p] = PIECE_VALUES[p];
+            System.arraycopy(SQUARE_TABLES[p], 0, weights, 6 + p * 64, 64);
+        }
+        return weights;
+    }
+    
+    public int[] getWeights() {
+        return weights.clone();
+    }
+    
+    // Reads weights from a text file - WEIGHT_COUNT whole numbers in the same order as the array,
+    // separated by spaces or new lines (anything after a # is ignored)
+    public static Evaluation load(Path file) throws IOException {
+        int[] weights = new int[WEIGHT_COUNT];
+        int count = 0;
+        for (String line : Files.readAllLines(file)) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            for (String number : line.trim().split("\\s+")) {
+                if (number.isEmpty()) {
+                    continue;
+                }
+                if (count == WEIGHT_COUNT) {
+                    throw new IllegalArgumentException(file + " has more than " + WEIGHT_COUNT + " weights");
+                }
+                try {
+                    weights[count++] = Integer.parseInt(number);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(file + " has a weight that isn't a number: " + number);
+                }
+            }
+        }
+        return new Evaluation(Arrays.copyOf(weights, count));
+    }
+    
+    // Writes the weights so load() can read them back, laid out like the tables above
+    public void save(Path file) throws IOException {
+        StringBuilder text = new StringBuilder("# Piece values: P N B R Q K\n");
+        for (int p = 0; p < 6; p++) {
+            text.append(String.format("%5d", weights[p]));
+        }
+        text.append('\n');
+        for (int p = 0; p < 6; p++) {
+            text.append("# ").append(Character.toUpperCase(PIECE_ORDER.charAt(p)))
+                .append(" squares, from white's side (row 8 first)\n");
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    text.append(String.format("%5d", weights[6 + p * 64 + row * 8 + col]));
+                }
+                text.append('\n');
+            }
+        }
+        Files.writeString(file, text);
+    }
+    
+    // Where a piece's square bonus is in the weights array
+    public static int squareIndex(char piece, int row, int col) {
+        int p = PIECE_ORDER.indexOf(Character.toLowerCase(piece));
+        int flippedRow = Character.isUpperCase(piece) ? row : 7 - row;
+        return 6 + p * 64 + flippedRow * 8 + col;
+    }
+    
+    // Score from white's side
+    public int evaluate(ChessBoard board) {
+        int score = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                char piece = board.getPiece(row, col);
+                if (piece == ' ') {
+                    continue;
+                }
+                int value = weights[PIECE_ORDER.indexOf(Character.toLowerCase(piece))]
+                          + weights[squareIndex(piece, row, col)];
+                score += Character.isUpperCase(piece) ? value : -value;
+            }
+        }
+        return score;
+    }
+    
+    // Score from the side to move's point of view (what the search wants)
+    public int evaluateForSideToMove(ChessBoard board) {
+        int score = evaluate(board);
+        return board.isWhiteTurn() ? score : -score;
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Tunes the evaluation weights (piece values and square tables) on positions from real games
+// Every position is labelled with how its game ended, and the weights are moved until the
+// evaluation predicts those results as well as it can (the "Texel" method):
+//   predicted = 1 / (1 + 10^(-K * eval / 400)),  error = average of (result - predicted)^2
+//
+// Usage: java EvaluationTuner [options] <games>...
+//   <games>              .games archives, .pgn files, or text files with one "FEN result" per line
+//                        (result is 1-0, 0-1 or 1/2-1/2, or [1.0] [0.5] [0.0] like most tuning sets)
+//   --out <file>         where the tuned weights go (default tuned.txt)
+//   --start <file>       weights to start from (default: the built-in ones)
+//   --positions <n>      most positions to load (default 10000000)
+//   --skip <plies>       leave out the first moves of each game, they're mostly book (default 8)
+//   --iterations <n>     gradient steps (default 1000)
+//   --rate <cp>          how far a weight can move in one step (default 1)
+//   --k <k>              scaling constant, normally fitted to the start weights first
+//   --threads <n>        default: number of cores
+//
+// The evaluation is just a sum of weights (one piece value and one square bonus per piece),
+// so a position is stored as its list of pieces - a short each - in one big array instead of
+// a board. Going through millions of them takes a fraction of a second, nothing is allocated
+// on the way, and each thread adds its part of the gradient into its own array.
+// Try the result against the old weights with EngineMatch before keeping it.
+public class EvaluationTuner {
+    private static final int CHUNKS_PER_THREAD = 8;
+    private static final int REPORT_EVERY = 50;
+    private static final double LN10_OVER_400 = Math.log(10) / 400;
+    
+    // Adam optimiser settings (the usual ones)
+    private static final double BETA1 = 0.9;
+    private static final double BETA2 = 0.999;
+    private static final double EPSILON = 1e-8;
+    
+    private Path out = Paths.get("tuned.txt");
+    private Path start;
+    private int maxPositions = 10_000_000;
+    private int skipPlies = 8;
+    private int iterations = 1000;
+    private double rate = 1;
+    private double k = 0; // 0 = fit it
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final List<Path> inputs = new ArrayList<>();
+    
+    // The positions: pieces[starts[i]] up to pieces[starts[i + 1]] are position i's pieces,
+    // each one a square table index (6 + piece * 64 + square, from its own side) minus 6,
+    // with the top bit set for black. results[i] is 0 (black won), 1 (draw) or 2 (white won).
+    private short[] pieces = new short[1 << 20];
+    private int[] starts = new int[1 << 16];
+    private byte[] results = new byte[1 << 16];
+    private int count;
+    
+    // Split the positions up into chunks once, each with its own place to add up into
+    private ForkJoinPool pool;
+    private int chunks;
+    private double[][] chunkGradients;
+    private double[] chunkErrors;
+    
+    public static void main(String[] args) throws Exception {
+        EvaluationTuner tuner = new EvaluationTuner();
+        tuner.parseArgs(args);
+        if (tuner.inputs.isEmpty()) {
+            System.err.println("Usage: java EvaluationTuner [--out tuned.txt] [--iterations n] games.games|games.pgn|positions.epd...");
+            System.exit(1);
+        }
+        tuner.run();
+    }
+    
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out": out = Paths.get(args[++i]); break;
+                case "--start": start = Paths.get(args[++i]); break;
+                case "--positions": maxPositions = Integer.parseInt(args[++i]); break;
+                case "--skip": skipPlies = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--k": k = Double.parseDouble(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    inputs.add(Paths.get(args[i]));
+            }
+        }
+    }
+    
+    private void run() throws IOException {
+        long loadStart = System.nanoTime();
+        for (Path input : inputs) {
+            if (count < maxPositions) {
+                load(input);
+            }
+        }
+        System.err.printf("%d positions (%d MB) loaded in %.1f s%n", count,
+                          (count * 5L + starts[count] * 2L) >> 20, (System.nanoTime() - loadStart) / 1e9);
+        if (count == 0) {
+            throw new IllegalArgumentException("No positions to tune on");
+        }
+        
+        pool = new ForkJoinPool(threads);
+        chunks = Math.min(count, threads * CHUNKS_PER_THREAD);
+        chunkGradients = new double[chunks][Evaluation.WEIGHT_COUNT];
+        chunkErrors = new double[chunks];
+        
+        int[] startWeights = start != null ? Evaluation.load(start).getWeights() : Evaluation.defaultWeights();
+        double[] weights = new double[Evaluation.WEIGHT_COUNT];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = startWeights[i];
+        }
+        boolean[] used = new boolean[Evaluation.WEIGHT_COUNT];
+        for (int j = 0; j < starts[count]; j++) {
+            used[6 + (pieces[j] & 0x1FF)] = true;
+        }
+        double[] averages = squareAverages(weights, used);
+        if (k == 0) {
+            k = fitK(weights);
+        }
+        System.err.printf("K = %.4f, error to start with %.6f%n", k, error(weights));
+        
+        long tuneStart = System.nanoTime();
+        double[] gradient = new double[Evaluation.WEIGHT_COUNT];
+        double[] m = new double[Evaluation.WEIGHT_COUNT];
+        double[] v = new double[Evaluation.WEIGHT_COUNT];
+        for (int iteration = 1; iteration <= iterations; iteration++) {
+            double error = gradient(weights, gradient);
+            double correction1 = 1 - Math.pow(BETA1, iteration);
+            double correction2 = 1 - Math.pow(BETA2, iteration);
+            for (int i = 0; i < weights.length; i++) {
+                m[i] = BETA1 * m[i] + (1 - BETA1) * gradient[i];
+                v[i] = BETA2 * v[i] + (1 - BETA2) * gradient[i] * gradient[i];
+                weights[i] -= rate * (m[i] / correction1) / (Math.sqrt(v[i] / correction2) + EPSILON);
+            }
+            recenter(weights, used, averages);
+            if (iteration % REPORT_EVERY == 0 || iteration == iterations) {
+                System.err.printf("Iteration %d: error %.6f (%.1f s)%n", iteration, error,
+                                  (System.nanoTime() - tuneStart) / 1e9);
+            }
+        }
+        
+        int[] tuned = new int[Evaluation.WEIGHT_COUNT];
+        for (int i = 0; i < tuned.length; i++) {
+            tuned[i] = (int) Math.round(weights[i]);
+        }
+        Evaluation evaluation = new Evaluation(tuned);
+        evaluation.save(out);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = tuned[i];
+        }
+        System.err.printf("Error with rounded weights %.6f, piece values %s, written to %s%n",
+                          error(weights), Arrays.toString(Arrays.copyOf(tuned, 6)), out);
+        pool.shutdown();
+    }
+    
+    // Average square bonus of each piece over the squares it was seen on
+    private static double[] squareAverages(double[] weights, boolean[] used) {
+        double[] averages = new double[6];
+        for (int p = 0; p < 6; p++) {
+            int squares = 0;
+            for (int i = 6 + p * 64; i < 6 + p * 64 + 64; i++) {
+                if (used[i]) {
+                    averages[p] += weights[i];
+                    squares++;
+                }
+            }
+            averages[p] /= Math.max(1, squares);
+        }
+        return averages;
+    }
+    
+    // A piece value and its square table can trade any amount without changing a single
+    // evaluation, so the tuning would let them wander off (a pawn worth -30 with +130 on
+    // every square). Moving the drift back into the piece value keeps the numbers readable.
+    // The king is left alone - its value cancels out anyway.
+    private static void recenter(double[] weights, boolean[] used, double[] averages) {
+        double[] now = squareAverages(weights, used);
+        for (int p = 0; p < 5; p++) {
+            double drift = now[p] - averages[p];
+            weights[p] += drift;
+            for (int i = 6 + p * 64; i < 6 + p * 64 + 64; i++) {
+                if (used[i]) {
+                    weights[i] -= drift;
+                }
+            }
+        }
+    }
+    
+    // The K that makes the start weights fit best (the error only has one low point, so a
+    // ternary search finds it)
+    private double fitK(double[] weights) {
+        double low = 0.1;
+        double high = 4;
+        while (high - low > 0.0005) {
+            double a = low + (high - low) / 3;
+            double b = high - (high - low) / 3;
+            k = a;
+            double errorA = error(weights);
+            k = b;
+            double errorB = error(weights);
+            if (errorA < errorB) {
+                high = b;
+            } else {
+                low = a;
+            }
+        }
+        return (low + high) / 2;
+    }
+    
+    private double error(double[] weights) {
+        pool.invoke(new Pass(weights, false, 0, chunks));
+        double sum = 0;
+        for (double error : chunkErrors) {
+            sum += error;
+        }
+        return sum / count;
+    }
+    
+    // Fills in the gradient of the error and returns the error
+    private double gradient(double[] weights, double[] gradient) {
+        pool.invoke(new Pass(weights, true, 0, chunks));
+        Arrays.fill(gradient, 0);
+        double sum = 0;
+        for (int c = 0; c < chunks; c++) {
+            sum += chunkErrors[c];
+            double[] part = chunkGradients[c];
+            for (int i = 0; i < gradient.length; i++) {
+                gradient[i] += part[i];
+            }
+        }
+        for (int i = 0; i < gradient.length; i++) {
+            gradient[i] /= count;
+        }
+        return sum / count;
+    }
+    
+    // Goes through some of the chunks, splitting until there's one each
+    private class Pass extends RecursiveAction {
+        private final double[] weights;
+        private final boolean withGradient;
+        private final int from;
+        private final int to;
+        
+        Pass(double[] weights, boolean withGradient, int from, int to) {
+            this.weights = weights;
+            this.withGradient = withGradient;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Pass(weights, withGradient, from, middle), new Pass(weights, withGradient, middle, to));
+                return;
+            }
+            int first = (int) ((long) count * from / chunks);
+            int last = (int) ((long) count * to / chunks);
+            double[] gradient = chunkGradients[from];
+            if (withGradient) {
+                Arrays.fill(gradient, 0);
+            }
+            double error = 0;
+            for (int i = first; i < last; i++) {
+                double eval = 0;
+                for (int j = starts[i]; j < starts[i + 1]; j++) {
+                    int piece = pieces[j];
+                    int square = piece & 0x1FF;
+                    double value = weights[square >> 6] + weights[6 + square];
+                    eval += piece < 0 ? -value : value;
+                }
+                double predicted = 1 / (1 + Math.exp(-k * LN10_OVER_400 * eval));
+                double difference = predicted - results[i] * 0.5;
+                error += difference * difference;
+                if (withGradient) {
+                    // d(error)/d(eval), then every weight that went into eval gets that much
+                    double slope = 2 * difference * predicted * (1 - predicted) * k * LN10_OVER_400;
+                    for (int j = starts[i]; j < starts[i + 1]; j++) {
+                        int piece = pieces[j];
+                        int square = piece & 0x1FF;
+                        double signed = piece < 0 ? -slope : slope;
+                        gradient[square >> 6] += signed;
+                        gradient[6 + square] += signed;
+                    }
+                }
+            }
+            chunkErrors[from] = error;
+        }
+    }
+    
+    private void load(Path input) throws IOException {
+        String name = input.toString().toLowerCase();
+        int before = count;
+        ChessBoard board = new ChessBoard();
+        if (name.endsWith(".games")) {
+            try (GameArchive archive = GameArchive.openForReading(input)) {
+                GameArchive.Reader reader = archive.reader(0);
+                for (ArchivedGame game = reader.next(); game != null && count < maxPositions; game = reader.next()) {
+                    addGame(board, game.getStartFEN(), game::decodeMoves, game.getResult());
+                }
+            }
+        } else if (name.endsWith(".pgn")) {
+            try (PgnReader reader = new PgnReader(input)) {
+                for (PgnGame game = reader.next(); game != null && count < maxPositions; game = reader.next()) {
+                    addGame(board, game.getStartFEN(), game::decodeMoves, game.getHeaders().getOrDefault("Result", "*"));
+                }
+            }
+        } else {
+            // One line at a time - these files can have millions of lines
+            try (BufferedReader reader = Files.newBufferedReader(input)) {
+                for (String line = reader.readLine(); line != null && count < maxPositions; line = reader.readLine()) {
+                    int result = resultOfLine(line);
+                    String[] parts = line.trim().split("\\s+");
+                    if (result < 0 || parts.length < 2) {
+                        continue;
+                    }
+                    try {
+                        board.loadFEN(parts[0] + " " + parts[1]);
+                    } catch (IllegalArgumentException e) {
+                        continue;
+                    }
+                    addPosition(board, result);
+                }
+            }
+        }
+        System.err.println(input + ": " + (count - before) + " positions");
+    }
+    
+    private interface Moves {
+        int[] decode();
+    }
+    
+    // Adds the quiet positions of a finished game
+    private void addGame(ChessBoard board, String startFen, Moves moves, String resultText) {
+        int result = resultOf(resultText);
+        if (result < 0) {
+            return;
+        }
+        int[] played;
+        try {
+            played = moves.decode();
+            board.loadFEN(startFen);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        int pieceCount = countPieces(board);
+        for (int ply = 0; ply <= played.length && count < maxPositions; ply++) {
+            // Right after a capture or with a king attacked the evaluation doesn't mean much yet
+            int now = countPieces(board);
+            if (ply >= skipPlies && now == pieceCount && !board.isInCheck()) {
+                addPosition(board, result);
+            }
+            pieceCount = now;
+            if (ply < played.length) {
+                board.playMove(played[ply]);
+            }
+        }
+    }
+    
+    private static int countPieces(ChessBoard board) {
+        int pieces = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                if (board.getPiece(row, col) != ' ') {
+                    pieces++;
+                }
+            }
+        }
+        return pieces;
+    }
+    
+    private void addPosition(ChessBoard board, int result) {
+        if (count + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+            results = Arrays.copyOf(results, results.length * 2);
+        }
+        int used = starts[count];
+        if (used + 32 > pieces.length) {
+            pieces = Arrays.copyOf(pieces, pieces.length * 2);
+        }
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                char piece = board.getPiece(row, col);
+                if (piece != ' ' && used < starts[count] + 32) {
+                    int square = Evaluation.squareIndex(piece, row, col) - 6;
+                    pieces[used++] = (short) (Character.isUpperCase(piece) ? square : square | 0x8000);
+                }
+            }
+        }
+        results[count] = (byte) result;
+        starts[++count] = used;
+    }
+    
+    // 2 = white won, 1 = draw, 0 = black won, -1 = unfinished
+    private static int resultOf(String result) {
+        switch (result) {
+            case "1-0": return 2;
+            case "1/2-1/2": return 1;
+            case "0-1": return 0;
+            default: return -1;
+        }
+    }
+    
+    private static int resultOfLine(String line) {
+        if (line.contains("1/2-1/2") || line.contains("[0.5]")) {
+            return 1;
+        }
+        if (line.contains("1-0") || line.contains("[1.0]")) {
+            return 2;
+        }
+        if (line.contains("0-1") || line.contains("[0.0]")) {
+            return 0;
+        }
+        return -1;
+    }
+}
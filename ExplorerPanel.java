@@ -0,0 +1,172 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Side panel that shows what was played from the current position in a game database (opening explorer)
+// Looks positions up in a PositionIndex on its own thread - a lookup only takes a few milliseconds,
+// but the game loop and the EDT shouldn't wait even that long
+public class ExplorerPanel extends JPanel {
+    public static final int ROWS = 10; // most played moves shown
+    
+    private final JLabel titleLabel;
+    private final JLabel countLabel;
+    private final JLabel[] moveLabels = new JLabel[ROWS];
+    private volatile Lookup lookup; // null while it's turned off
+    private PositionIndex index;
+    
+    public ExplorerPanel() {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setBackground(new Color(40, 40, 40));
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        setPreferredSize(new Dimension(280, 0));
+        
+        titleLabel = new JLabel("Explorer");
+        titleLabel.setFont(new Font("Arial", Font.BOLD, 18));
+        titleLabel.setForeground(Color.WHITE);
+        add(titleLabel);
+        
+        countLabel = new JLabel(" ");
+        countLabel.setFont(new Font("Arial", Font.PLAIN, 12));
+        countLabel.setForeground(new Color(180, 180, 180));
+        add(countLabel);
+        add(Box.createVerticalStrut(10));
+        
+        JLabel columns = new JLabel(String.format("%-7s %6s  %4s %4s %4s", "Move", "Games", "1-0", "draw", "0-1"));
+        columns.setFont(new Font("Monospaced", Font.BOLD, 12));
+        columns.setForeground(new Color(180, 180, 180));
+        add(columns);
+        
+        for (int i = 0; i < ROWS; i++) {
+            moveLabels[i] = new JLabel(" ");
+            moveLabels[i].setFont(new Font("Monospaced", Font.PLAIN, 12));
+            moveLabels[i].setForeground(Color.WHITE);
+            add(moveLabels[i]);
+        }
+    }
+    
+    public boolean hasIndex() {
+        return index != null;
+    }
+    
+    // The database to look things up in (the old one is closed)
+    public void setIndex(PositionIndex newIndex) {
+        setRunning(false);
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                System.err.println("Error closing position index: " + e.getMessage());
+            }
+        }
+        index = newIndex;
+        titleLabel.setText("Explorer (" + newIndex.getGameCount() + " games)");
+    }
+    
+    public void setRunning(boolean running) {
+        if (running && lookup == null && index != null) {
+            lookup = new Lookup(index);
+            lookup.start();
+        } else if (!running && lookup != null) {
+            lookup.close();
+            lookup = null;
+        }
+    }
+    
+    public boolean isRunning() {
+        return lookup != null;
+    }
+    
+    // Any thread can call this - only the newest position gets looked up
+    public void setPosition(String fen) {
+        Lookup current = lookup;
+        if (current != null) {
+            current.setPosition(fen);
+        }
+    }
+    
+    // EDT only
+    private void show(String count, String[] rows) {
+        countLabel.setText(count);
+        for (int i = 0; i < ROWS; i++) {
+            moveLabels[i].setText(i < rows.length ? rows[i] : " ");
+        }
+    }
+    
+    private class Lookup extends Thread {
+        private final PositionIndex index;
+        private final ChessBoard board = new ChessBoard();
+        private final AtomicReference<String> pending = new AtomicReference<>();
+        private volatile boolean running = true;
+        
+        Lookup(PositionIndex index) {
+            super("chess-explorer");
+            this.index = index;
+            setDaemon(true);
+        }
+        
+        void setPosition(String fen) {
+            pending.set(fen);
+            LockSupport.unpark(this);
+        }
+        
+        void close() {
+            running = false;
+            LockSupport.unpark(this);
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                String fen = pending.getAndSet(null);
+                if (fen == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    board.loadFEN(fen);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Can't look up position: " + e.getMessage());
+                    continue;
+                }
+                
+                List<PositionIndex.MoveStats> moves = index.explore(board.getHash());
+                long total = 0;
+                for (PositionIndex.MoveStats stats : moves) {
+                    total += stats.games;
+                }
+                String count = total == 0 ? "Not in any game" : "Reached " + total + " times";
+                String[] rows = new String[Math.min(ROWS, moves.size())];
+                for (int i = 0; i < rows.length; i++) {
+                    PositionIndex.MoveStats stats = moves.get(i);
+                    String move;
+                    if (stats.move == PositionIndex.NO_MOVE) {
+                        move = "(end)";
+                    } else if (isLegal(stats.move)) {
+                        move = board.toSan(stats.move);
+                    } else {
+                        move = ChessBoard.moveToNotation(stats.move); // two positions with the same hash, very rare
+                    }
+                    rows[i] = String.format("%-7s %6d  %3d%% %3d%% %3d%%", move, stats.games,
+                                            percent(stats.whiteWins, stats.games), percent(stats.draws, stats.games),
+                                            percent(stats.blackWins, stats.games));
+                }
+                if (running && pending.get() == null) {
+                    SwingUtilities.invokeLater(() -> show(count, rows));
+                }
+            }
+        }
+        
+        private boolean isLegal(int move) {
+            int from = ChessBoard.moveFrom(move);
+            int to = ChessBoard.moveTo(move);
+            return (board.getLegalTargets(from / 8, from % 8) & (1L << to)) != 0;
+        }
+        
+        private int percent(long part, long whole) {
+            return (int) Math.round(100.0 * part / whole);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Binary game store - several times smaller than PGN and much faster to go through
+// Two files:
+//   club.games        - the games one after another, only ever added to at the end
+//   club.games.index  - the number of games, then where each one starts in the .games file
+//                       (8 bytes each). It's memory-mapped, so finding game n is one lookup
+//
+// A game in the .games file:
+//   int    length of the rest of the record
+//   short  number of moves
+//   byte   1 if there's a starting FEN (not the normal position), 0 if not
+//   [text] the starting FEN
+//   byte   number of tags, then each tag as two texts (name, value)
+//   bytes  one per move - where the move is in ChessBoard.generateMoves for that position
+//          (there's always less than 256, so one byte is enough)
+// A text is an unsigned short length and then UTF-8 bytes
+//
+// Adding games is synchronized, reading can happen from any number of threads at once.
+// Only one program should add to an archive - everyone else opens it with openForReading(),
+// which never changes the files and only sees the games that were in the index when it opened.
+public class GameArchive implements Closeable {
+    private static final long MAGIC = 0x4348455353415231L; // "CHESSAR1"
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_TAGS = 255;
+    private static final int MAX_MOVES = 65535;
+    private static final int INITIAL_INDEX_GAMES = 1024;
+    
+    private final Path path;
+    private final boolean readOnly;
+    private final FileChannel data;
+    private final FileChannel indexChannel;
+    private volatile MappedByteBuffer index; // replaced with a bigger one when it fills up
+    private volatile long gameCount;
+    private long dataSize;
+    
+    // Only used while adding a game
+    private final ChessBoard board = new ChessBoard();
+    private final int[] moveList = new int[256];
+    private ByteBuffer record = ByteBuffer.allocate(4096);
+    
+    // Opens the archive for adding games, making it if it isn't there
+    public GameArchive(Path path) throws IOException {
+        this(path, false);
+    }
+    
+    private GameArchive(Path path, boolean readOnly) throws IOException {
+        this.path = path;
+        this.readOnly = readOnly;
+        if (readOnly) {
+            data = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                indexChannel = FileChannel.open(indexPath(path), StandardOpenOption.READ);
+            } catch (IOException e) {
+                data.close();
+                throw new IOException(path + " has no index (opening it to import games rebuilds it)", e);
+            }
+        } else {
+            data = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            indexChannel = FileChannel.open(indexPath(path), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                            StandardOpenOption.CREATE);
+        }
+        try {
+            if (readOnly) {
+                openReadOnly();
+            } else {
+                open();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    // Opens an archive that's already there just to read it - safe while another program is adding to it
+    public static GameArchive openForReading(Path path) throws IOException {
+        return new GameArchive(path, true);
+    }
+    
+    private static Path indexPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".index");
+    }
+    
+    private void open() throws IOException {
+        if (data.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(0, MAGIC);
+            writeFully(data, header, 0);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException(path + " isn't a game archive");
+            }
+        }
+        
+        boolean newIndex = indexChannel.size() == 0;
+        mapIndex(Math.max(INITIAL_INDEX_GAMES, (indexChannel.size() - 8) / 8));
+        if (newIndex) {
+            rebuildIndex(); // an archive copied without its index, or a brand new one
+        } else {
+            gameCount = index.getLong(0);
+        }
+        
+        // Anything after the last game in the index is a game that was half written when we stopped
+        dataSize = HEADER_SIZE;
+        if (gameCount > 0) {
+            long last = offsetOf(gameCount - 1);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, last);
+            dataSize = last + 4 + length.getInt(0);
+        }
+        if (data.size() > dataSize) {
+            System.err.println("Game archive " + path + ": dropping " + (data.size() - dataSize) + " unfinished bytes");
+            data.truncate(dataSize);
+        }
+    }
+    
+    // Like open() but doesn't touch anything - bytes past the last indexed game might be
+    // a game the writer is halfway through, so they're just left alone
+    private void openReadOnly() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (data.size() < HEADER_SIZE || indexChannel.size() < 8) {
+            throw new IOException(path + " isn't a game archive");
+        }
+        readFully(header, 0);
+        if (header.getLong(0) != MAGIC) {
+            throw new IOException(path + " isn't a game archive");
+        }
+        
+        index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(indexChannel.size(), Integer.MAX_VALUE));
+        gameCount = Math.min(index.getLong(0), (index.capacity() - 8) / 8);
+        dataSize = HEADER_SIZE;
+        if (gameCount > 0) {
+            long last = offsetOf(gameCount - 1);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, last);
+            dataSize = last + 4 + length.getInt(0);
+        }
+    }
+    
+    // Goes through the records one by one and writes down where each starts
+    private void rebuildIndex() throws IOException {
+        long position = HEADER_SIZE;
+        long size = data.size();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        gameCount = 0;
+        while (position + 4 <= size) {
+            length.clear();
+            readFully(length, position);
+            long end = position + 4 + length.getInt(0);
+            if (end > size) {
+                break;
+            }
+            addToIndex(position);
+            position = end;
+        }
+        if (gameCount > 0) {
+            System.err.println("Game archive " + path + ": rebuilt the index (" + gameCount + " games)");
+        }
+    }
+    
+    private void mapIndex(long games) throws IOException {
+        long bytes = 8 + games * 8;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Game archive index is full");
+        }
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    }
+    
+    private void addToIndex(long offset) throws IOException {
+        if (8 + (gameCount + 1) * 8 > index.capacity()) {
+            mapIndex((index.capacity() - 8) / 8 * 2);
+        }
+        index.putLong((int) (8 + gameCount * 8), offset);
+        index.putLong(0, gameCount + 1);
+        gameCount++; // readers can see the new game from here on
+    }
+    
+    public long size() {
+        return gameCount;
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    private long offsetOf(long id) {
+        return index.getLong((int) (8 + id * 8));
+    }
+    
+    // Adds a game and returns its number
+    // The moves have to be ones ChessBoard.generateMoves would give - IllegalArgumentException if not
+    public synchronized long add(Map<String, String> headers, String startFen, int[] moves) throws IOException {
+        if (readOnly) {
+            throw new IOException(path + " was opened read-only");
+        }
+        if (moves.length > MAX_MOVES || headers.size() > MAX_TAGS) {
+            throw new IllegalArgumentException("Game is too long to archive");
+        }
+        if (startFen == null) {
+            startFen = ChessBoard.START_FEN;
+        }
+        boolean customStart = !startFen.equals(ChessBoard.START_FEN);
+        
+        record.clear();
+        record.putInt(0); // length, filled in at the end
+        record.putShort((short) moves.length);
+        record.put((byte) (customStart ? 1 : 0));
+        if (customStart) {
+            putText(startFen);
+        }
+        record.put((byte) headers.size());
+        for (Map.Entry<String, String> tag : headers.entrySet()) {
+            putText(tag.getKey());
+            putText(tag.getValue());
+        }
+        
+        board.loadFEN(startFen);
+        for (int i = 0; i < moves.length; i++) {
+            int count = board.generateMoves(moveList);
+            int found = -1;
+            for (int j = 0; j < count; j++) {
+                if (moveList[j] == moves[i]) {
+                    found = j;
+                    break;
+                }
+            }
+            if (found < 0) {
+                throw new IllegalArgumentException("Move " + (i + 1) + " (" + ChessBoard.moveToNotation(moves[i])
+                                                   + ") isn't legal");
+            }
+            ensureRoom(1);
+            record.put((byte) found);
+            board.playMove(moves[i]);
+        }
+        record.putInt(0, record.position() - 4);
+        record.flip();
+        
+        // The game goes in the file first, so the index never points at something that isn't there
+        writeFully(data, record, dataSize);
+        long offset = dataSize;
+        dataSize += record.limit();
+        addToIndex(offset);
+        return gameCount - 1;
+    }
+    
+    public long add(PgnGame game) throws IOException {
+        return add(game.getHeaders(), game.getStartFEN(), game.decodeMoves());
+    }
+    
+    // Reads any game by its number
+    public ArchivedGame get(long id) throws IOException {
+        if (id < 0 || id >= gameCount) {
+            throw new IllegalArgumentException("No game " + id + " (the archive has " + gameCount + ")");
+        }
+        long offset = offsetOf(id);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        ByteBuffer buffer = ByteBuffer.allocate(length.getInt(0));
+        readFully(buffer, offset + 4);
+        buffer.flip();
+        return parse(id, buffer);
+    }
+    
+    // Goes through the games in order starting at game "firstId", reading the file in big chunks
+    public Reader reader(long firstId) {
+        return new Reader(firstId);
+    }
+    
+    public void flush() throws IOException {
+        data.force(false);
+        index.force();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            if (index != null && !readOnly) {
+                flush();
+            }
+        } finally {
+            data.close();
+            indexChannel.close();
+        }
+    }
+    
+    // Reads one record (without its length) into a game
+    private static ArchivedGame parse(long id, ByteBuffer buffer) {
+        int moveCount = buffer.getShort() & 0xFFFF;
+        String startFen = buffer.get() == 1 ? getText(buffer) : ChessBoard.START_FEN;
+        int tagCount = buffer.get() & 0xFF;
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < tagCount; i++) {
+            String name = getText(buffer);
+            headers.put(name, getText(buffer));
+        }
+        byte[] moves = new byte[moveCount];
+        buffer.get(moves);
+        return new ArchivedGame(id, headers, startFen, moves);
+    }
+    
+    private static String getText(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private void putText(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 65535) {
+            throw new IllegalArgumentException("Tag is too long to archive");
+        }
+        ensureRoom(2 + bytes.length);
+        record.putShort((short) bytes.length);
+        record.put(bytes);
+    }
+    
+    private void ensureRoom(int bytes) {
+        if (record.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+            record.flip();
+            bigger.put(record);
+            record = bigger;
+        }
+    }
+    
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = data.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Game archive " + path + " ends too early");
+            }
+            position += read;
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    // Streams games in order - one buffer refilled as it goes, like PgnReader
+    public class Reader {
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        private long nextId;
+        private long filePosition; // where the next read from the file starts
+        
+        private Reader(long firstId) {
+            nextId = firstId;
+            filePosition = firstId < gameCount ? offsetOf(firstId) : dataSize;
+            buffer.flip(); // starts empty
+        }
+        
+        // The next game, or null when we've reached the games that were there when we started
+        public ArchivedGame next() throws IOException {
+            if (nextId >= gameCount) {
+                return null;
+            }
+            fill(4);
+            int length = buffer.getInt();
+            fill(length);
+            ArchivedGame game = parse(nextId++, buffer.slice().limit(length));
+            buffer.position(buffer.position() + length);
+            return game;
+        }
+        
+        // Makes sure the buffer has at least this many bytes left
+        private void fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (buffer.capacity() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(bytes);
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < bytes) {
+                int read = data.read(buffer, filePosition);
+                if (read < 0) {
+                    throw new IOException("Game archive " + path + " ends too early");
+                }
+                filePosition += read;
+            }
+            buffer.flip();
+        }
+    }
+    
+    // Command line tool:
+    //   java GameArchive import <archive> <file.pgn>...   adds every game in the PGN files
+    //   java GameArchive export <archive> <file.pgn>      writes every game out as PGN
+    //   java GameArchive info <archive>                   how many games, and how fast they can be read
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java GameArchive import|export|info <archive> [file.pgn...]");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        Path path = Paths.get(args[1]);
+        try (GameArchive archive = args[0].equals("import") ? new GameArchive(path) : openForReading(path)) {
+            switch (args[0]) {
+                case "import":
+                    for (int i = 2; i < args.length; i++) {
+                        long added = 0;
+                        try (PgnReader reader = new PgnReader(Paths.get(args[i]))) {
+                            for (PgnGame game = reader.next(); game != null; game = reader.next()) {
+                                try {
+                                    archive.add(game);
+                                    added++;
+                                } catch (IllegalArgumentException e) {
+                                    System.err.println(args[i] + ": skipping game - " + e.getMessage());
+                                }
+                            }
+                        }
+                        System.out.println(args[i] + ": added " + added + " games");
+                    }
+                    break;
+                case "export":
+                    try (PgnWriter writer = new PgnWriter(Paths.get(args[2]))) {
+                        Reader reader = archive.reader(0);
+                        for (ArchivedGame game = reader.next(); game != null; game = reader.next()) {
+                            writer.write(game.getHeaders(), game.getStartFEN(), game.decodeMoves());
+                        }
+                    }
+                    break;
+                case "info":
+                    long moves = 0;
+                    Reader reader = archive.reader(0);
+                    for (ArchivedGame game = reader.next(); game != null; game = reader.next()) {
+                        moves += game.getMoveCount();
+                    }
+                    System.out.println(archive.size() + " games, " + moves + " moves, "
+                                       + Files.size(archive.getPath()) / 1024 + " KB");
+                    break;
+                default:
+                    System.err.println("Unknown command: " + args[0]);
+                    System.exit(1);
+            }
+        }
+        System.out.println("Took " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+// Every change to the game goes through here - clicks, moves from the network, clocks running out
+// One thread owns the ChessBoard and runs the changes one at a time in order, so the board
+// never needs locking. Other threads hand it work with submit() (a lock-free queue) and read
+// the game through getSnapshot(), which is a frozen copy made after each batch of changes.
+// Slow painting on the EDT can't hold up moves, and moves can't change the board mid-paint.
+public class GameLoop extends Thread implements ChessBoard.ChangeListener {
+    private final ChessBoard board;
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile BoardSnapshot snapshot;
+    private volatile boolean running = true;
+    
+    // Only touched on the loop thread
+    private long changedSquares;
+    private String result; // why the game ended, null while it's still going
+    
+    public interface Listener {
+        // Called on the loop thread after each batch of changes - don't do slow stuff here
+        void gameChanged(BoardSnapshot snapshot, long changedSquares);
+    }
+    
+    public GameLoop(ChessBoard board) {
+        super("chess-game-loop");
+        setDaemon(true);
+        this.board = board;
+        board.addChangeListener(this);
+        snapshot = new BoardSnapshot(board, null);
+    }
+    
+    // Runs the command on the loop thread (later, in order with everything else)
+    public void submit(Runnable command) {
+        commands.add(command);
+        LockSupport.unpark(this);
+    }
+    
+    public BoardSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    // Only use the board from inside a submitted command!
+    public ChessBoard getBoard() {
+        return board;
+    }
+    
+    public boolean isLoopThread() {
+        return Thread.currentThread() == this;
+    }
+    
+    // These two are for commands too - set when a clock runs out, cleared for a new game
+    public void setResult(String result) {
+        this.result = result;
+    }
+    
+    public String getResult() {
+        return result;
+    }
+    
+    public void close() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+    
+    @Override
+    public void run() {
+        while (running) {
+            Runnable command = commands.poll();
+            if (command == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            
+            // Run everything that's waiting, then publish one snapshot for the lot
+            while (command != null) {
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error in game loop: " + e);
+                    e.printStackTrace();
+                }
+                command = commands.poll();
+            }
+            publish();
+        }
+        board.removeChangeListener(this);
+    }
+    
+    private void publish() {
+        BoardSnapshot old = snapshot;
+        if (changedSquares == 0 && old.getHash() == board.getHash() && old.getPly() == board.getPly()
+                && old.getResult() == result) {
+            return; // nothing changed
+        }
+        
+        // Snapshot first, then tell the listeners which squares changed,
+        // so anyone reacting to the change already sees the new position
+        BoardSnapshot fresh = new BoardSnapshot(board, result);
+        snapshot = fresh;
+        long changed = changedSquares;
+        changedSquares = 0;
+        for (Listener listener : listeners) {
+            listener.gameChanged(fresh, changed);
+        }
+    }
+    
+    // The ChessBoard tells us about changes while a command runs
+    @Override
+    public void squaresChanged(long squares) {
+        changedSquares |= squares;
+    }
+}
@@ -7,6 +7,7 @@ public class GameSettings {
     private int timePerPlayerMinutes;
     private boolean isOnlineGame;
     private boolean isHost;
+    private boolean isSpectator;
     
     public GameSettings() {
         // Default values
@@ -16,6 +17,7 @@ public class GameSettings {
         timePerPlayerMinutes = 10;
         isOnlineGame = false;
         isHost = false;
+        isSpectator = false;
     }
     
     // Getters and Setters
@@ -67,6 +69,14 @@ public class GameSettings {
         this.isHost = host;
     }
     
+    public boolean isSpectator() {
+        return isSpectator;
+    }
+    
+    public void setSpectator(boolean spectator) {
+        this.isSpectator = spectator;
+    }
+    
     public int getTimePerPlayerSeconds() {
         return timePerPlayerMinutes * 60;
     }
@@ -0,0 +1,206 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Finds games on the LAN so nobody has to type IP addresses
+// Hosts send a tiny UDP message (a "beacon") every second to a multicast group,
+// and the main menu listens for them and shows a list of games to join.
+// The joiner gets the host's address from the packet itself, so nobody needs to know their own IP.
+public class LanDiscovery {
+    public static final String GROUP = "239.255.77.77"; // multicast address only used on the local network
+    public static final int DISCOVERY_PORT = 5557;
+    private static final int BEACON_MILLIS = 1000;
+    private static final int FORGET_AFTER_MILLIS = 3500; // missed about 3 beacons = host is gone
+    private static final String MAGIC = "CHESS1";
+    
+    // A game somebody is hosting, as seen from the beacons
+    public static class FoundGame {
+        private final String address;
+        private final int port;
+        private final int spectatorPort;
+        private final boolean open;     // false once an opponent has joined (you can still watch)
+        private final String hostName;
+        private long lastSeen;
+        
+        FoundGame(String address, int port, int spectatorPort, boolean open, String hostName) {
+            this.address = address;
+            this.port = port;
+            this.spectatorPort = spectatorPort;
+            this.open = open;
+            this.hostName = hostName;
+        }
+        
+        public String getAddress() {
+            return address;
+        }
+        
+        public int getPort() {
+            return port;
+        }
+        
+        public int getSpectatorPort() {
+            return spectatorPort;
+        }
+        
+        public boolean isOpen() {
+            return open;
+        }
+        
+        public String getHostName() {
+            return hostName;
+        }
+        
+        // This is what the JList shows
+        @Override
+        public String toString() {
+            return hostName + " - " + address + (open ? "  (waiting for opponent)" : "  (playing, watch only)");
+        }
+    }
+    
+    // Host side - keeps announcing the game until it's closed
+    public static class Beacon extends Thread {
+        private final DatagramSocket socket;
+        private final InetAddress target;
+        private final int targetPort;
+        private final int gamePort;
+        private final int spectatorPort;
+        private final String hostName;
+        private volatile boolean open = true;
+        private volatile boolean running = true;
+        
+        public Beacon(String hostName, int gamePort, int spectatorPort) throws IOException {
+            this(InetAddress.getByName(GROUP), DISCOVERY_PORT, hostName, gamePort, spectatorPort);
+        }
+        
+        // Target can be any address - tests just use 127.0.0.1
+        public Beacon(InetAddress target, int targetPort, String hostName, int gamePort, int spectatorPort)
+                throws IOException {
+            super("chess-beacon");
+            setDaemon(true);
+            this.socket = new DatagramSocket();
+            this.target = target;
+            this.targetPort = targetPort;
+            this.gamePort = gamePort;
+            this.spectatorPort = spectatorPort;
+            // Spaces would break the message, and nobody needs a name this long
+            String name = hostName.replace(' ', '_');
+            this.hostName = name.length() > 40 ? name.substring(0, 40) : name;
+        }
+        
+        // Call when the opponent joins so the game shows as "watch only"
+        public void setOpen(boolean open) {
+            this.open = open;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // CHESS1 <game port> <spectator port> <open|playing> <host name>
+                    String message = MAGIC + " " + gamePort + " " + spectatorPort + " "
+                                     + (open ? "open" : "playing") + " " + hostName;
+                    byte[] data = message.getBytes(StandardCharsets.UTF_8);
+                    socket.send(new DatagramPacket(data, data.length, target, targetPort));
+                    Thread.sleep(BEACON_MILLIS);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Couldn't announce game on the LAN: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                // Closing
+            } finally {
+                socket.close();
+            }
+        }
+        
+        public void close() {
+            running = false;
+            interrupt();
+        }
+    }
+    
+    // Joiner side - listens for beacons and reports the current list whenever it changes
+    // The callback runs on this thread, so GUIs need to use invokeLater
+    public static class Finder extends Thread {
+        private final MulticastSocket socket;
+        private final Consumer<List<FoundGame>> onChange;
+        private final Map<String, FoundGame> games = new LinkedHashMap<>();
+        private volatile boolean running = true;
+        
+        public Finder(Consumer<List<FoundGame>> onChange) throws IOException {
+            this(InetAddress.getByName(GROUP), DISCOVERY_PORT, onChange);
+        }
+        
+        // If group isn't a multicast address we just listen on the port (handy for loopback tests)
+        public Finder(InetAddress group, int port, Consumer<List<FoundGame>> onChange) throws IOException {
+            super("chess-finder");
+            setDaemon(true);
+            this.onChange = onChange;
+            socket = new MulticastSocket(port); // turns on address reuse so several menus can listen
+            if (group.isMulticastAddress()) {
+                socket.joinGroup(new InetSocketAddress(group, 0), null);
+            }
+            socket.setSoTimeout(BEACON_MILLIS);
+        }
+        
+        @Override
+        public void run() {
+            DatagramPacket packet = new DatagramPacket(new byte[256], 256);
+            while (running) {
+                boolean changed = false;
+                try {
+                    packet.setLength(256);
+                    socket.receive(packet);
+                    changed = handleBeacon(packet);
+                } catch (SocketTimeoutException e) {
+                    // No beacons this second, still check if anyone went away
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("LAN discovery stopped: " + e.getMessage());
+                    }
+                    break;
+                }
+                
+                // Forget hosts we haven't heard from in a while
+                long now = System.currentTimeMillis();
+                changed |= games.values().removeIf(game -> now - game.lastSeen > FORGET_AFTER_MILLIS);
+                
+                if (changed) {
+                    onChange.accept(new ArrayList<>(games.values()));
+                }
+            }
+            socket.close();
+        }
+        
+        // Returns true if the list of games changed
+        private boolean handleBeacon(DatagramPacket packet) {
+            String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            String[] parts = message.split(" ");
+            if (parts.length != 5 || !parts[0].equals(MAGIC)) {
+                return false; // not one of ours
+            }
+            
+            FoundGame game;
+            try {
+                game = new FoundGame(packet.getAddress().getHostAddress(),
+                                     Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                                     parts[3].equals("open"), parts[4].replace('_', ' '));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            game.lastSeen = System.currentTimeMillis();
+            
+            String key = game.address + ":" + game.port;
+            FoundGame old = games.put(key, game);
+            return old == null || old.open != game.open || !old.hostName.equals(game.hostName);
+        }
+        
+        public void close() {
+            running = false;
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,539 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Load test for ChessServer (or anything else that speaks the NetworkManager protocol)
+// Opens lots of fake players and spectators from one machine and reports how the server copes.
+//
+// Usage: java LoadTest [options]
+//   --server             start a ChessServer inside this JVM first
+//   --host <address>     server to connect to (default 127.0.0.1)
+//   --port <port>        default 5555
+//   --players <n>        number of player connections, two per game (default 1000)
+//   --spectators <n>     number of spectator connections (default 0)
+//   --rate <moves/sec>   how fast each player moves (default 1)
+//   --plies <n>          moves per game before the players leave and start a new one (default 80)
+//   --duration <sec>     how long to run (default 60)
+//   --report <sec>       how often to print stats (default 5)
+//   --threads <n>        client threads (default: number of cores)
+//   --ramp <conn/sec>    how fast to open connections (default 500)
+//   --script <file>      play these games instead of random moves, one game per line ("e2e4 e7e5 ...")
+//
+// Thousands of sockets need a high enough open file limit - try "ulimit -n 65536" first.
+public class LoadTest {
+    private String host = "127.0.0.1";
+    private int port = 5555;
+    private int players = 1000;
+    private int spectators = 0;
+    private double rate = 1.0;
+    private int plies = 80;
+    private int duration = 60;
+    private int reportEvery = 5;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int ramp = 500;
+    private boolean startServer = false;
+    private List<String[]> scripts = new ArrayList<>();
+    
+    // Shared stats - every worker thread adds to these
+    private final LongAdder movesReceived = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder gamesStarted = new LongAdder();
+    private final AtomicInteger playersConnected = new AtomicInteger();
+    private final AtomicInteger spectatorsConnected = new AtomicInteger();
+    private final AtomicInteger newestGameId = new AtomicInteger();
+    private final Metrics.Histogram latency = new Metrics.Histogram(); // microseconds
+    
+    // When the last move in each game was sent, so the player receiving it can work out the latency
+    // (both players of a game are normally in this JVM)
+    private final ConcurrentHashMap<Integer, AtomicLong> moveSentAt = new ConcurrentHashMap<>();
+    
+    private Worker[] workers;
+    private InetSocketAddress address;
+    
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parseArgs(args);
+        test.run();
+    }
+    
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--server": startServer = true; break;
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--players": players = Integer.parseInt(args[++i]); break;
+                case "--spectators": spectators = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--plies": plies = Integer.parseInt(args[++i]); break;
+                case "--duration": duration = Integer.parseInt(args[++i]); break;
+                case "--report": reportEvery = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--ramp": ramp = Integer.parseInt(args[++i]); break;
+                case "--script":
+                    for (String line : Files.readAllLines(Paths.get(args[++i]))) {
+                        if (!line.trim().isEmpty()) {
+                            scripts.add(line.trim().split("\\s+"));
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+    
+    private void run() throws Exception {
+        ChessServer server = null;
+        if (startServer) {
+            server = new ChessServer(port);
+            server.setDaemon(true);
+            server.start();
+        }
+        
+        address = new InetSocketAddress(host, port);
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        
+        System.out.println("Load test: " + players + " players, " + spectators + " spectators, "
+                           + rate + " moves/sec each, " + duration + "s against " + address);
+        
+        // Open connections a bit at a time so we don't overflow the server's accept queue
+        long start = System.nanoTime();
+        long end = start + duration * 1_000_000_000L;
+        long nextReport = start + reportEvery * 1_000_000_000L;
+        int opened = 0;
+        int total = players + spectators;
+        Snapshot last = new Snapshot(start);
+        while (System.nanoTime() < end) {
+            long elapsed = System.nanoTime() - start;
+            int shouldHaveOpened = (int) Math.min(total, elapsed * ramp / 1_000_000_000L + 1);
+            while (opened < shouldHaveOpened) {
+                // Players first, spectators need games to exist before they can watch one
+                boolean spectator = opened >= players;
+                workers[opened % threads].add(new Client(spectator));
+                opened++;
+            }
+            
+            if (System.nanoTime() >= nextReport) {
+                last = report(start, last, server);
+                nextReport += reportEvery * 1_000_000_000L;
+            }
+            Thread.sleep(10);
+        }
+        
+        System.out.println("--- final ---");
+        report(start, last, server);
+        for (Worker worker : workers) {
+            worker.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        System.exit(0);
+    }
+    
+    // Numbers at the time of the last report, so each report shows that interval
+    private static class Snapshot {
+        final long time;
+        long moves;
+        long frames;
+        long[] latencyCounts = new long[Metrics.Histogram.BUCKETS];
+        
+        Snapshot(long time) {
+            this.time = time;
+        }
+    }
+    
+    private Snapshot report(long start, Snapshot last, ChessServer server) {
+        Snapshot now = new Snapshot(System.nanoTime());
+        now.moves = movesReceived.sum();
+        now.frames = framesReceived.sum();
+        now.latencyCounts = latency.counts();
+        
+        double seconds = (now.time - last.time) / 1e9;
+        long[] interval = new long[Metrics.Histogram.BUCKETS];
+        for (int i = 0; i < interval.length; i++) {
+            interval[i] = now.latencyCounts[i] - last.latencyCounts[i];
+        }
+        
+        Runtime runtime = Runtime.getRuntime();
+        long heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("t=%3ds players=%d spectators=%d games=%d moves/s=%.0f frames/s=%.0f",
+            (now.time - start) / 1_000_000_000L, playersConnected.get(), spectatorsConnected.get(),
+            gamesStarted.sum(), (now.moves - last.moves) / seconds, (now.frames - last.frames) / seconds));
+        line.append(String.format(" latency p50=%s p90=%s p99=%s max=%s",
+            Metrics.Histogram.format(Metrics.Histogram.percentile(interval, 0.50)),
+            Metrics.Histogram.format(Metrics.Histogram.percentile(interval, 0.90)),
+            Metrics.Histogram.format(Metrics.Histogram.percentile(interval, 0.99)),
+            Metrics.Histogram.format(Metrics.Histogram.percentile(interval, 1.00))));
+        line.append(" errors=").append(errors.sum());
+        line.append(" heap=").append(heapMb).append("MB/").append(runtime.maxMemory() / (1024 * 1024)).append("MB");
+        if (server != null) {
+            line.append(" server(players=").append(server.getPlayerCount())
+                .append(" spectators=").append(server.getSpectatorCount()).append(')');
+        }
+        System.out.println(line);
+        return now;
+    }
+    
+    // One fake player or spectator
+    private class Client {
+        final boolean spectator;
+        SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(1024);
+        ByteBuffer pendingWrite;
+        final ChessBoard board = new ChessBoard();
+        boolean white;
+        int gameId;
+        boolean connected;
+        long dueNanos;       // when this client should do its next move (or reconnect)
+        boolean reconnecting;
+        String[] script;
+        
+        Client(boolean spectator) {
+            this.spectator = spectator;
+        }
+    }
+    
+    // A thread that looks after a share of the clients using one Selector
+    private class Worker extends Thread {
+        private final Selector selector;
+        private final Queue<Client> newClients = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Client> timers = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.dueNanos, b.dueNanos));
+        private final Random random;
+        private final int[] moveBuffer = new int[256];
+        private volatile boolean running = true;
+        
+        Worker(int index) throws IOException {
+            super("load-worker-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+            random = new Random(index);
+        }
+        
+        void add(Client client) {
+            newClients.add(client);
+            selector.wakeup();
+        }
+        
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long wait = 100;
+                    Client next = timers.peek();
+                    if (next != null) {
+                        wait = Math.max(1, (next.dueNanos - System.nanoTime()) / 1_000_000);
+                    }
+                    selector.select(wait);
+                    
+                    Client client;
+                    while ((client = newClients.poll()) != null) {
+                        connect(client);
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        client = (Client) key.attachment();
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                finishConnect(client);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(client);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(client, null);
+                            }
+                        } catch (IOException e) {
+                            errors.increment();
+                            drop(client);
+                        }
+                    }
+                    
+                    // Clients whose move (or reconnect) is due
+                    long now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().dueNanos <= now) {
+                        client = timers.poll();
+                        if (client.reconnecting) {
+                            client.reconnecting = false;
+                            connect(client);
+                        } else if (client.connected) {
+                            try {
+                                playMove(client);
+                            } catch (IOException e) {
+                                errors.increment();
+                                drop(client);
+                            }
+                        }
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Worker failed: " + e.getMessage());
+            }
+        }
+        
+        private void connect(Client client) {
+            try {
+                client.channel = SocketChannel.open();
+                client.channel.configureBlocking(false);
+                client.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                client.in.clear();
+                client.pendingWrite = null;
+                client.gameId = 0;
+                client.board.reset();
+                if (client.channel.connect(address)) {
+                    client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                    connected(client);
+                } else {
+                    client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                }
+            } catch (IOException e) {
+                errors.increment();
+                retryLater(client);
+            }
+        }
+        
+        private void finishConnect(Client client) throws IOException {
+            client.channel.finishConnect();
+            client.key.interestOps(SelectionKey.OP_READ);
+            connected(client);
+        }
+        
+        private void connected(Client client) throws IOException {
+            client.connected = true;
+            if (client.spectator) {
+                spectatorsConnected.incrementAndGet();
+                // Watch one of the newest games
+                int newest = newestGameId.get();
+                int id = newest <= 1 ? 1 : newest - random.nextInt(Math.max(1, Math.min(newest, players / 2)));
+                write(client, "WATCH " + Math.max(1, id));
+            } else {
+                playersConnected.incrementAndGet();
+                write(client, "HELLO 0 " + Long.toHexString(client.board.getHash()) + " any");
+            }
+        }
+        
+        private void read(Client client) throws IOException {
+            int count = client.channel.read(client.in);
+            if (count < 0) {
+                drop(client);
+                return;
+            }
+            client.in.flip();
+            int lineStart = 0;
+            for (int i = 0; i < client.in.limit(); i++) {
+                if (client.in.get(i) == '\n') {
+                    String line = new String(client.in.array(), lineStart, i - lineStart, StandardCharsets.UTF_8);
+                    lineStart = i + 1;
+                    handleLine(client, line);
+                    if (!client.connected) {
+                        return;
+                    }
+                }
+            }
+            client.in.position(lineStart);
+            client.in.compact();
+        }
+        
+        private void handleLine(Client client, String line) throws IOException {
+            String[] parts = line.split(" ");
+            switch (parts[0]) {
+                case "HELLO":
+                    // HELLO 0 <hash> <w|b> <game id> - we've got an opponent
+                    if (parts.length >= 5) {
+                        client.white = parts[3].equals("w");
+                        client.gameId = Integer.parseInt(parts[4]);
+                        newestGameId.accumulateAndGet(client.gameId, Math::max);
+                        if (client.white) {
+                            gamesStarted.increment();
+                            moveSentAt.put(client.gameId, new AtomicLong());
+                            if (!scripts.isEmpty()) {
+                                client.script = scripts.get(client.gameId % scripts.size());
+                            }
+                            scheduleMove(client);
+                        } else if (!scripts.isEmpty()) {
+                            client.script = scripts.get(client.gameId % scripts.size());
+                        }
+                    }
+                    break;
+                case "MOVE":
+                    AtomicLong sentAt = moveSentAt.get(client.gameId);
+                    if (sentAt != null && sentAt.get() != 0) {
+                        latency.record((System.nanoTime() - sentAt.get()) / 1000);
+                    }
+                    movesReceived.increment();
+                    if (!client.board.movePiece(parts[2])) {
+                        errors.increment();
+                    }
+                    scheduleMove(client);
+                    break;
+                case "SYNC":
+                    if (client.spectator) {
+                        framesReceived.increment();
+                    } else {
+                        // Our board was off - take the server's and carry on
+                        int ply = Integer.parseInt(parts[1]);
+                        client.board.loadFEN(line.substring(line.indexOf(' ', 5) + 1), ply);
+                        if (client.board.isWhiteTurn() == client.white) {
+                            scheduleMove(client);
+                        }
+                    }
+                    break;
+                case "ERROR":
+                    errors.increment();
+                    break;
+                case "BYE":
+                    // Opponent finished the game - find a new one
+                    drop(client);
+                    break;
+                case "PING":
+                    // Answer like a real player, so the server can time its round trips
+                    if (parts.length > 1 && !client.spectator) {
+                        write(client, "PONG " + parts[1]);
+                    }
+                    break;
+                default:
+                    break; // anything else
+            }
+        }
+        
+        private void scheduleMove(Client client) {
+            // Random gap around the target rate so the games don't all move in lockstep
+            double seconds = (0.5 + random.nextDouble()) / rate;
+            client.dueNanos = System.nanoTime() + (long) (seconds * 1e9);
+            timers.remove(client);
+            timers.add(client);
+        }
+        
+        private void playMove(Client client) throws IOException {
+            ChessBoard board = client.board;
+            if (board.isWhiteTurn() != client.white) {
+                return;
+            }
+            
+            String move = null;
+            if (board.getPly() >= plies) {
+                // Game's long enough - leave and start a new one
+                write(client, "BYE");
+                drop(client);
+                return;
+            }
+            if (client.script != null && board.getPly() < client.script.length) {
+                move = client.script[board.getPly()];
+                if (!board.movePiece(move)) {
+                    move = null;
+                }
+            }
+            if (move == null) {
+                move = randomMove(board);
+                if (move == null) {
+                    write(client, "BYE"); // no moves left
+                    drop(client);
+                    return;
+                }
+                board.movePiece(move);
+            }
+            
+            AtomicLong sentAt = moveSentAt.get(client.gameId);
+            if (sentAt != null) {
+                sentAt.set(System.nanoTime());
+            }
+            write(client, "MOVE " + board.getPly() + " " + move + " " + Long.toHexString(board.getHash()));
+        }
+        
+        // Any legal move for the side to move
+        private String randomMove(ChessBoard board) {
+            int count = 0;
+            for (int from = 0; from < 64 && count < moveBuffer.length; from++) {
+                long targets = board.getLegalTargets(from / 8, from % 8);
+                for (; targets != 0 && count < moveBuffer.length; targets &= targets - 1) {
+                    moveBuffer[count++] = from * 64 + Long.numberOfTrailingZeros(targets);
+                }
+            }
+            if (count == 0) {
+                return null;
+            }
+            int move = moveBuffer[random.nextInt(count)];
+            return ChessBoard.toNotation(move / 64 / 8, move / 64 % 8, move % 64 / 8, move % 64 % 8);
+        }
+        
+        private void write(Client client, String line) throws IOException {
+            if (line != null) {
+                ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+                if (client.pendingWrite != null) {
+                    ByteBuffer joined = ByteBuffer.allocate(client.pendingWrite.remaining() + bytes.remaining());
+                    joined.put(client.pendingWrite).put(bytes).flip();
+                    bytes = joined;
+                }
+                client.pendingWrite = bytes;
+            }
+            if (client.pendingWrite == null) {
+                return;
+            }
+            client.channel.write(client.pendingWrite);
+            if (client.pendingWrite.hasRemaining()) {
+                client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                client.pendingWrite = null;
+                client.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        
+        // Closes the connection and opens a new one a little later
+        private void drop(Client client) {
+            if (client.gameId != 0) {
+                // Whichever side goes first, however it goes - the game's over either way
+                moveSentAt.remove(client.gameId);
+                client.gameId = 0;
+            }
+            if (client.connected) {
+                client.connected = false;
+                if (client.spectator) {
+                    spectatorsConnected.decrementAndGet();
+                } else {
+                    playersConnected.decrementAndGet();
+                }
+            }
+            if (client.key != null) {
+                client.key.cancel();
+            }
+            try {
+                client.channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            retryLater(client);
+        }
+        
+        private void retryLater(Client client) {
+            timers.remove(client);
+            client.reconnecting = true;
+            client.dueNanos = System.nanoTime() + 50_000_000L + random.nextInt(100_000_000);
+            timers.add(client);
+        }
+    }
+}
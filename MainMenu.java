@@ -1,17 +1,26 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
 
 // Main menu screen - where you set up the game before playing
 public class MainMenu extends JFrame {
     private GameSettings settings;
+    private LanDiscovery.Finder gameFinder;
+    private final DefaultListModel<LanDiscovery.FoundGame> foundGames = new DefaultListModel<>();
     
     public MainMenu() {
         settings = new GameSettings();
         
+        // Start working out our IP once the menu is up so hosting doesn't have to wait for it later
+        // (looking through the network interfaces is slow on some machines, so not before the first frame)
+        Startup.later(NetworkManager::findLocalIPInBackground);
+        
         setTitle("Chess Game - Main Menu");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
-        setSize(500, 600);
+        setSize(500, 800);
         
         // Big title at the top
         JPanel titlePanel = new JPanel();
@@ -74,6 +83,20 @@ public class MainMenu extends JFrame {
         
         contentPanel.add(Box.createVerticalStrut(30));
         
+        // Games other people are hosting on the network (found with LAN discovery)
+        contentPanel.add(createSectionLabel("Games on Your Network"));
+        contentPanel.add(Box.createVerticalStrut(10));
+        
+        JList<LanDiscovery.FoundGame> gameList = new JList<>(foundGames);
+        gameList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        gameList.setVisibleRowCount(4);
+        JScrollPane gameListScroll = new JScrollPane(gameList);
+        gameListScroll.setAlignmentX(Component.LEFT_ALIGNMENT);
+        gameListScroll.setMaximumSize(new Dimension(400, 100));
+        contentPanel.add(gameListScroll);
+        
+        contentPanel.add(Box.createVerticalStrut(30));
+        
         // Game Mode Buttons
         contentPanel.add(createSectionLabel("Select Game Mode"));
         contentPanel.add(Box.createVerticalStrut(15));
@@ -101,10 +124,7 @@ public class MainMenu extends JFrame {
         
         JButton joinGameButton = createStyledButton("Join Online Game", new Color(156, 39, 176));
         joinGameButton.addActionListener(e -> {
-            String host = JOptionPane.showInputDialog(this, 
-                "Enter host IP address:", 
-                "Join Game", 
-                JOptionPane.QUESTION_MESSAGE);
+            String host = pickHost(gameList, "Join Game", false);
             
             if (host != null && !host.trim().isEmpty()) {
                 updateSettings(whiteNameField, blackNameField, timerCheckbox, timeSpinner);
@@ -117,6 +137,69 @@ public class MainMenu extends JFrame {
         
         contentPanel.add(Box.createVerticalStrut(10));
         
+        JButton watchGameButton = createStyledButton("Watch Online Game", new Color(255, 152, 0));
+        watchGameButton.addActionListener(e -> {
+            String host = pickHost(gameList, "Watch Game", true);
+            
+            if (host != null && !host.trim().isEmpty()) {
+                updateSettings(whiteNameField, blackNameField, timerCheckbox, timeSpinner);
+                settings.setOnlineGame(true);
+                settings.setHost(false);
+                settings.setSpectator(true);
+                settings.setTimerEnabled(false); // the clocks belong to the players
+                startGame(host.trim());
+            }
+        });
+        contentPanel.add(watchGameButton);
+        
+        contentPanel.add(Box.createVerticalStrut(10));
+        
+        // Lots of boards in one window - you against the engine on all of them
+        JButton simulButton = createStyledButton("Simul vs Engine", new Color(0, 150, 136));
+        simulButton.addActionListener(e -> {
+            String answer = JOptionPane.showInputDialog(this, "How many boards?", "12");
+            if (answer == null) {
+                return;
+            }
+            try {
+                int boards = Math.max(1, Math.min(100, Integer.parseInt(answer.trim())));
+                updateSettings(whiteNameField, blackNameField, timerCheckbox, timeSpinner);
+                // The time setting is the engine's thinking time on each board
+                long budget = (settings.isTimerEnabled() ? settings.getTimePerPlayerMinutes() : 5) * 60_000L;
+                if (gameFinder != null) {
+                    gameFinder.close();
+                }
+                new SimulWindow(boards, budget, true);
+                dispose();
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "That's not a number: " + answer);
+            }
+        });
+        contentPanel.add(simulButton);
+        
+        // A game that already has two players can only be watched
+        gameList.addListSelectionListener(e -> {
+            LanDiscovery.FoundGame game = gameList.getSelectedValue();
+            joinGameButton.setEnabled(game == null || game.isOpen());
+        });
+        
+        // Double click a game to join it (or watch it if it already has two players)
+        gameList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                LanDiscovery.FoundGame game = gameList.getSelectedValue();
+                if (e.getClickCount() == 2 && game != null) {
+                    if (game.isOpen()) {
+                        joinGameButton.doClick();
+                    } else {
+                        watchGameButton.doClick();
+                    }
+                }
+            }
+        });
+        
+        contentPanel.add(Box.createVerticalStrut(10));
+        
         JButton exitButton = createStyledButton("Exit", new Color(244, 67, 54));
         exitButton.addActionListener(e -> System.exit(0));
         contentPanel.add(exitButton);
@@ -125,7 +208,53 @@ public class MainMenu extends JFrame {
         add(contentPanel, BorderLayout.CENTER);
         
         setLocationRelativeTo(null);
+        Startup.mark("menu built");
+        Startup.firstFrame(this);
         setVisible(true);
+        
+        Startup.later(() -> startLookingForGames(gameList));
+    }
+    
+    // Listens for hosts announcing games and keeps the list up to date
+    // Runs on the startup thread (joining the multicast group can be slow), the finder is handed to the EDT
+    private void startLookingForGames(JList<LanDiscovery.FoundGame> gameList) {
+        try {
+            LanDiscovery.Finder finder = new LanDiscovery.Finder(games -> SwingUtilities.invokeLater(() -> {
+                // Keep the same game selected when the list changes
+                LanDiscovery.FoundGame selected = gameList.getSelectedValue();
+                foundGames.clear();
+                for (LanDiscovery.FoundGame game : games) {
+                    foundGames.addElement(game);
+                    if (selected != null && game.getAddress().equals(selected.getAddress())
+                            && game.getPort() == selected.getPort()) {
+                        gameList.setSelectedIndex(foundGames.size() - 1);
+                    }
+                }
+            }));
+            finder.start();
+            SwingUtilities.invokeLater(() -> {
+                if (isDisplayable()) {
+                    gameFinder = finder;
+                } else {
+                    finder.close(); // the menu was closed before we got going
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Can't look for games on the LAN, you'll have to type the IP: " + e.getMessage());
+        }
+    }
+    
+    // Uses the game picked in the list (with the port it announced for playing or watching),
+    // or asks for an IP if nothing is picked - "address:port" if it's not on the usual port
+    private String pickHost(JList<LanDiscovery.FoundGame> gameList, String title, boolean watching) {
+        LanDiscovery.FoundGame game = gameList.getSelectedValue();
+        if (game != null) {
+            return game.getAddress() + ":" + (watching ? game.getSpectatorPort() : game.getPort());
+        }
+        return JOptionPane.showInputDialog(this, 
+            "No game selected - enter host IP address:", 
+            title, 
+            JOptionPane.QUESTION_MESSAGE);
     }
     
     private JLabel createSectionLabel(String text) {
@@ -169,6 +298,9 @@ public class MainMenu extends JFrame {
     }
     
     private void startGame(String hostIp) {
+        if (gameFinder != null) {
+            gameFinder.close();
+        }
         SwingUtilities.invokeLater(() -> {
             new ChessGUI(settings, hostIp);
             dispose();
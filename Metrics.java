@@ -0,0 +1,469 @@
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Numbers about how the engine, the network and the window are doing while the program runs.
+// They show up over JMX (jconsole, VisualVM...) as chess:type=Engine, Game, Network and Window,
+// and with -Dchess.metrics=<seconds> a summary line is printed that often, for the headless programs.
+//
+// The hot paths only ever add to LongAdders (every thread gets its own cell, so nobody waits on
+// anybody) and the engine doesn't even do that per node - it counts in its own fields and adds
+// them here every 2048 nodes. All the adding up happens on one "chess-metrics" thread that takes
+// a sample every second; rates are worked out over the last few samples, percentiles over the last minute.
+public final class Metrics {
+    private static final int SAMPLE_MILLIS = 1000;
+    private static final int RATE_SAMPLES = 5;        // rates are over the last 5 seconds
+    private static final int PERCENTILE_SAMPLES = 60; // percentiles over the last minute
+    
+    private static final LongAdder engineNodes = new LongAdder();
+    private static final LongAdder tableProbes = new LongAdder();
+    private static final LongAdder tableHits = new LongAdder();
+    private static final LongAdder moves = new LongAdder();
+    private static final LongAdder connections = new LongAdder(); // up when one opens, down when it closes
+    private static final LongAdder spectators = new LongAdder();
+    private static final Histogram roundTrips = new Histogram();       // microseconds
+    private static final Histogram eventQueueDelays = new Histogram(); // microseconds
+    
+    // Every engine's table, so we can see how full they are (weak so finished engines can go)
+    private static final Set<TranspositionTable> tables = Collections.newSetFromMap(new WeakHashMap<>());
+    
+    // The last minute of samples, oldest first - only the sampler adds to it
+    private static final List<Sample> samples = new ArrayList<>();
+    private static Thread sampler;
+    private static volatile boolean watchingEventQueue;
+    
+    private Metrics() {
+    }
+    
+    // Everything we count, at one moment
+    private static class Sample {
+        final long time = System.nanoTime();
+        final long nodes = engineNodes.sum();
+        final long probes = tableProbes.sum();
+        final long hits = tableHits.sum();
+        final long moveCount = moves.sum();
+        final long allocated = allocatedBytes();
+        final long[] roundTripCounts = roundTrips.counts();
+        final long[] eventQueueCounts = eventQueueDelays.counts();
+        final int tableFill = averageTableFill(); // out of 1000, -1 with no tables
+    }
+    
+    // ---- Recording - safe to call from any thread, as often as you like ----
+    
+    static void engineWork(long nodes, long probes, long hits) {
+        engineNodes.add(nodes);
+        tableProbes.add(probes);
+        tableHits.add(hits);
+    }
+    
+    static void moveMade() {
+        moves.increment();
+    }
+    
+    static void connectionOpened() {
+        connections.increment();
+    }
+    
+    static void connectionClosed() {
+        connections.decrement();
+    }
+    
+    static void spectatorJoined() {
+        spectators.increment();
+    }
+    
+    static void spectatorLeft() {
+        spectators.decrement();
+    }
+    
+    static void spectatorsLeft(int count) {
+        spectators.add(-count);
+    }
+    
+    // Time from sending a PING to its PONG coming back - anything negative or over a minute
+    // didn't come from one of our PINGs, so it's ignored
+    static void roundTrip(long nanos) {
+        if (nanos >= 0 && nanos < 60_000_000_000L) {
+            roundTrips.record(nanos / 1000);
+        }
+    }
+    
+    static void watch(TranspositionTable table) {
+        synchronized (tables) {
+            tables.add(table);
+        }
+    }
+    
+    // The window calls this - after that the sampler also times how long the EDT takes to get to things
+    static void watchEventQueue() {
+        watchingEventQueue = true;
+    }
+    
+    // ---- Starting up ----
+    
+    // Call once near the start of a program - registers the MBeans and starts sampling
+    public static synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new Engine(), new ObjectName("chess:type=Engine"));
+            server.registerMBean(new Game(), new ObjectName("chess:type=Game"));
+            server.registerMBean(new Network(), new ObjectName("chess:type=Network"));
+            server.registerMBean(new Window(), new ObjectName("chess:type=Window"));
+        } catch (JMException e) {
+            System.err.println("Couldn't register metrics with JMX: " + e.getMessage());
+        }
+        
+        int printEvery = Integer.getInteger("chess.metrics", 0);
+        sampler = new Thread(() -> sample(printEvery), "chess-metrics");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+    
+    private static void sample(int printEvery) {
+        int sinceLastPrint = 0;
+        while (true) {
+            Sample sample = new Sample();
+            synchronized (samples) {
+                samples.add(sample);
+                if (samples.size() > PERCENTILE_SAMPLES + 1) {
+                    samples.remove(0);
+                }
+            }
+            
+            if (watchingEventQueue) {
+                long posted = System.nanoTime();
+                EventQueue.invokeLater(() -> eventQueueDelays.record((System.nanoTime() - posted) / 1000));
+            }
+            
+            // On stderr so it never gets mixed up with UCI output on stdout
+            if (printEvery > 0 && ++sinceLastPrint >= printEvery) {
+                sinceLastPrint = 0;
+                System.err.println(summary());
+            }
+            
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    // One line with everything, like
+    // "engine 850k nodes/s, table 41% hits 63% full | 2.4 moves/s, 1.2KB/move | 12 connections, 3 watching,
+    //  ping p50=0.4ms p90=0.9ms p99=2.0ms | window p50=120us p99=3.1ms max=9.8ms"
+    public static String summary() {
+        StringBuilder line = new StringBuilder("engine ");
+        line.append(engineNodesPerSecond() / 1000).append("k nodes/s, table ")
+            .append(percent(tableHitPercent())).append(" hits ")
+            .append(percent(tableFillPercent())).append(" full | ")
+            .append(String.format("%.1f moves/s, ", movesPerSecond()))
+            .append(bytes(bytesPerMove())).append("/move | ")
+            .append(connections.sum()).append(" connections, ")
+            .append(spectators.sum()).append(" watching, ping");
+        long[] pings = window(true);
+        line.append(" p50=").append(Histogram.format(Histogram.percentile(pings, 0.50)))
+            .append(" p90=").append(Histogram.format(Histogram.percentile(pings, 0.90)))
+            .append(" p99=").append(Histogram.format(Histogram.percentile(pings, 0.99)));
+        if (watchingEventQueue) {
+            long[] delays = window(false);
+            line.append(" | window p50=").append(Histogram.format(Histogram.percentile(delays, 0.50)))
+                .append(" p99=").append(Histogram.format(Histogram.percentile(delays, 0.99)))
+                .append(" max=").append(Histogram.format(Histogram.percentile(delays, 1.0)));
+        }
+        return line.toString();
+    }
+    
+    private static String percent(double value) {
+        return value < 0 ? "-" : String.format("%.0f%%", value);
+    }
+    
+    private static String bytes(long value) {
+        if (value < 0) {
+            return "-";
+        }
+        return value < 1024 ? value + "B" : String.format("%.1fKB", value / 1024.0);
+    }
+    
+    // ---- Working the numbers out from the samples ----
+    
+    // The newest sample and the one 'back' samples before it (or the oldest we have)
+    private static Sample[] lastTwo(int back) {
+        synchronized (samples) {
+            if (samples.size() < 2) {
+                return null;
+            }
+            int newest = samples.size() - 1;
+            return new Sample[] {samples.get(Math.max(0, newest - back)), samples.get(newest)};
+        }
+    }
+    
+    private static double seconds(Sample[] pair) {
+        return (pair[1].time - pair[0].time) / 1e9;
+    }
+    
+    static long engineNodesPerSecond() {
+        Sample[] pair = lastTwo(RATE_SAMPLES);
+        return pair == null ? 0 : (long) ((pair[1].nodes - pair[0].nodes) / seconds(pair));
+    }
+    
+    // -1 if the engine hasn't looked anything up lately
+    static double tableHitPercent() {
+        Sample[] pair = lastTwo(RATE_SAMPLES);
+        if (pair == null || pair[1].probes == pair[0].probes) {
+            return -1;
+        }
+        return 100.0 * (pair[1].hits - pair[0].hits) / (pair[1].probes - pair[0].probes);
+    }
+    
+    static double tableFillPercent() {
+        Sample[] pair = lastTwo(0);
+        return pair == null || pair[1].tableFill < 0 ? -1 : pair[1].tableFill / 10.0;
+    }
+    
+    static double movesPerSecond() {
+        Sample[] pair = lastTwo(RATE_SAMPLES);
+        return pair == null ? 0 : (pair[1].moveCount - pair[0].moveCount) / seconds(pair);
+    }
+    
+    // Everything the JVM allocated over the last minute shared out over the moves made in it,
+    // so a search running at the same time counts too. -1 with no moves (or no way to measure).
+    static long bytesPerMove() {
+        Sample[] pair = lastTwo(PERCENTILE_SAMPLES);
+        if (pair == null || pair[1].moveCount == pair[0].moveCount
+                || pair[0].allocated < 0 || pair[1].allocated < pair[0].allocated) {
+            return -1; // (less than before means a busy thread finished - wait for a better minute)
+        }
+        return (pair[1].allocated - pair[0].allocated) / (pair[1].moveCount - pair[0].moveCount);
+    }
+    
+    // Histogram counts for the last minute, round trips or event queue delays
+    private static long[] window(boolean roundTrip) {
+        Sample[] pair = lastTwo(PERCENTILE_SAMPLES);
+        if (pair == null) {
+            return new long[Histogram.BUCKETS];
+        }
+        long[] newer = roundTrip ? pair[1].roundTripCounts : pair[1].eventQueueCounts;
+        long[] older = roundTrip ? pair[0].roundTripCounts : pair[0].eventQueueCounts;
+        long[] counts = new long[Histogram.BUCKETS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = newer[i] - older[i];
+        }
+        return counts;
+    }
+    
+    private static double millis(long[] counts, double fraction) {
+        long micros = Histogram.percentile(counts, fraction);
+        return micros < 0 ? -1 : micros / 1000.0;
+    }
+    
+    // What the threads that are still running have allocated between them (-1 if the JVM can't say)
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes); // -1 for a thread that ended while we were asking
+        }
+        return total;
+    }
+    
+    private static int averageTableFill() {
+        synchronized (tables) {
+            if (tables.isEmpty()) {
+                return -1;
+            }
+            int total = 0;
+            for (TranspositionTable table : tables) {
+                total += table.getFillPermille();
+            }
+            return total / tables.size();
+        }
+    }
+    
+    // ---- What JMX sees (-1 means "nothing to go on yet") ----
+    
+    public interface EngineMXBean {
+        long getNodes();
+        long getNodesPerSecond();
+        double getTableHitPercent();
+        double getTableFillPercent();
+    }
+    
+    public interface GameMXBean {
+        long getMoves();
+        double getMovesPerSecond();
+        long getBytesAllocatedPerMove();
+    }
+    
+    public interface NetworkMXBean {
+        long getConnections();
+        long getSpectators();
+        double getRoundTripMillisP50();
+        double getRoundTripMillisP90();
+        double getRoundTripMillisP99();
+    }
+    
+    public interface WindowMXBean {
+        double getEventQueueMillisP50();
+        double getEventQueueMillisP99();
+        double getEventQueueMillisMax();
+    }
+    
+    private static class Engine implements EngineMXBean {
+        public long getNodes() {
+            return engineNodes.sum();
+        }
+        
+        public long getNodesPerSecond() {
+            return engineNodesPerSecond();
+        }
+        
+        public double getTableHitPercent() {
+            return tableHitPercent();
+        }
+        
+        public double getTableFillPercent() {
+            return tableFillPercent();
+        }
+    }
+    
+    private static class Game implements GameMXBean {
+        public long getMoves() {
+            return moves.sum();
+        }
+        
+        public double getMovesPerSecond() {
+            return movesPerSecond();
+        }
+        
+        public long getBytesAllocatedPerMove() {
+            return bytesPerMove();
+        }
+    }
+    
+    private static class Network implements NetworkMXBean {
+        public long getConnections() {
+            return connections.sum();
+        }
+        
+        public long getSpectators() {
+            return spectators.sum();
+        }
+        
+        public double getRoundTripMillisP50() {
+            return millis(window(true), 0.50);
+        }
+        
+        public double getRoundTripMillisP90() {
+            return millis(window(true), 0.90);
+        }
+        
+        public double getRoundTripMillisP99() {
+            return millis(window(true), 0.99);
+        }
+    }
+    
+    private static class Window implements WindowMXBean {
+        public double getEventQueueMillisP50() {
+            return millis(window(false), 0.50);
+        }
+        
+        public double getEventQueueMillisP99() {
+            return millis(window(false), 0.99);
+        }
+        
+        public double getEventQueueMillisMax() {
+            return millis(window(false), 1.0);
+        }
+    }
+    
+    // Counts values into buckets that grow with the value (8 per doubling), so percentiles
+    // come out within about 12% whatever the range. Each bucket is a LongAdder, so lots of
+    // threads can record at once without getting in each other's way.
+    static class Histogram {
+        static final int BUCKETS = 8 * 40;
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+        
+        void record(long value) {
+            counts[bucket(Math.max(0, value))].increment();
+        }
+        
+        long[] counts() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts[i].sum();
+            }
+            return copy;
+        }
+        
+        static int bucket(long value) {
+            if (value < 8) {
+                return (int) value;
+            }
+            int topBit = 63 - Long.numberOfLeadingZeros(value);
+            int index = (topBit - 2) * 8 + (int) ((value >>> (topBit - 3)) & 7);
+            return Math.min(index, BUCKETS - 1);
+        }
+        
+        // Smallest value that lands in this bucket
+        static long bucketValue(int index) {
+            if (index < 8) {
+                return index;
+            }
+            int topBit = index / 8 + 2;
+            return (8L + index % 8) << (topBit - 3);
+        }
+        
+        // -1 if nothing was recorded
+        static long percentile(long[] counts, double fraction) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return bucketValue(i);
+                }
+            }
+            return bucketValue(counts.length - 1);
+        }
+        
+        static String format(long micros) {
+            if (micros < 0) {
+                return "-";
+            }
+            return micros < 1000 ? micros + "us" : String.format("%.1fms", micros / 1000.0);
+        }
+    }
+}
@@ -1,44 +1,126 @@
 import java.io.*;
 import java.net.*;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // Handles online multiplayer over LAN
 // One person hosts, the other joins
+// This thread only reads and writes the socket - everything that looks at the board
+// is handed to the game loop, so it happens in order with the clicks and clocks
 public class NetworkManager extends Thread {
     private boolean isHost;
+    private boolean isSpectator;
     private ChessGUI gui;
+    private GameLoop game;
+    private ChessBoard board; // only touched on the game loop thread
     private String host;
+    private int remotePort; // the host's game (or spectator) port, 0 = the usual one
     private Socket socket;
     private ServerSocket serverSocket;
     private BufferedReader in;
-    private PrintWriter out;
-    private boolean running = true;
+    private volatile PrintWriter out;
+    private volatile boolean running = true;
+    private final AtomicBoolean connected = new AtomicBoolean(); // so the metrics count each connection once
+    private Timer heartbeat;
+    private volatile SpectatorHub spectatorHub; // only the host has one
+    private LanDiscovery.Beacon beacon; // tells the LAN about our game, host only
+    
+    // The last move number where we know both boards had the same hash
+    // If the boards stop matching we only ask for the moves after this one
+    private int lastAgreedPly = 0;
+    
+    // Made up by the host when the opponent first connects and sent to them with SESSION.
+    // After a drop the joiner has to show it again, so nobody else can take their seat.
+    private volatile String sessionToken;
     
     private static final int PORT = 5555;  // port number for connection
+    private static final int HEARTBEAT_MILLIS = 5000;      // send a PING this often
+    private static final int READ_TIMEOUT_MILLIS = 15000;  // nothing for this long = connection is dead
+    private static final int RECONNECT_WINDOW_MILLIS = 60000; // how long we wait for the other side to come back
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;     // a reconnecting joiner has this long to say who they are
     
     public NetworkManager(boolean isHost, ChessGUI gui) {
         this.isHost = isHost;
         this.gui = gui;
+        this.game = gui.getGame();
+        this.board = game.getBoard();
     }
     
+    // "192.168.1.5", or "192.168.1.5:6000" for a host that isn't on the usual port
+    // (games found on the LAN always come with the port they announced)
     public void setHost(String host) {
+        int colon = host.lastIndexOf(':');
+        if (colon > 0 && host.indexOf(':') == colon && host.substring(colon + 1).matches("\\d{1,5}")) {
+            remotePort = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
         this.host = host;
     }
     
+    private int gamePort() {
+        return remotePort > 0 ? remotePort : PORT;
+    }
+    
+    // Spectators connect to the host's spectator port and only ever receive boards
+    public void setSpectator(boolean spectator) {
+        this.isSpectator = spectator;
+    }
+    
     @Override
     public void run() {
+        if (isSpectator) {
+            watchGame();
+            return;
+        }
+        
         try {
             if (isHost) {
                 startServer();
             } else {
                 connectToServer();
             }
+            startHeartbeat();
             
-            // Keep listening for moves from the other player
-            String move;
-            while (running && (move = in.readLine()) != null) {
-                final String receivedMove = move;
-                gui.applyNetworkMove(receivedMove);
+            // If the connection drops we reconnect and carry on with the same game
+            while (running) {
+                try {
+                    // Tell the other side where we are, they'll ask for anything they missed
+                    // (a joiner coming back adds the host's session token so the host knows it's us)
+                    String token = isHost || sessionToken == null ? "" : " " + sessionToken;
+                    game.submit(() -> sendLine("HELLO " + board.getPly() + " " + Long.toHexString(board.getHash()) + token));
+                    
+                    // Keep listening for moves from the other player
+                    String line;
+                    while (running && (line = in.readLine()) != null) {
+                        if (line.equals("BYE")) {
+                            // Stop right here so we don't try to reconnect
+                            running = false;
+                            gui.showNetworkStatus("Opponent left the game");
+                            break;
+                        }
+                        if (line.startsWith("SESSION ") && !isHost) {
+                            sessionToken = line.substring(8).trim();
+                            continue;
+                        }
+                        if (line.startsWith("PING ") || line.startsWith("PONG ")) {
+                            // Answered right here so the round trip doesn't include the game loop
+                            handleHeartbeat(line);
+                            continue;
+                        }
+                        String message = line;
+                        game.submit(() -> handleMessage(message));
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Connection lost: " + e.getMessage());
+                    }
+                }
+                
+                if (running) {
+                    reconnect();
+                }
             }
         } catch (IOException e) {
             if (running) {
@@ -50,12 +132,246 @@ public class NetworkManager extends Thread {
         }
     }
     
+    // Messages are one per line, hashes are written in hex:
+    //   HELLO <ply> <hash> [token]  - sent after every (re)connect, says where our board is
+    //                                 (a joiner coming back adds the token from SESSION)
+    //   SESSION <token>             - host to joiner on the first connect (handled in run())
+    //   MOVE <ply> <e2e4> <hash>    - a move, the move number it makes and the hash after it
+    //   RESYNC <ply> <hash>         - our boards differ, send me your moves after this one
+    //   RESYNC FULL                 - just send me your whole board
+    //   MOVES <ply> <hash> <moves>  - answer to RESYNC, the moves after <ply> and the final hash
+    //   SYNC <ply> <fen>            - the whole board, copy it to get back in sync
+    //   ERROR <text>                - the other side rejected our last message
+    //   PING [token]                - keeps the connection alive, answer a token with PONG (handled in run())
+    //   PONG <token>                - answer to our PING, the token is when we sent it
+    //   BYE                         - the other player left, don't wait for them (handled in run())
+    // Runs on the game loop thread
+    private void handleMessage(String line) {
+        String[] parts = line.split(" ");
+        try {
+            switch (parts[0]) {
+                case "HELLO":
+                    handleHello(Integer.parseInt(parts[1]), parseHash(parts[2]));
+                    break;
+                case "MOVE":
+                    handleMove(Integer.parseInt(parts[1]), parts[2], parseHash(parts[3]));
+                    break;
+                case "RESYNC":
+                    handleResync(parts);
+                    break;
+                case "MOVES":
+                    handleMoves(parts);
+                    break;
+                case "SYNC":
+                    int ply = Integer.parseInt(parts[1]);
+                    board.loadFEN(line.substring(line.indexOf(' ', 5) + 1), ply);
+                    lastAgreedPly = ply;
+                    publishBoard();
+                    break;
+                case "ERROR":
+                    System.err.println("Opponent rejected our message: " + line.substring(5).trim());
+                    break;
+                case "PING":
+                    break;
+                default:
+                    sendLine("ERROR unknown message " + parts[0]);
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Never trust the other side - a broken message shouldn't crash us
+            System.err.println("Bad message from opponent: " + line);
+            sendLine("ERROR bad message " + parts[0]);
+        }
+    }
+    
+    // Runs on the network thread - older versions send a plain PING and never a PONG
+    private void handleHeartbeat(String line) {
+        String token = line.substring(5).trim();
+        try {
+            if (line.startsWith("PING")) {
+                sendLine("PONG " + token);
+            } else {
+                Metrics.roundTrip(System.nanoTime() - Long.parseLong(token));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Bad message from opponent: " + line);
+        }
+    }
+    
+    private void handleHello(int theirPly, long theirHash) {
+        if (theirPly == board.getPly() && theirHash == board.getHash()) {
+            lastAgreedPly = theirPly;
+        } else if (theirPly > board.getPly() || (theirPly == board.getPly() && !isHost)) {
+            // They're ahead of us (or we disagree and the host wins ties) - ask for their moves
+            requestResync();
+        }
+        // Otherwise they're behind and will ask us
+    }
+    
+    private void handleMove(int ply, String move, long theirHash) {
+        if (ply <= board.getPly()) {
+            // We already have this move (it was sent again after a reconnect), just check it matches
+            if (board.hasPly(ply) && board.getHashAt(ply) == theirHash) {
+                lastAgreedPly = Math.max(lastAgreedPly, ply);
+            } else {
+                requestResync();
+            }
+            return;
+        }
+        if (ply > board.getPly() + 1) {
+            // We missed some moves
+            requestResync();
+            return;
+        }
+        
+        if (!gui.applyNetworkMove(move)) {
+            // Illegal move - tell them and send our board so they can resync
+            System.err.println("Rejected illegal move from opponent: " + move);
+            sendLine("ERROR illegal move " + move);
+            sendSync();
+        } else if (board.getHash() != theirHash) {
+            // The move was fine but our boards were already different
+            requestResync();
+        } else {
+            lastAgreedPly = ply;
+        }
+        publishBoard();
+    }
+    
+    private void requestResync() {
+        if (board.hasPly(lastAgreedPly)) {
+            sendLine("RESYNC " + lastAgreedPly + " " + Long.toHexString(board.getHashAt(lastAgreedPly)));
+        } else {
+            sendLine("RESYNC FULL");
+        }
+    }
+    
+    private void handleResync(String[] parts) {
+        if (parts[1].equals("FULL")) {
+            sendSync();
+            return;
+        }
+        
+        int ply = Integer.parseInt(parts[1]);
+        long theirHash = parseHash(parts[2]);
+        if (!board.hasPly(ply) || board.getHashAt(ply) != theirHash) {
+            // We don't agree on that position either, so send everything
+            sendSync();
+            return;
+        }
+        
+        // Only send the moves they're missing instead of the whole game
+        StringBuilder reply = new StringBuilder("MOVES ");
+        reply.append(ply).append(' ').append(Long.toHexString(board.getHash()));
+        for (int i = ply + 1; i <= board.getPly(); i++) {
+            reply.append(' ').append(board.getMoveAt(i));
+        }
+        sendLine(reply.toString());
+    }
+    
+    private void handleMoves(String[] parts) {
+        int ply = Integer.parseInt(parts[1]);
+        long finalHash = parseHash(parts[2]);
+        if (!board.hasPly(ply)) {
+            sendLine("RESYNC FULL");
+            return;
+        }
+        
+        board.rewindTo(ply);
+        for (int i = 3; i < parts.length; i++) {
+            if (!board.movePiece(parts[i])) {
+                break;
+            }
+        }
+        
+        if (board.getHash() == finalHash) {
+            lastAgreedPly = board.getPly();
+        } else {
+            // Replaying their moves didn't work, fall back to copying their whole board
+            sendLine("RESYNC FULL");
+        }
+        publishBoard();
+    }
+    
+    private void sendSync() {
+        sendLine("SYNC " + board.getPly() + " " + board.toFEN());
+    }
+    
+    // Sends the current board to everyone watching (only the host has spectators)
+    private void publishBoard() {
+        if (spectatorHub != null) {
+            spectatorHub.publish(board.getPly(), board.toFEN());
+        }
+    }
+    
+    // Spectator mode - just copy every board the host sends us until they stop
+    private void watchGame() {
+        try {
+            int port = remotePort > 0 ? remotePort : SpectatorHub.SPECTATOR_PORT;
+            System.out.println("Connecting to " + host + ":" + port + " as a spectator");
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 10000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            gui.showNetworkStatus("Watching");
+            
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                if (line.startsWith("SYNC ")) {
+                    String sync = line;
+                    game.submit(() -> copyHostBoard(sync));
+                }
+            }
+            if (running) {
+                gui.showNetworkStatus("The game has ended");
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Network error: " + e.getMessage());
+                showError(e);
+            }
+        } finally {
+            running = false;
+            closeConnection();
+        }
+    }
+    
+    // Runs on the game loop thread
+    private void copyHostBoard(String line) {
+        try {
+            int ply = Integer.parseInt(line.substring(5, line.indexOf(' ', 5)));
+            board.loadFEN(line.substring(line.indexOf(' ', 5) + 1), ply);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println("Bad board from host: " + line);
+        }
+    }
+    
+    private long parseHash(String hex) {
+        return Long.parseUnsignedLong(hex, 16);
+    }
+    
     private void startServer() throws IOException {
         // Allow reuse of address to prevent "Address already in use" error
         serverSocket = new ServerSocket();
         serverSocket.setReuseAddress(true);
         serverSocket.bind(new InetSocketAddress(PORT));
         
+        // Anyone can watch on the spectator port while we wait and while we play
+        try {
+            spectatorHub = new SpectatorHub(SpectatorHub.SPECTATOR_PORT);
+            spectatorHub.start();
+            game.submit(this::publishBoard);
+        } catch (IOException e) {
+            System.err.println("Couldn't open spectator port, nobody can watch: " + e.getMessage());
+        }
+        
+        // Let the main menus on the LAN know there's a game here
+        try {
+            beacon = new LanDiscovery.Beacon(gui.getSettings().getWhitePlayerName(), PORT,
+                                             SpectatorHub.SPECTATOR_PORT);
+            beacon.start();
+        } catch (IOException e) {
+            System.err.println("Couldn't announce game, opponents will have to type your IP: " + e.getMessage());
+        }
+        
         String myIP = getLocalIP();
         System.out.println("Server started! Your IP: " + myIP);
         System.out.println("Waiting for opponent to join...");
@@ -69,13 +385,18 @@ public class NetworkManager extends Thread {
                 myIP + "\n\n" +
                 "You will play as WHITE ♔\n" +
                 "Your opponent will play as BLACK ♚\n\n" +
-                "Example: If IP is 192.168.43.x, they enter that when joining",
+                "Players on the same network will also see your game\n" +
+                "in their main menu and can just pick it.",
                 "Hosting Game - Port " + PORT,
                 javax.swing.JOptionPane.INFORMATION_MESSAGE);
         });
         
         socket = serverSocket.accept();
         System.out.println("Opponent connected!");
+        sessionToken = Long.toHexString(new SecureRandom().nextLong());
+        if (beacon != null) {
+            beacon.setOpen(false); // still listed, but only for watching
+        }
         
         javax.swing.SwingUtilities.invokeLater(() -> {
             javax.swing.JOptionPane.showMessageDialog(null,
@@ -84,15 +405,15 @@ public class NetworkManager extends Thread {
                 javax.swing.JOptionPane.INFORMATION_MESSAGE);
         });
         
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        openStreams();
+        sendLine("SESSION " + sessionToken);
     }
     
     private void connectToServer() throws IOException {
-        System.out.println("Connecting to " + host + ":" + PORT);
+        System.out.println("Connecting to " + host + ":" + gamePort());
         System.out.println("You will play as BLACK (joiner always plays black)");
         socket = new Socket();
-        socket.connect(new InetSocketAddress(host, PORT), 10000); // 10 sec timeout
+        socket.connect(new InetSocketAddress(host, gamePort()), 10000); // 10 sec timeout
         System.out.println("Connected to host!");
         
         javax.swing.SwingUtilities.invokeLater(() -> {
@@ -105,8 +426,100 @@ public class NetworkManager extends Thread {
                 javax.swing.JOptionPane.INFORMATION_MESSAGE);
         });
         
+        openStreams();
+    }
+    
+    private void openStreams() throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS); // the PINGs keep this from firing while the game is quiet
+        socket.setKeepAlive(true);
+        socket.setTcpNoDelay(true); // moves are tiny, send them right away
         in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         out = new PrintWriter(socket.getOutputStream(), true);
+        if (connected.compareAndSet(false, true)) {
+            Metrics.connectionOpened();
+        }
+    }
+    
+    // The connection dropped - get it back without restarting the game
+    // The host waits for the joiner to connect again, the joiner keeps retrying
+    private void reconnect() throws IOException {
+        closeConnection();
+        System.out.println("Connection lost, trying to reconnect...");
+        gui.showNetworkStatus("Connection lost - reconnecting...");
+        
+        if (isHost) {
+            // The game is still listed on the LAN, so whoever connects first might not be our opponent
+            long giveUpAt = System.currentTimeMillis() + RECONNECT_WINDOW_MILLIS;
+            while (true) {
+                int left = (int) (giveUpAt - System.currentTimeMillis());
+                if (left <= 0 || !running) {
+                    throw new SocketTimeoutException("Opponent didn't come back");
+                }
+                serverSocket.setSoTimeout(left);
+                socket = serverSocket.accept();
+                openStreams();
+                if (isReturningOpponent()) {
+                    break;
+                }
+                closeConnection();
+            }
+        } else {
+            long giveUpAt = System.currentTimeMillis() + RECONNECT_WINDOW_MILLIS;
+            while (true) {
+                try {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(host, gamePort()), 2000);
+                    break;
+                } catch (IOException e) {
+                    socket.close();
+                    if (!running || System.currentTimeMillis() > giveUpAt) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException("Reconnect interrupted");
+                    }
+                }
+            }
+        }
+        
+        if (!isHost) {
+            openStreams();
+        }
+        System.out.println("Reconnected!");
+        gui.showNetworkStatus(null);
+    }
+    
+    // Host only - reads the first line from whoever just connected and checks it's a HELLO with our
+    // session token. If it is, the HELLO is handled like any other; if not they're turned away.
+    private boolean isReturningOpponent() {
+        try {
+            socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            String line = in.readLine();
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            String[] parts = line == null ? new String[0] : line.split(" ");
+            if (parts.length > 3 && parts[0].equals("HELLO") && parts[3].equals(sessionToken)) {
+                game.submit(() -> handleMessage(line));
+                return true;
+            }
+            System.out.println("Turned away a connection that isn't our opponent");
+            sendLine("ERROR game in progress");
+            sendLine("BYE"); // so a joiner that picked the wrong game stops instead of retrying
+        } catch (IOException e) {
+            System.out.println("Turned away a connection that didn't say hello: " + e.getMessage());
+        }
+        return false;
+    }
+    
+    private void startHeartbeat() {
+        heartbeat = new Timer("chess-heartbeat", true);
+        heartbeat.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sendLine("PING " + System.nanoTime());
+            }
+        }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS);
     }
     
     // Show useful error messages
@@ -130,15 +543,45 @@ public class NetworkManager extends Thread {
     }
     
     // Send a move to the other player (like "e2e4")
+    // Call this on the game loop thread right after the move was made on our board,
+    // it sends the new move number and hash too
     public void sendMove(String move) {
+        sendLine("MOVE " + board.getPly() + " " + move + " " + Long.toHexString(board.getHash()));
+        publishBoard();
+    }
+    
+    public int getSpectatorCount() {
+        return spectatorHub == null ? 0 : spectatorHub.getSpectatorCount();
+    }
+    
+    private void sendLine(String line) {
         if (out != null) {
-            out.println(move);
+            out.println(line);
+        }
+    }
+    
+    // Looking through the network interfaces can take a while on some machines,
+    // so we do it once on a background thread (started from the main menu) and remember the answer
+    private static final CompletableFuture<String> localIP = new CompletableFuture<>();
+    private static final AtomicBoolean lookingForIP = new AtomicBoolean(false);
+    
+    public static void findLocalIPInBackground() {
+        if (lookingForIP.compareAndSet(false, true)) {
+            Thread finder = new Thread(() -> localIP.complete(findLocalIP()), "chess-find-ip");
+            finder.setDaemon(true);
+            finder.start();
         }
     }
     
     // Get your computer's ACTUAL IP address (not 127.0.0.1)
-    // Should return something like 192.168.1.105 or 192.168.43.x for hotspot
+    // Only waits the first time, if the background lookup hasn't finished yet
     public static String getLocalIP() {
+        findLocalIPInBackground();
+        return localIP.join();
+    }
+    
+    // Should return something like 192.168.1.105 or 192.168.43.x for hotspot
+    private static String findLocalIP() {
         String bestIP = null;
         
         try {
@@ -153,10 +596,6 @@ public class NetworkManager extends Thread {
                     continue;
                 }
                 
-                // Print interface name for debugging
-                String ifaceName = iface.getName().toLowerCase();
-                System.out.println("Checking interface: " + ifaceName + " - " + iface.getDisplayName());
-                
                 Enumeration<InetAddress> addresses = iface.getInetAddresses();
                 while (addresses.hasMoreElements()) {
                     InetAddress addr = addresses.nextElement();
@@ -164,13 +603,12 @@ public class NetworkManager extends Thread {
                     // We want IPv4 addresses only, not IPv6
                     if (addr instanceof Inet4Address && !addr.isLoopbackAddress()) {
                         String ip = addr.getHostAddress();
-                        System.out.println("  Found IP: " + ip);
                         
                         // Prioritize these IP ranges (common for hotspots and WiFi)
                         // 192.168.43.x is common for mobile hotspots
                         // 192.168.x.x is common for regular WiFi
                         if (ip.startsWith("192.168.")) {
-                            System.out.println("  >>> Using this IP!");
+                            System.out.println("Using IP: " + ip);
                             return ip; // Most common, return immediately
                         } else if (ip.startsWith("10.") || ip.startsWith("172.")) {
                             bestIP = ip; // Good backup option
@@ -206,12 +644,36 @@ public class NetworkManager extends Thread {
     
     // Close all network connections
     public void close() {
+        if (running && !isSpectator) {
+            sendLine("BYE"); // so the other side doesn't sit there waiting for us to reconnect
+        }
         running = false;
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
+        if (spectatorHub != null) {
+            spectatorHub.close();
+        }
+        if (beacon != null) {
+            beacon.close();
+        }
+        closeConnection();
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connections: " + e.getMessage());
+        }
+    }
+    
+    // Closes just the connection to the other player (the host keeps listening for a reconnect)
+    private void closeConnection() {
+        if (connected.compareAndSet(true, false)) {
+            Metrics.connectionClosed();
+        }
         try {
             if (in != null) in.close();
             if (out != null) out.close();
             if (socket != null) socket.close();
-            if (serverSocket != null) serverSocket.close();
         } catch (IOException e) {
             System.err.println("Error closing connections: " + e.getMessage());
         }
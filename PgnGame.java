@@ -0,0 +1,141 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// One game out of a PGN file
+// The tags are read straight away, but the moves are kept as the raw bytes from the file and
+// only turned into SAN strings (getSanMoves) or board moves (decodeMoves) when someone asks.
+// Going through a big database just to look at names, dates or results never touches the moves.
+public class PgnGame {
+    private final Map<String, String> headers;
+    private final byte[] movetext;
+    private final long offset;
+    private List<String> sanMoves; // filled in the first time someone asks
+    
+    public PgnGame(Map<String, String> headers, byte[] movetext, long offset) {
+        this.headers = Collections.unmodifiableMap(headers);
+        this.movetext = movetext;
+        this.offset = offset;
+    }
+    
+    // Tags in the order they were in the file
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+    
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+    
+    // "1-0", "0-1", "1/2-1/2" or "*" if the game isn't finished (or nobody said)
+    public String getResult() {
+        return headers.getOrDefault("Result", "*");
+    }
+    
+    // Where the game starts in the file, in bytes
+    public long getOffset() {
+        return offset;
+    }
+    
+    // The FEN tag if the game doesn't start from the normal position
+    public String getStartFEN() {
+        return headers.getOrDefault("FEN", ChessBoard.START_FEN);
+    }
+    
+    // The move part of the game exactly as it was in the file (comments and all)
+    public String getMovetext() {
+        return new String(movetext, StandardCharsets.UTF_8);
+    }
+    
+    // The moves like "e4", "Nf3", "O-O" - without move numbers, comments, variations or NAGs
+    public List<String> getSanMoves() {
+        if (sanMoves == null) {
+            sanMoves = Collections.unmodifiableList(tokenize(movetext));
+        }
+        return sanMoves;
+    }
+    
+    // The moves packed the same way as ChessBoard moves
+    // Throws IllegalArgumentException if a move doesn't fit the position
+    public int[] decodeMoves() {
+        ChessBoard board = new ChessBoard();
+        replay(board);
+        return board.getMoves();
+    }
+    
+    // Sets up the starting position on the board and plays every move onto it
+    public void replay(ChessBoard board) {
+        board.loadFEN(getStartFEN());
+        List<String> moves = getSanMoves();
+        for (int i = 0; i < moves.size(); i++) {
+            int move;
+            try {
+                move = board.parseSan(moves.get(i));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Move " + (i + 1) + " of game at byte " + offset + ": " + e.getMessage());
+            }
+            board.playMove(move);
+        }
+    }
+    
+    // Picks the moves out of the movetext, skipping everything else
+    private static List<String> tokenize(byte[] text) {
+        List<String> moves = new ArrayList<>();
+        int variationDepth = 0;
+        int i = 0;
+        while (i < text.length) {
+            byte b = text[i];
+            if (b == '{') {
+                // comment until the closing brace
+                while (i < text.length && text[i] != '}') {
+                    i++;
+                }
+                i++;
+            } else if (b == ';') {
+                // comment until the end of the line
+                while (i < text.length && text[i] != '\n') {
+                    i++;
+                }
+            } else if (b == '(') {
+                variationDepth++;
+                i++;
+            } else if (b == ')') {
+                variationDepth = Math.max(0, variationDepth - 1);
+                i++;
+            } else if (b <= ' ' || b == '.') {
+                i++;
+            } else {
+                int start = i;
+                while (i < text.length && text[i] > ' ' && "{};()".indexOf(text[i]) < 0) {
+                    i++;
+                }
+                if (variationDepth == 0) {
+                    String move = moveInToken(new String(text, start, i - start, StandardCharsets.ISO_8859_1));
+                    if (move != null) {
+                        moves.add(move);
+                    }
+                }
+            }
+        }
+        return moves;
+    }
+    
+    // Returns the move in a token like "e4", "12.Nf3", "12...Nf3" or "0-0-0+!", or null for "12.", "$1", "1-0" and so on
+    private static String moveInToken(String token) {
+        int end = token.length();
+        while (end > 0 && (token.charAt(end - 1) == '!' || token.charAt(end - 1) == '?')) {
+            end--;
+        }
+        token = token.substring(token.lastIndexOf('.') + 1, end);
+        // Castling written with zeros starts with a digit, so it has to be picked out before move numbers
+        if (token.matches("0-0(-0)?[+#]?")) {
+            return token;
+        }
+        if (token.isEmpty() || !Character.isLetter(token.charAt(0))) {
+            return null; // move number, NAG, result or a lone "!?"
+        }
+        return token;
+    }
+}
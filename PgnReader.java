@@ -0,0 +1,218 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Reads PGN files one game at a time, so a database with millions of games never has to fit in memory
+// The file is read through one buffer that's filled over and over, and the line and movetext arrays
+// are reused for every game. Each game only gets its tags and a copy of its movetext bytes -
+// the moves themselves aren't looked at until someone asks the PgnGame for them.
+//
+//   try (PgnReader reader = new PgnReader(path)) {
+//       for (PgnGame game = reader.next(); game != null; game = reader.next()) { ... }
+//   }
+public class PgnReader implements Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long bufferOffset; // file position of the start of the buffer
+    private boolean endOfFile;
+    
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineOffset;
+    private boolean lineWaiting; // a tag line that already belongs to the next game
+    
+    private byte[] movetext = new byte[4096];
+    private int movetextLength;
+    private long gamesRead;
+    
+    public PgnReader(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.READ));
+    }
+    
+    public PgnReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.flip(); // starts empty
+    }
+    
+    // The next game, or null at the end of the file
+    public PgnGame next() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        movetextLength = 0;
+        long gameOffset = -1;
+        
+        // Tags (blank lines before them are skipped)
+        while (readLine()) {
+            if (lineLength == 0) {
+                if (!headers.isEmpty()) {
+                    break; // blank line after the tags
+                }
+                continue;
+            }
+            if (line[0] != '[') {
+                lineWaiting = true; // movetext (a game without tags)
+                break;
+            }
+            if (gameOffset < 0) {
+                gameOffset = lineOffset;
+            }
+            parseTag(headers);
+        }
+        
+        // Movetext, until a blank line or the next game's tags
+        // A blank line inside a {comment} doesn't count
+        int braceDepth = 0;
+        while (readLine()) {
+            if (lineLength == 0) {
+                if (braceDepth == 0 && movetextLength > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (line[0] == '[' && braceDepth == 0) {
+                lineWaiting = true;
+                break;
+            }
+            if (line[0] == '%') {
+                continue; // escape line, for programs to use
+            }
+            if (gameOffset < 0) {
+                gameOffset = lineOffset;
+            }
+            for (int i = 0; i < lineLength; i++) {
+                if (line[i] == '{') {
+                    braceDepth++;
+                } else if (line[i] == '}' && braceDepth > 0) {
+                    braceDepth--;
+                }
+            }
+            appendMovetext();
+        }
+        
+        if (headers.isEmpty() && movetextLength == 0) {
+            return null;
+        }
+        gamesRead++;
+        return new PgnGame(headers, Arrays.copyOf(movetext, movetextLength), gameOffset);
+    }
+    
+    public long getGamesRead() {
+        return gamesRead;
+    }
+    
+    // How far into the file we are, in bytes
+    public long getPosition() {
+        return bufferOffset + buffer.position();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    // Reads the next line (without the line break) into "line", returns false at the end of the file
+    private boolean readLine() throws IOException {
+        if (lineWaiting) {
+            lineWaiting = false;
+            return true;
+        }
+        lineLength = 0;
+        lineOffset = getPosition();
+        boolean readAnything = false;
+        while (true) {
+            if (!buffer.hasRemaining() && !fillBuffer()) {
+                return readAnything;
+            }
+            readAnything = true;
+            byte b = buffer.get();
+            if (b == '\n') {
+                break;
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+        // A UTF-8 byte order mark at the very start of the file
+        if (lineOffset == 0 && lineLength >= 3 && line[0] == (byte) 0xEF && line[1] == (byte) 0xBB && line[2] == (byte) 0xBF) {
+            System.arraycopy(line, 3, line, 0, lineLength - 3);
+            lineLength -= 3;
+        }
+        // Trailing spaces would make blank lines look like movetext
+        while (lineLength > 0 && (line[lineLength - 1] == ' ' || line[lineLength - 1] == '\t')) {
+            lineLength--;
+        }
+        return true;
+    }
+    
+    private boolean fillBuffer() throws IOException {
+        if (endOfFile) {
+            return false;
+        }
+        bufferOffset += buffer.limit();
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        if (read < 0) {
+            endOfFile = true;
+            return false;
+        }
+        return true;
+    }
+    
+    private void appendMovetext() {
+        int needed = movetextLength + lineLength + 1;
+        if (needed > movetext.length) {
+            movetext = Arrays.copyOf(movetext, Math.max(needed, movetext.length * 2));
+        }
+        System.arraycopy(line, 0, movetext, movetextLength, lineLength);
+        movetextLength += lineLength;
+        movetext[movetextLength++] = '\n'; // keeps ; comments ending at the end of their line
+    }
+    
+    // Reads a tag line like [White "Carlsen, Magnus"]
+    private void parseTag(Map<String, String> headers) {
+        int i = 1;
+        while (i < lineLength && line[i] == ' ') {
+            i++;
+        }
+        int nameStart = i;
+        while (i < lineLength && line[i] != ' ' && line[i] != '"' && line[i] != ']') {
+            i++;
+        }
+        String name = new String(line, nameStart, i - nameStart, StandardCharsets.US_ASCII);
+        while (i < lineLength && line[i] != '"') {
+            i++;
+        }
+        if (name.isEmpty() || i == lineLength) {
+            System.err.println("Skipping bad PGN tag at byte " + lineOffset);
+            return;
+        }
+        
+        // The value, where \" and \\ are escaped
+        byte[] value = new byte[lineLength - i];
+        int length = 0;
+        for (i++; i < lineLength && line[i] != '"'; i++) {
+            if (line[i] == '\\' && i + 1 < lineLength) {
+                i++;
+            }
+            value[length++] = line[i];
+        }
+        headers.put(name, new String(value, 0, length, StandardCharsets.UTF_8));
+    }
+}
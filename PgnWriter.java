@@ -0,0 +1,168 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+// Writes games out as PGN, one after another, through one reused buffer
+// Moves come in packed (like ChessBoard moves) and are turned into SAN on a board of our own,
+// so writing a whole archive never needs more than one game in memory.
+public class PgnWriter implements Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int LINE_WIDTH = 80;
+    private static final String[] SEVEN_TAGS = {"Event", "Site", "Date", "Round", "White", "Black", "Result"};
+    private static final String[] SEVEN_TAG_DEFAULTS = {"?", "?", "????.??.??", "?", "?", "?", "*"};
+    
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ChessBoard board = new ChessBoard();
+    private final StringBuilder text = new StringBuilder(4096);
+    private int lineLength;
+    private long gamesWritten;
+    
+    public PgnWriter(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                              StandardOpenOption.TRUNCATE_EXISTING));
+    }
+    
+    public PgnWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+    
+    // Writes a game read from another file (comments and variations aren't kept)
+    public void write(PgnGame game) throws IOException {
+        write(game.getHeaders(), game.getStartFEN(), game.decodeMoves());
+    }
+    
+    // Writes a game from its tags, starting position (null for the normal one) and packed moves
+    // The Result tag is also what goes after the last move
+    public void write(Map<String, String> headers, String startFen, int[] moves) throws IOException {
+        write(headers, startFen, moves, null);
+    }
+    
+    // Same, with something written after each move - NAGs and {comments} like "$2 {-1.30}"
+    // (annotations can be null, and so can any entry in it)
+    public void write(Map<String, String> headers, String startFen, int[] moves, String[] annotations)
+            throws IOException {
+        text.setLength(0);
+        for (int i = 0; i < SEVEN_TAGS.length; i++) {
+            appendTag(SEVEN_TAGS[i], headers.getOrDefault(SEVEN_TAGS[i], SEVEN_TAG_DEFAULTS[i]));
+        }
+        if (startFen == null) {
+            startFen = ChessBoard.START_FEN;
+        }
+        if (!startFen.equals(ChessBoard.START_FEN)) {
+            appendTag("SetUp", "1");
+            appendTag("FEN", startFen);
+        }
+        for (Map.Entry<String, String> tag : headers.entrySet()) {
+            if (!isSevenTag(tag.getKey()) && !tag.getKey().equals("SetUp") && !tag.getKey().equals("FEN")) {
+                appendTag(tag.getKey(), tag.getValue());
+            }
+        }
+        text.append('\n');
+        
+        board.loadFEN(startFen);
+        lineLength = 0;
+        boolean annotated = false;
+        for (int i = 0; i < moves.length; i++) {
+            String number = null;
+            if (board.isWhiteTurn()) {
+                number = board.getFullmoveNumber() + ".";
+            } else if (i == 0 || annotated) {
+                number = board.getFullmoveNumber() + "..."; // black's move needs its number again after a comment
+            }
+            if (number != null) {
+                appendWord(number);
+            }
+            appendWord(board.toSan(moves[i]));
+            board.playMove(moves[i]);
+            
+            annotated = annotations != null && annotations[i] != null;
+            if (annotated) {
+                // word by word, so long comments wrap like everything else
+                for (String word : annotations[i].split(" ")) {
+                    appendWord(word);
+                }
+            }
+        }
+        appendWord(headers.getOrDefault("Result", "*"));
+        text.append("\n\n");
+        
+        put(text);
+        gamesWritten++;
+    }
+    
+    public long getGamesWritten() {
+        return gamesWritten;
+    }
+    
+    // Writes out whatever is still in the buffer
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+    
+    private static boolean isSevenTag(String name) {
+        for (String tag : SEVEN_TAGS) {
+            if (tag.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void appendTag(String name, String value) {
+        text.append('[').append(name).append(" \"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\');
+            }
+            text.append(c);
+        }
+        text.append("\"]\n");
+    }
+    
+    // Adds a word to the movetext, starting a new line instead of going past 80 characters
+    private void appendWord(String word) {
+        if (lineLength > 0 && lineLength + 1 + word.length() > LINE_WIDTH) {
+            text.append('\n');
+            lineLength = 0;
+        } else if (lineLength > 0) {
+            text.append(' ');
+            lineLength++;
+        }
+        text.append(word);
+        lineLength += word.length();
+    }
+    
+    private void put(CharSequence chars) throws IOException {
+        byte[] bytes = chars.toString().getBytes(StandardCharsets.UTF_8);
+        int done = 0;
+        while (done < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - done);
+            buffer.put(bytes, done, length);
+            done += length;
+        }
+    }
+}
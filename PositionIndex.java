@@ -0,0 +1,490 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Every position from every game in a GameArchive, sorted by Zobrist hash, so we can look up
+// how often a position was reached and what was played next (the opening explorer uses this)
+//
+// The file (club.positions):
+//   long   MAGIC
+//   long   number of entries
+//   long   number of archive games that went into it
+//   long[] 65537 bucket starts - entries whose hash starts with the same 16 bits are together
+//   entries, 16 bytes each, sorted by hash:
+//     long  position hash
+//     long  bits 0-15 the move played next (0xFFFF if the game ended there)
+//           bits 16-17 game result (0 unknown, 1 white won, 2 draw, 3 black won)
+//           bits 18-31 ply (stops counting at 16383)
+//           bits 32-63 game number in the archive
+// The entries are memory-mapped in blocks of 1 GB and never read onto the heap, so the index can
+// be much bigger than memory - a lookup only touches the few pages its bucket is in.
+//
+// Building goes through the archive with one thread per core. Each thread sorts its entries in
+// memory until its buffer is full, writes them out as a sorted run, and at the end all the runs
+// are merged into the final file.
+public class PositionIndex implements Closeable {
+    private static final long MAGIC = 0x43484553534f5331L; // "CHESSOS1"
+    private static final int BUCKETS = 1 << 16;
+    private static final int HEADER_SIZE = 24 + (BUCKETS + 1) * 8;
+    private static final int ENTRY_SIZE = 16;
+    private static final int BLOCK_SHIFT = 26; // 2^26 entries = 1 GB per mapped block
+    private static final int RUN_ENTRIES = 1 << 21; // per thread while building (32 MB)
+    private static final int GAMES_PER_TASK = 1024;
+    public static final int NO_MOVE = 0xFFFF;
+    
+    private final FileChannel channel;
+    private final MappedByteBuffer[] blocks;
+    private final long[] bucketStarts = new long[BUCKETS + 1];
+    private final long entryCount;
+    private final long gameCount;
+    
+    // What was played from a position and how those games ended
+    public static class MoveStats {
+        public final int move; // packed like ChessBoard moves, NO_MOVE for games that ended here
+        public long games;
+        public long whiteWins;
+        public long draws;
+        public long blackWins;
+        
+        MoveStats(int move) {
+            this.move = move;
+        }
+    }
+    
+    public PositionIndex(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                channel.close();
+                throw new IOException(path + " isn't a position index");
+            }
+        }
+        header.flip();
+        if (header.getLong() != MAGIC) {
+            channel.close();
+            throw new IOException(path + " isn't a position index");
+        }
+        entryCount = header.getLong();
+        gameCount = header.getLong();
+        for (int i = 0; i <= BUCKETS; i++) {
+            bucketStarts[i] = header.getLong();
+        }
+        
+        int blockCount = (int) ((entryCount + (1L << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT);
+        blocks = new MappedByteBuffer[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            long first = (long) i << BLOCK_SHIFT;
+            long entries = Math.min(1L << BLOCK_SHIFT, entryCount - first);
+            blocks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * ENTRY_SIZE, entries * ENTRY_SIZE);
+        }
+    }
+    
+    public long getEntryCount() {
+        return entryCount;
+    }
+    
+    // How many archive games were indexed (games added to the archive later aren't in here)
+    public long getGameCount() {
+        return gameCount;
+    }
+    
+    private long hashAt(long i) {
+        return blocks[(int) (i >>> BLOCK_SHIFT)].getLong((int) (i & ((1L << BLOCK_SHIFT) - 1)) * ENTRY_SIZE);
+    }
+    
+    private long valueAt(long i) {
+        return blocks[(int) (i >>> BLOCK_SHIFT)].getLong((int) (i & ((1L << BLOCK_SHIFT) - 1)) * ENTRY_SIZE + 8);
+    }
+    
+    // Hashes are sorted as signed longs, so the bucket order has to flip the top bit too
+    private static int bucketOf(long hash) {
+        return (int) (hash >>> 48) ^ 0x8000;
+    }
+    
+    // The first entry with this hash (or where it would be)
+    private long firstEntry(long hash) {
+        int bucket = bucketOf(hash);
+        long low = bucketStarts[bucket];
+        long high = bucketStarts[bucket + 1];
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (hashAt(middle) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    // How many times the position was reached in all the games
+    public long count(long hash) {
+        long count = 0;
+        for (long i = firstEntry(hash); i < entryCount && hashAt(i) == hash; i++) {
+            count++;
+        }
+        return count;
+    }
+    
+    // Every move played from the position, most played first
+    public List<MoveStats> explore(long hash) {
+        List<MoveStats> moves = new ArrayList<>();
+        for (long i = firstEntry(hash); i < entryCount && hashAt(i) == hash; i++) {
+            long value = valueAt(i);
+            int move = (int) (value & 0xFFFF);
+            MoveStats stats = null;
+            for (MoveStats existing : moves) {
+                if (existing.move == move) {
+                    stats = existing;
+                    break;
+                }
+            }
+            if (stats == null) {
+                stats = new MoveStats(move);
+                moves.add(stats);
+            }
+            stats.games++;
+            switch ((int) (value >>> 16) & 3) {
+                case 1: stats.whiteWins++; break;
+                case 2: stats.draws++; break;
+                case 3: stats.blackWins++; break;
+                default: break;
+            }
+        }
+        moves.sort((a, b) -> Long.compare(b.games, a.games));
+        return moves;
+    }
+    
+    // Archive numbers of up to "limit" games the position was reached in
+    public long[] findGames(long hash, int limit) {
+        long[] games = new long[limit];
+        int found = 0;
+        for (long i = firstEntry(hash); i < entryCount && found < limit && hashAt(i) == hash; i++) {
+            games[found++] = valueAt(i) >>> 32;
+        }
+        return Arrays.copyOf(games, found);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    // Building
+    
+    private static int resultCode(String result) {
+        switch (result) {
+            case "1-0": return 1;
+            case "1/2-1/2": return 2;
+            case "0-1": return 3;
+            default: return 0;
+        }
+    }
+    
+    // Builds the index for every game in the archive so far, using this many threads
+    public static void build(GameArchive archive, Path out, int threads) throws IOException {
+        long games = archive.size();
+        AtomicLong nextGame = new AtomicLong();
+        List<Path> runs = new ArrayList<>();
+        Builder[] builders = new Builder[threads];
+        for (int i = 0; i < threads; i++) {
+            builders[i] = new Builder(archive, games, nextGame, out, runs);
+            builders[i].start();
+        }
+        for (Builder builder : builders) {
+            try {
+                builder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while building the index");
+            }
+            if (builder.error != null) {
+                throw builder.error;
+            }
+        }
+        
+        try {
+            merge(runs, out, games);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+    
+    // One building thread - takes games a task at a time, so fast and slow threads even out
+    private static class Builder extends Thread {
+        private final GameArchive archive;
+        private final long games;
+        private final AtomicLong nextGame;
+        private final Path out;
+        private final List<Path> runs;
+        private final long[] hashes = new long[RUN_ENTRIES];
+        private final long[] values = new long[RUN_ENTRIES];
+        private int size;
+        IOException error;
+        
+        Builder(GameArchive archive, long games, AtomicLong nextGame, Path out, List<Path> runs) {
+            super("position-index-builder");
+            this.archive = archive;
+            this.games = games;
+            this.nextGame = nextGame;
+            this.out = out;
+            this.runs = runs;
+        }
+        
+        @Override
+        public void run() {
+            ChessBoard board = new ChessBoard();
+            try {
+                long first;
+                while ((first = nextGame.getAndAdd(GAMES_PER_TASK)) < games) {
+                    GameArchive.Reader reader = archive.reader(first);
+                    for (long id = first; id < Math.min(first + GAMES_PER_TASK, games); id++) {
+                        addGame(reader.next(), board);
+                    }
+                }
+                if (size > 0) {
+                    writeRun();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        
+        private void addGame(ArchivedGame game, ChessBoard board) throws IOException {
+            try {
+                game.replay(board);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping game " + game.getId() + ": " + e.getMessage());
+                return;
+            }
+            // The board remembers the hash after every move, so one replay gives us everything
+            int[] moves = board.getMoves();
+            long gameBits = (game.getId() << 32) | ((long) resultCode(game.getResult()) << 16);
+            for (int ply = 0; ply <= moves.length; ply++) {
+                if (size == RUN_ENTRIES) {
+                    writeRun();
+                }
+                int next = ply < moves.length ? moves[ply] : NO_MOVE;
+                hashes[size] = board.getHashAt(ply);
+                values[size] = gameBits | ((long) Math.min(ply, 16383) << 18) | next;
+                size++;
+            }
+        }
+        
+        private void writeRun() throws IOException {
+            sort(hashes, values, 0, size - 1);
+            Path run;
+            synchronized (runs) {
+                run = out.resolveSibling(out.getFileName() + ".run" + runs.size());
+                runs.add(run);
+            }
+            try (FileChannel channel = FileChannel.open(run, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                for (int i = 0; i < size; i++) {
+                    if (buffer.remaining() < ENTRY_SIZE) {
+                        writeAll(channel, buffer);
+                    }
+                    buffer.putLong(hashes[i]).putLong(values[i]);
+                }
+                writeAll(channel, buffer);
+            }
+            size = 0;
+        }
+    }
+    
+    // Quicksort on the hashes, moving the values along with them
+    private static void sort(long[] keys, long[] values, int low, int high) {
+        while (high - low > 16) {
+            long pivot = keys[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    long value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half, loop on the bigger one
+            if (j - low < high - i) {
+                sort(keys, values, low, j);
+                low = i;
+            } else {
+                sort(keys, values, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long key = keys[i];
+            long value = values[i];
+            int j = i - 1;
+            while (j >= low && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+    
+    // Reads a sorted run back a buffer at a time
+    private static class RunReader {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long hash;
+        long value;
+        
+        RunReader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            buffer.flip();
+        }
+        
+        // Moves on to the next entry, false when the run is used up
+        boolean next() throws IOException {
+            if (buffer.remaining() < ENTRY_SIZE) {
+                buffer.compact();
+                while (buffer.position() < ENTRY_SIZE && channel.read(buffer) > 0) {
+                    // keep reading until a whole entry is in
+                }
+                buffer.flip();
+                if (buffer.remaining() < ENTRY_SIZE) {
+                    return false;
+                }
+            }
+            hash = buffer.getLong();
+            value = buffer.getLong();
+            return true;
+        }
+    }
+    
+    private static void merge(List<Path> runs, Path out, long games) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                                                             Comparator.comparingLong(r -> r.hash));
+        List<RunReader> readers = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            
+            // Entries go after the header, which is written last when the buckets are known
+            long[] bucketStarts = new long[BUCKETS + 1];
+            long entries = 0;
+            int bucket = 0;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            channel.position(HEADER_SIZE);
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                int entryBucket = bucketOf(reader.hash);
+                while (bucket < entryBucket) {
+                    bucketStarts[++bucket] = entries;
+                }
+                if (buffer.remaining() < ENTRY_SIZE) {
+                    writeAll(channel, buffer);
+                }
+                buffer.putLong(reader.hash).putLong(reader.value);
+                entries++;
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            writeAll(channel, buffer);
+            while (bucket < BUCKETS) {
+                bucketStarts[++bucket] = entries;
+            }
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putLong(entries).putLong(games);
+            for (long start : bucketStarts) {
+                header.putLong(start);
+            }
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.channel.close();
+            }
+        }
+    }
+    
+    private static void writeAll(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    // Command line tool:
+    //   java PositionIndex build <archive> <index> [threads]   index every game in the archive
+    //   java PositionIndex query <index> [fen]                 what was played from a position
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java PositionIndex build <archive> <index> [threads]");
+            System.err.println("       java PositionIndex query <index> [fen]");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        if (args[0].equals("build")) {
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            try (GameArchive archive = GameArchive.openForReading(Paths.get(args[1]))) {
+                build(archive, Paths.get(args[2]), threads);
+            }
+            try (PositionIndex index = new PositionIndex(Paths.get(args[2]))) {
+                System.out.println(index.getEntryCount() + " positions from " + index.getGameCount() + " games");
+            }
+        } else if (args[0].equals("query")) {
+            ChessBoard board = new ChessBoard();
+            if (args.length > 2) {
+                board.loadFEN(args[2]);
+            }
+            try (PositionIndex index = new PositionIndex(Paths.get(args[1]))) {
+                System.out.println("Reached " + index.count(board.getHash()) + " times");
+                for (MoveStats stats : index.explore(board.getHash())) {
+                    String move = stats.move == NO_MOVE ? "(end)" : board.toSan(stats.move);
+                    System.out.printf("%-8s %8d   +%d =%d -%d%n", move, stats.games, stats.whiteWins,
+                                      stats.draws, stats.blackWins);
+                }
+            }
+        } else {
+            System.err.println("Unknown command: " + args[0]);
+            System.exit(1);
+        }
+        System.out.println("Took " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
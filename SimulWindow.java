@@ -0,0 +1,674 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// One window with lots of games at once - a simul against the engine on every board,
+// plus any number of network games being watched (from a ChessServer or a hosted game)
+//
+// ChessGUI is one window, one game loop thread, one BoardView and maybe a network thread per
+// game, which is far too much for 30 boards. Here all the games share:
+//   - one loop thread that makes every change to every board (same idea as GameLoop)
+//   - one component that paints all the boards with one set of piece sprites
+//   - a few engine threads (one less than the cores) - each engine game has its own thinking
+//     time budget, and only asks for a thread when it's the engine's turn
+//   - one network thread with non-blocking sockets for all the watched games
+// So a game costs a ChessBoard, a snapshot and a few fields, not a window or a thread.
+public class SimulWindow extends JFrame {
+    private static final int SQUARE = 28;              // pixels - the boards are small so lots fit
+    private static final int LABEL_HEIGHT = 18;
+    private static final int GAP = 10;
+    private static final int CELL_WIDTH = SQUARE * 8 + GAP;
+    private static final int CELL_HEIGHT = SQUARE * 8 + LABEL_HEIGHT + GAP;
+    private static final long MIN_MOVE_MILLIS = 20;    // even with the budget used up
+    private static final int MOVES_LEFT_GUESS = 25;    // spread the budget over this many moves
+    
+    private final boolean humanWhite;
+    private final long engineBudgetMillis;
+    private final List<Game> games = new CopyOnWriteArrayList<>();
+    private final Loop loop = new Loop();
+    private final ExecutorService engines;
+    private final List<ChessEngine> allEngines = new CopyOnWriteArrayList<>(); // so they can all be stopped
+    private final ThreadLocal<ChessEngine> engine = ThreadLocal.withInitial(() -> {
+        ChessEngine made = new ChessEngine(new Evaluation(), new TranspositionTable(32));
+        allEngines.add(made);
+        return made;
+    });
+    private Relay relay; // made when the first game is watched
+    
+    private final SimulView view = new SimulView();
+    private final JLabel statusLabel = new JLabel(" ");
+    private final AtomicBoolean statusQueued = new AtomicBoolean();
+    
+    // Click state, EDT only - one piece can be picked up at a time, on one board
+    private Game selectedGame;
+    private int selectedRow = -1;
+    private int selectedCol = -1;
+    
+    // Everything about one board
+    private class Game {
+        final int number;
+        final ChessBoard board = new ChessBoard(); // loop thread only
+        final boolean engineGame;
+        final String source; // where a watched game comes from
+        volatile BoardSnapshot snapshot;
+        volatile String label = "";
+        
+        // Loop thread only
+        String result;
+        boolean thinking;
+        long engineMillisLeft;
+        boolean changed;
+        
+        Game(int number, boolean engineGame, String source) {
+            this.number = number;
+            this.engineGame = engineGame;
+            this.source = source;
+            engineMillisLeft = engineBudgetMillis;
+            board.addChangeListener(squares -> changed = true);
+            snapshot = new BoardSnapshot(board, null);
+        }
+        
+        boolean humanToMove(BoardSnapshot snapshot) {
+            return engineGame && !snapshot.isGameOver() && snapshot.isWhiteTurn() == humanWhite;
+        }
+    }
+    
+    public SimulWindow(int boards, long engineBudgetMillis, boolean humanWhite) {
+        super("Simul - " + boards + " boards");
+        this.engineBudgetMillis = engineBudgetMillis;
+        this.humanWhite = humanWhite;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1); // one left for the window
+        engines = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "simul-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setLayout(new BorderLayout());
+        
+        JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        topPanel.setBackground(new Color(50, 50, 50));
+        statusLabel.setForeground(Color.WHITE);
+        statusLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        JButton watchButton = new JButton("Watch Game...");
+        watchButton.addActionListener(e -> askToWatch());
+        JButton menuButton = new JButton("Back to Menu");
+        menuButton.addActionListener(e -> {
+            dispose();
+            new MainMenu();
+        });
+        topPanel.add(watchButton);
+        topPanel.add(menuButton);
+        topPanel.add(statusLabel);
+        add(topPanel, BorderLayout.NORTH);
+        
+        JScrollPane scroll = new JScrollPane(view);
+        scroll.getVerticalScrollBar().setUnitIncrement(CELL_HEIGHT / 4);
+        add(scroll, BorderLayout.CENTER);
+        
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                shutDown();
+            }
+        });
+        
+        loop.start();
+        for (int i = 0; i < boards; i++) {
+            addGame(true, null);
+        }
+        
+        setSize(Math.min(1400, columns() * CELL_WIDTH + 40), 900);
+        setLocationRelativeTo(null);
+        setVisible(true);
+    }
+    
+    private Game addGame(boolean engineGame, String source) {
+        Game game = new Game(games.size(), engineGame, source);
+        games.add(game);
+        loop.submit(() -> {
+            game.changed = true;
+            if (engineGame) {
+                engineTurn(game);
+            }
+        });
+        SwingUtilities.invokeLater(() -> {
+            view.revalidate();
+            view.repaint();
+        });
+        return game;
+    }
+    
+    private void shutDown() {
+        for (ChessEngine each : allEngines) {
+            each.stop();
+        }
+        engines.shutdownNow();
+        loop.close();
+        if (relay != null) {
+            relay.close();
+        }
+    }
+    
+    // --- Engine games (loop thread) ---
+    
+    // Asks the engine pool for a move if it's the engine's turn
+    private void engineTurn(Game game) {
+        ChessBoard board = game.board;
+        if (game.result != null || game.thinking || board.isWhiteTurn() == humanWhite) {
+            updateLabel(game);
+            return;
+        }
+        game.thinking = true;
+        updateLabel(game);
+        String fen = board.toFEN();
+        int ply = board.getPly();
+        long millis = Math.max(MIN_MOVE_MILLIS, game.engineMillisLeft / MOVES_LEFT_GUESS);
+        engines.execute(() -> {
+            ChessEngine mine = engine.get();
+            ChessBoard copy = new ChessBoard();
+            copy.loadFEN(fen);
+            long started = System.nanoTime();
+            mine.clearStop();
+            int move = mine.findBestMove(copy, ChessEngine.MAX_DEPTH, millis);
+            long used = (System.nanoTime() - started) / 1_000_000;
+            loop.submit(() -> engineMoved(game, ply, move, used));
+        });
+    }
+    
+    private void engineMoved(Game game, int ply, int move, long used) {
+        game.thinking = false;
+        game.engineMillisLeft = Math.max(0, game.engineMillisLeft - used);
+        if (game.result == null && game.board.getPly() == ply && move >= 0) {
+            game.board.playMove(move);
+            checkGameOver(game);
+        }
+        updateLabel(game);
+    }
+    
+    private void humanMove(Game game, int fromRow, int fromCol, int toRow, int toCol) {
+        ChessBoard board = game.board;
+        if (game.result != null || board.isWhiteTurn() != humanWhite) {
+            return;
+        }
+        if (board.movePiece(fromRow, fromCol, toRow, toCol)) {
+            checkGameOver(game);
+            engineTurn(game);
+        }
+    }
+    
+    // Check isn't enforced, so a game ends when a king is taken or there's no legal move left
+    private void checkGameOver(Game game) {
+        ChessBoard board = game.board;
+        boolean whiteKing = false;
+        boolean blackKing = false;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                whiteKing |= board.getPiece(row, col) == 'K';
+                blackKing |= board.getPiece(row, col) == 'k';
+            }
+        }
+        if (!whiteKing || !blackKing) {
+            game.result = whiteKing ? "White wins" : "Black wins";
+        } else if (!hasLegalMove(board)) {
+            if (board.isInCheck()) {
+                game.result = board.isWhiteTurn() ? "Black wins - checkmate" : "White wins - checkmate";
+            } else {
+                game.result = "Draw - stalemate";
+            }
+        } else if (board.getHalfmoveClock() >= 100) {
+            game.result = "Draw - 50 moves";
+        }
+        game.changed = true;
+    }
+    
+    private static boolean hasLegalMove(ChessBoard board) {
+        int[] moves = new int[256];
+        int count = board.generateMoves(moves);
+        for (int i = 0; i < count; i++) {
+            if (!board.leavesKingAttacked(moves[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void updateLabel(Game game) {
+        String text = (game.number + 1) + ": ";
+        if (game.result != null) {
+            text += game.result;
+        } else if (!game.engineGame) {
+            text += game.source;
+        } else if (game.thinking) {
+            text += "engine thinking (" + game.engineMillisLeft / 1000 + "s left)";
+        } else {
+            text += "your move";
+        }
+        game.label = text;
+        game.changed = true;
+    }
+    
+    // --- Watched games ---
+    
+    private void askToWatch() {
+        String answer = JOptionPane.showInputDialog(this,
+            "Host to watch (\"host\" for a hosted game, \"host game-number\" for a ChessServer game):",
+            "Watch Game", JOptionPane.QUESTION_MESSAGE);
+        if (answer == null || answer.isBlank()) {
+            return;
+        }
+        String[] parts = answer.trim().split("\\s+");
+        try {
+            if (parts.length > 1) {
+                watch(parts[0], 5555, "WATCH " + Integer.parseInt(parts[1]));
+            } else {
+                watch(parts[0], SpectatorHub.SPECTATOR_PORT, null);
+            }
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Game number should be a number: " + parts[1]);
+        }
+    }
+    
+    // Adds a board that copies a game from the network (firstLine is sent when connected, if any)
+    public void watch(String host, int port, String firstLine) {
+        if (relay == null) {
+            relay = new Relay();
+            relay.start();
+        }
+        Game game = addGame(false, host + (firstLine != null ? " game " + firstLine.substring(6) : ""));
+        loop.submit(() -> {
+            game.label = (game.number + 1) + ": connecting to " + game.source;
+            game.changed = true;
+        });
+        relay.watch(game, host, port, firstLine);
+    }
+    
+    // Runs on the loop thread - a SYNC line from whoever we're watching
+    private void copyBoard(Game game, String line) {
+        try {
+            int space = line.indexOf(' ', 5);
+            game.board.loadFEN(line.substring(space + 1), Integer.parseInt(line.substring(5, space)));
+            game.result = null; // might be a new game on the same connection
+            checkGameOver(game);
+            updateLabel(game);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println("Bad board from " + game.source + ": " + line);
+        }
+    }
+    
+    private void watchEnded(Game game, String why) {
+        if (game.result == null) {
+            game.result = why;
+        }
+        updateLabel(game);
+    }
+    
+    // --- Status and clicks (EDT) ---
+    
+    private void queueStatus() {
+        if (statusQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                statusQueued.set(false);
+                int yourMove = 0;
+                int finished = 0;
+                for (Game game : games) {
+                    BoardSnapshot snapshot = game.snapshot;
+                    if (snapshot.isGameOver()) {
+                        finished++;
+                    } else if (game.humanToMove(snapshot)) {
+                        yourMove++;
+                    }
+                }
+                statusLabel.setText(games.size() + " boards, your move on " + yourMove + ", " + finished + " finished");
+            });
+        }
+    }
+    
+    private void boardClicked(Game game, int row, int col) {
+        BoardSnapshot snapshot = game.snapshot;
+        if (!game.humanToMove(snapshot)) {
+            return;
+        }
+        if (game == selectedGame && selectedRow >= 0) {
+            int fromRow = selectedRow;
+            int fromCol = selectedCol;
+            clearSelection();
+            if ((snapshot.getTargets(fromRow, fromCol) & (1L << (row * 8 + col))) != 0) {
+                loop.submit(() -> humanMove(game, fromRow, fromCol, row, col));
+                return;
+            }
+            if (row == fromRow && col == fromCol) {
+                return;
+            }
+        }
+        char piece = snapshot.getPiece(row, col);
+        if (piece != ' ' && Character.isUpperCase(piece) == humanWhite) {
+            clearSelection();
+            selectedGame = game;
+            selectedRow = row;
+            selectedCol = col;
+            view.repaintGame(game);
+        }
+    }
+    
+    private void clearSelection() {
+        Game old = selectedGame;
+        selectedGame = null;
+        selectedRow = -1;
+        selectedCol = -1;
+        if (old != null) {
+            view.repaintGame(old);
+        }
+    }
+    
+    private int columns() {
+        int count = Math.max(1, games.size());
+        return Math.max(1, Math.min(6, (int) Math.ceil(Math.sqrt(count * 1.5))));
+    }
+    
+    // Paints every board - only the boards that changed get repainted
+    private class SimulView extends JComponent {
+        private final BufferedImage[] sprites = BoardView.buildSprites(SQUARE);
+        private final Font labelFont = new Font("Arial", Font.PLAIN, 12);
+        
+        SimulView() {
+            setOpaque(true);
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    int column = e.getX() / CELL_WIDTH;
+                    int index = (e.getY() / CELL_HEIGHT) * columns() + column;
+                    int x = e.getX() - column * CELL_WIDTH;
+                    int y = e.getY() % CELL_HEIGHT - LABEL_HEIGHT;
+                    if (column >= columns() || index >= games.size() || x >= SQUARE * 8 || y < 0 || y >= SQUARE * 8) {
+                        return;
+                    }
+                    int row = y / SQUARE;
+                    int col = x / SQUARE;
+                    if (!humanWhite) {
+                        row = 7 - row; // black's boards are drawn the other way up
+                        col = 7 - col;
+                    }
+                    boardClicked(games.get(index), row, col);
+                }
+            });
+        }
+        
+        @Override
+        public Dimension getPreferredSize() {
+            int rows = (games.size() + columns() - 1) / columns();
+            return new Dimension(columns() * CELL_WIDTH, Math.max(1, rows) * CELL_HEIGHT);
+        }
+        
+        // Any thread
+        void repaintGame(Game game) {
+            int columns = columns();
+            repaint((game.number % columns) * CELL_WIDTH, (game.number / columns) * CELL_HEIGHT,
+                    CELL_WIDTH, CELL_HEIGHT);
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(new Color(40, 40, 40));
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            
+            int columns = columns();
+            for (Game game : games) {
+                int x = (game.number % columns) * CELL_WIDTH;
+                int y = (game.number / columns) * CELL_HEIGHT;
+                if (clip.intersects(x, y, CELL_WIDTH, CELL_HEIGHT)) {
+                    paintGame(g, game, x, y);
+                }
+            }
+        }
+        
+        private void paintGame(Graphics g, Game game, int x, int y) {
+            BoardSnapshot snapshot = game.snapshot;
+            g.setFont(labelFont);
+            g.setColor(game.humanToMove(snapshot) ? Color.YELLOW : Color.LIGHT_GRAY);
+            g.drawString(game.label, x, y + LABEL_HEIGHT - 5);
+            
+            boolean selected = game == selectedGame;
+            long targets = selected ? snapshot.getTargets(selectedRow, selectedCol) : 0;
+            int top = y + LABEL_HEIGHT;
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    int drawRow = humanWhite ? row : 7 - row;
+                    int drawCol = humanWhite ? col : 7 - col;
+                    boolean light = (row + col) % 2 == 0;
+                    if (selected && row == selectedRow && col == selectedCol) {
+                        g.setColor(BoardView.SELECTED_COLOR);
+                    } else if ((targets & (1L << (row * 8 + col))) != 0) {
+                        g.setColor(light ? BoardView.LIGHT_MOVE : BoardView.DARK_MOVE);
+                    } else {
+                        g.setColor(light ? BoardView.LIGHT_SQUARE : BoardView.DARK_SQUARE);
+                    }
+                    g.fillRect(x + drawCol * SQUARE, top + drawRow * SQUARE, SQUARE, SQUARE);
+                    int piece = BoardView.PIECES.indexOf(snapshot.getPiece(row, col));
+                    if (piece >= 0) {
+                        g.drawImage(sprites[piece], x + drawCol * SQUARE, top + drawRow * SQUARE, null);
+                    }
+                }
+            }
+        }
+    }
+    
+    // The one thread that changes the boards - like GameLoop, but for every game in the window
+    private class Loop extends Thread {
+        private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        
+        Loop() {
+            super("simul-loop");
+            setDaemon(true);
+        }
+        
+        void submit(Runnable command) {
+            commands.add(command);
+            LockSupport.unpark(this);
+        }
+        
+        void close() {
+            running = false;
+            LockSupport.unpark(this);
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                Runnable command = commands.poll();
+                if (command == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                while (command != null) {
+                    try {
+                        command.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error in simul loop: " + e);
+                        e.printStackTrace();
+                    }
+                    command = commands.poll();
+                }
+                
+                // One new snapshot per changed game for the whole batch
+                boolean any = false;
+                for (Game game : games) {
+                    if (game.changed) {
+                        game.changed = false;
+                        game.snapshot = new BoardSnapshot(game.board, game.result);
+                        view.repaintGame(game);
+                        any = true;
+                    }
+                }
+                if (any) {
+                    queueStatus();
+                }
+            }
+        }
+    }
+    
+    // Reads every watched game on one thread with non-blocking sockets
+    // The host (or server) sends a whole SYNC line each time the board changes, so there's no
+    // history to keep - the newest line is the game
+    private class Relay extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        
+        // One watched game's connection
+        private class Connection {
+            final Game game;
+            final SocketChannel channel;
+            final String firstLine;
+            final ByteBuffer buffer = ByteBuffer.allocate(4096);
+            final StringBuilder line = new StringBuilder();
+            
+            Connection(Game game, SocketChannel channel, String firstLine) {
+                this.game = game;
+                this.channel = channel;
+                this.firstLine = firstLine;
+            }
+        }
+        
+        Relay() {
+            super("simul-relay");
+            setDaemon(true);
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't open a selector", e);
+            }
+        }
+        
+        void watch(Game game, String host, int port, String firstLine) {
+            pending.add(() -> {
+                try {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(game, channel, firstLine);
+                    channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                    channel.connect(new InetSocketAddress(host, port));
+                } catch (IOException | RuntimeException e) {
+                    loop.submit(() -> watchEnded(game, "can't connect: " + e.getMessage()));
+                }
+            });
+            selector.wakeup();
+        }
+        
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    for (Runnable task = pending.poll(); task != null; task = pending.poll()) {
+                        task.run();
+                    }
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                connected(key, connection);
+                            } else if (key.isReadable()) {
+                                read(key, connection);
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            closeQuietly(connection.channel);
+                            loop.submit(() -> watchEnded(connection.game, "connection lost"));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Watching stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly((SocketChannel) key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+        
+        private void connected(SelectionKey key, Connection connection) throws IOException {
+            connection.channel.finishConnect();
+            if (connection.firstLine != null) {
+                // A few bytes always fit in an empty socket buffer
+                connection.channel.write(ByteBuffer.wrap((connection.firstLine + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            loop.submit(() -> updateLabel(connection.game));
+        }
+        
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer buffer = connection.buffer;
+            buffer.clear();
+            int read = connection.channel.read(buffer);
+            if (read < 0) {
+                key.cancel();
+                closeQuietly(connection.channel);
+                loop.submit(() -> watchEnded(connection.game, "game over"));
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                char c = (char) (buffer.get() & 0xFF); // the protocol is plain ASCII
+                if (c == '\n') {
+                    String line = connection.line.toString().trim();
+                    connection.line.setLength(0);
+                    if (line.startsWith("SYNC ")) {
+                        loop.submit(() -> copyBoard(connection.game, line));
+                    } else if (line.startsWith("ERROR")) {
+                        loop.submit(() -> watchEnded(connection.game, line));
+                    }
+                } else {
+                    connection.line.append(c);
+                }
+            }
+        }
+        
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
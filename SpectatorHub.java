@@ -0,0 +1,235 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Lets any number of people watch a hosted game (spectators)
+// Spectators can't move, they just get sent the board every time it changes
+//
+// Everything runs on one thread with non-blocking sockets so a slow spectator
+// can't hold up the game or the other spectators. Each update is turned into bytes
+// once and the same buffer is sent to everybody. If someone is too slow to keep up
+// we don't queue updates for them, they just get the newest board when they're ready.
+public class SpectatorHub extends Thread {
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+    
+    // The newest update, shared by all spectators - never written to after it's made
+    private volatile ByteBuffer latestFrame;
+    private volatile boolean frameChanged = false;
+    private final Queue<SocketChannel> newSpectators = new ConcurrentLinkedQueue<>();
+    private final List<Spectator> spectators = new ArrayList<>();
+    private volatile int spectatorCount = 0;
+    
+    // Spectators never send anything useful, but we still have to read to notice when they leave
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    
+    public static final int SPECTATOR_PORT = 5556;
+    
+    // What we know about each spectator - just the update they're getting right now
+    private static class Spectator {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer sending;   // our own view of a shared frame, null when idle
+        ByteBuffer lastSent;  // the shared frame we last started sending them
+        
+        Spectator(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+    
+    public SpectatorHub(int port) throws IOException {
+        super("chess-spectators");
+        setDaemon(true);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    // Called whenever the board changes (from any thread)
+    // The message is the same SYNC line the players use, so it works on its own even if updates get skipped
+    public void publish(int ply, String fen) {
+        byte[] bytes = ("SYNC " + ply + " " + fen + "\n").getBytes(StandardCharsets.UTF_8);
+        latestFrame = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        frameChanged = true;
+        selector.wakeup();
+    }
+    
+    public int getSpectatorCount() {
+        return spectatorCount;
+    }
+    
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptSpectator();
+                    } else {
+                        Spectator spectator = (Spectator) key.attachment();
+                        if (key.isReadable()) {
+                            readAndDiscard(spectator);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            sendLatest(spectator);
+                        }
+                    }
+                }
+                
+                registerNewSpectators();
+                
+                if (frameChanged) {
+                    frameChanged = false;
+                    for (int i = spectators.size() - 1; i >= 0; i--) {
+                        sendLatest(spectators.get(i));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Spectator error: " + e.getMessage());
+            }
+        } finally {
+            closeEverything();
+        }
+    }
+    
+    // One spectator's connection going wrong (say they reset it straight away) only loses that one -
+    // the hub keeps going for everyone else
+    private void acceptSpectator() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                newSpectators.add(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't accept a spectator: " + e.getMessage());
+        }
+    }
+    
+    private void registerNewSpectators() {
+        SocketChannel channel;
+        while ((channel = newSpectators.poll()) != null) {
+            SelectionKey key;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                System.err.println("Couldn't set up a spectator: " + e.getMessage());
+                closeQuietly(channel);
+                continue;
+            }
+            Spectator spectator = new Spectator(channel, key);
+            key.attach(spectator);
+            spectators.add(spectator);
+            spectatorCount = spectators.size();
+            Metrics.spectatorJoined();
+            System.out.println("Spectator joined (" + spectatorCount + " watching)");
+            
+            // Show them the board straight away
+            sendLatest(spectator);
+        }
+    }
+    
+    // Keeps writing to this spectator until the socket is full or they're up to date
+    private void sendLatest(Spectator spectator) {
+        try {
+            while (true) {
+                if (spectator.sending == null) {
+                    ByteBuffer frame = latestFrame;
+                    if (frame == null || frame == spectator.lastSent) {
+                        break; // nothing new for them
+                    }
+                    // Skip straight to the newest board, whatever they missed doesn't matter
+                    spectator.sending = frame.duplicate();
+                    spectator.lastSent = frame;
+                }
+                
+                spectator.channel.write(spectator.sending);
+                if (spectator.sending.hasRemaining()) {
+                    // Their socket is full - carry on when it's writable again
+                    spectator.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                spectator.sending = null;
+            }
+            spectator.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            removeSpectator(spectator);
+        }
+    }
+    
+    private void readAndDiscard(Spectator spectator) {
+        try {
+            readBuffer.clear();
+            if (spectator.channel.read(readBuffer) < 0) {
+                removeSpectator(spectator);
+            }
+        } catch (IOException e) {
+            removeSpectator(spectator);
+        }
+    }
+    
+    private void removeSpectator(Spectator spectator) {
+        spectator.key.cancel();
+        closeQuietly(spectator.channel);
+        if (!spectators.remove(spectator)) {
+            return; // already gone
+        }
+        spectatorCount = spectators.size();
+        Metrics.spectatorLeft();
+        System.out.println("Spectator left (" + spectatorCount + " watching)");
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already gone, nothing to do
+        }
+    }
+    
+    // Stops the hub - the hub thread itself closes the sockets on its way out
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+    
+    private void closeEverything() {
+        running = false;
+        try {
+            for (Spectator spectator : spectators) {
+                spectator.channel.close();
+            }
+            SocketChannel channel;
+            while ((channel = newSpectators.poll()) != null) {
+                channel.close();
+            }
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing spectator connections: " + e.getMessage());
+        }
+        Metrics.spectatorsLeft(spectators.size());
+        spectators.clear();
+        spectatorCount = 0;
+    }
+}
@@ -0,0 +1,107 @@
+import javax.swing.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Gets the main menu on screen as soon as it can and keeps track of how long that took
+// Anything that can wait (finding our IP, listening for LAN games, JMX, warming up the engine
+// and the piece drawing) is handed to later() and runs on one background thread once the
+// first window is actually showing. When that's all done we print one line of timings,
+// counted from when the JVM started, e.g.
+//   Startup: main 95ms, look and feel 160ms, menu built 290ms, first frame 380ms, background done 910ms
+public final class Startup {
+    private static final List<Runnable> tasks = new ArrayList<>();
+    private static final Map<String, Long> marks = new LinkedHashMap<>(); // what happened -> clock time
+    private static boolean started; // the background thread has been started
+    private static boolean finished; // ...and has run everything
+    private static boolean exitWhenFinished;
+    
+    private Startup() {
+    }
+    
+    // Notes when we got here
+    public static synchronized void mark(String what) {
+        marks.put(what, System.currentTimeMillis());
+    }
+    
+    // Runs the task on the background thread after the first frame
+    // (or straight away on a thread of its own if startup is already over)
+    public static synchronized void later(Runnable task) {
+        if (!finished) {
+            tasks.add(task);
+            return;
+        }
+        Thread thread = new Thread(task, "chess-background");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    // Quit once everything's run - for the training run that makes the class data sharing archive
+    public static synchronized void exitWhenFinished() {
+        exitWhenFinished = true;
+    }
+    
+    // Call just before the first window's setVisible(true) - the background work starts once it's open
+    public static synchronized void firstFrame(JFrame frame) {
+        if (started) {
+            return;
+        }
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                frame.removeWindowListener(this);
+                mark("first frame");
+                startBackground();
+            }
+        });
+    }
+    
+    private static synchronized void startBackground() {
+        if (started) {
+            return;
+        }
+        started = true;
+        Thread thread = new Thread(Startup::runTasks, "chess-startup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); // the window comes first
+        thread.start();
+    }
+    
+    private static void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (Startup.class) {
+                if (tasks.isEmpty()) {
+                    finished = true;
+                    break;
+                }
+                task = tasks.remove(0);
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Startup task failed: " + e);
+            }
+        }
+        
+        mark("background done");
+        synchronized (Startup.class) {
+            // Asking when the JVM started loads the management classes (~40ms), so it's only done now
+            long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+            StringBuilder line = new StringBuilder("Startup:");
+            String separator = " ";
+            for (Map.Entry<String, Long> mark : marks.entrySet()) {
+                line.append(separator).append(mark.getKey()).append(' ').append(mark.getValue() - jvmStart).append("ms");
+                separator = ", ";
+            }
+            System.out.println(line);
+            if (exitWhenFinished) {
+                System.exit(0);
+            }
+        }
+    }
+}
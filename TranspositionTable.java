@@ -0,0 +1,109 @@
+import java.util.Arrays;
+
+// Remembers positions the engine already searched, keyed by the board's Zobrist hash
+// Two plain long arrays instead of objects - one for the key, one for everything else packed:
+//   bits 0-14  best move + 1 (0 = no move, promotions need the top bits)
+//   bits 15-16 what kind of score it is (EXACT, LOWER or UPPER bound)
+//   bits 17-24 how deep the search was
+//   bits 32-63 the score
+// The key is stored XOR'd with the data, so if two threads ever write the same slot at once
+// the entry just won't match anymore instead of giving back a mixed up answer
+public class TranspositionTable {
+    public static final int EXACT = 0;
+    public static final int LOWER = 1; // score is at least this (search failed high)
+    public static final int UPPER = 2; // score is at most this (search failed low)
+    
+    private long[] keys;
+    private long[] data;
+    private int mask;
+    
+    // Counters for the stats display, not exact if more than one thread uses the table
+    private long probes;
+    private long hits;
+    
+    public TranspositionTable(int megabytes) {
+        resize(megabytes);
+    }
+    
+    // Each entry is 16 bytes, the number of entries is rounded down to a power of two
+    public void resize(int megabytes) {
+        if (megabytes < 1) {
+            throw new IllegalArgumentException("Hash size must be at least 1 MB");
+        }
+        long entries = Long.highestOneBit(megabytes * 1024L * 1024L / 16);
+        keys = new long[(int) Math.min(entries, 1 << 30)];
+        data = new long[keys.length];
+        mask = keys.length - 1;
+        probes = 0;
+        hits = 0;
+    }
+    
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(data, 0);
+    }
+    
+    // Returns the packed entry for this position, or 0 if we don't have it
+    public long probe(long hash) {
+        probes++;
+        int slot = (int) hash & mask;
+        long entry = data[slot];
+        if ((keys[slot] ^ entry) == hash && entry != 0) {
+            hits++;
+            return entry;
+        }
+        return 0;
+    }
+    
+    public void store(long hash, int move, int depth, int flag, int score) {
+        int slot = (int) hash & mask;
+        long old = data[slot];
+        // Keep deeper results for the same position, anything else just gets replaced
+        if ((keys[slot] ^ old) == hash && depthOf(old) > depth && flag != EXACT) {
+            return;
+        }
+        long entry = ((long) score << 32) | ((long) depth << 17) | ((long) flag << 15) | (move + 1);
+        data[slot] = entry;
+        keys[slot] = hash ^ entry;
+    }
+    
+    public static int moveOf(long entry) {
+        return (int) (entry & 0x7FFF) - 1;
+    }
+    
+    public static int flagOf(long entry) {
+        return (int) (entry >>> 15) & 3;
+    }
+    
+    public static int depthOf(long entry) {
+        return (int) (entry >>> 17) & 0xFF;
+    }
+    
+    public static int scoreOf(long entry) {
+        return (int) (entry >> 32);
+    }
+    
+    public long getProbes() {
+        return probes;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    // Roughly how full the table is, out of 1000 - only looks at the first thousand slots (like UCI's hashfull)
+    public int getFillPermille() {
+        int slots = Math.min(1000, data.length);
+        int used = 0;
+        for (int i = 0; i < slots; i++) {
+            if (data[i] != 0) {
+                used++;
+            }
+        }
+        return used * 1000 / slots;
+    }
+    
+    public int getSizeInMegabytes() {
+        return (int) (keys.length * 16L / (1024 * 1024));
+    }
+}
@@ -0,0 +1,474 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// Lets other programs use the engine through the Universal Chess Interface (UCI) on stdin/stdout,
+// so it can play in tournament managers (cutechess, Arena...) and sit behind analysis GUIs.
+// Start it with "java ChessGame uci" (or "java UciEngine").
+//
+// Supported: uci, isready, ucinewgame, setoption (Hash, Threads), position startpos/fen ... moves ...,
+// go (wtime btime winc binc movestogo movetime depth nodes infinite ponder), stop, ponderhit, quit
+//
+// Commands are read on the main thread while the search runs on its own threads, so "stop" is
+// seen straight away - the engine checks its stop flag on every node. Output goes through a queue
+// to a writer thread, so printing an info line never makes the search wait for the pipe.
+// With Threads > 1 every thread searches the same position and they share the hash table
+// (each one finds different things, and the main thread picks them up from the table).
+public class UciEngine {
+    private static final String NAME = "Chess Game";
+    private static final int MAX_HASH = 4096;
+    private static final int MAX_THREADS = 256;
+    private static final long MOVE_OVERHEAD = 30; // ms kept back for the GUI and the pipe
+    private static final int DEFAULT_MOVES_TO_GO = 30;
+    private static final int MATE_PLIES = 128; // scores this close to ChessEngine.MATE are mates
+    
+    private final Output output = new Output();
+    private final Evaluation evaluation = new Evaluation();
+    private final TranspositionTable table = new TranspositionTable(16);
+    private final List<ChessEngine> engines = new ArrayList<>(); // the first one reports and decides
+    private String positionFen = ChessBoard.START_FEN;
+    private int[] positionMoves = new int[0];
+    private Search search; // the last one started, may be finished
+    
+    public static void main(String[] args) throws IOException {
+        Metrics.start(); // -Dchess.metrics=<seconds> prints to stderr, stdout stays clean for the GUI
+        new UciEngine().run();
+    }
+    
+    private UciEngine() {
+        engines.add(new ChessEngine(evaluation, table));
+    }
+    
+    private void run() throws IOException {
+        output.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            try {
+                if (!handle(words)) {
+                    break;
+                }
+            } catch (IllegalArgumentException e) {
+                send("info string " + e.getMessage());
+            }
+        }
+        stopSearch();
+        output.finish();
+    }
+    
+    // Returns false for quit
+    private boolean handle(String[] words) {
+        switch (words[0]) {
+            case "uci":
+                send("id name " + NAME);
+                send("id author kavyan256");
+                send("option name Hash type spin default 16 min 1 max " + MAX_HASH);
+                send("option name Threads type spin default 1 min 1 max " + MAX_THREADS);
+                send("option name Ponder type check default false");
+                send("uciok");
+                break;
+            case "isready":
+                send("readyok");
+                break;
+            case "ucinewgame":
+                stopSearch();
+                table.clear();
+                break;
+            case "setoption":
+                setOption(words);
+                break;
+            case "position":
+                stopSearch();
+                setPosition(words);
+                break;
+            case "go":
+                stopSearch();
+                go(words);
+                break;
+            case "stop":
+                if (search != null) {
+                    search.stopNow();
+                }
+                break;
+            case "ponderhit":
+                if (search != null) {
+                    search.ponderHit();
+                }
+                break;
+            case "quit":
+                return false;
+            case "":
+                break;
+            default:
+                send("info string Unknown command: " + words[0]);
+        }
+        return true;
+    }
+    
+    // setoption name <name> value <value> (the name can have spaces)
+    private void setOption(String[] words) {
+        StringBuilder name = new StringBuilder();
+        String value = null;
+        for (int i = 2; i < words.length; i++) {
+            if (words[i].equals("value")) {
+                value = String.join(" ", Arrays.copyOfRange(words, i + 1, words.length));
+                break;
+            }
+            name.append(name.length() > 0 ? " " : "").append(words[i]);
+        }
+        stopSearch();
+        switch (name.toString().toLowerCase()) {
+            case "hash":
+                table.resize(Math.max(1, Math.min(MAX_HASH, parseInt(value))));
+                break;
+            case "threads":
+                int threads = Math.max(1, Math.min(MAX_THREADS, parseInt(value)));
+                while (engines.size() < threads) {
+                    engines.add(new ChessEngine(evaluation, table));
+                }
+                while (engines.size() > threads) {
+                    engines.remove(engines.size() - 1);
+                }
+                break;
+            case "ponder":
+                break; // nothing to set up, "go ponder" just works
+            default:
+                send("info string Unknown option: " + name);
+        }
+    }
+    
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value == null ? "" : value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+    
+    // The number after words[i] in a go command - a GUI that cuts the line short gets an info string, not a crash
+    private static long goNumber(String[] words, int i) {
+        if (i + 1 >= words.length) {
+            throw new IllegalArgumentException("go " + words[i] + " needs a number");
+        }
+        try {
+            return Long.parseLong(words[i + 1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + words[i + 1]);
+        }
+    }
+    
+    // position startpos|fen <fen> [moves e2e4 e7e5 ...]
+    private void setPosition(String[] words) {
+        int i = 1;
+        String fen;
+        if (words.length > 1 && words[1].equals("startpos")) {
+            fen = ChessBoard.START_FEN;
+            i = 2;
+        } else if (words.length > 1 && words[1].equals("fen")) {
+            StringBuilder text = new StringBuilder();
+            for (i = 2; i < words.length && !words[i].equals("moves"); i++) {
+                text.append(words[i]).append(' ');
+            }
+            fen = text.toString().trim();
+        } else {
+            throw new IllegalArgumentException("Expected startpos or fen after position");
+        }
+        
+        ChessBoard board = new ChessBoard();
+        board.loadFEN(fen);
+        if (i < words.length && words[i].equals("moves")) {
+            for (i++; i < words.length; i++) {
+                if (!board.movePiece(words[i])) {
+                    throw new IllegalArgumentException("Illegal move: " + words[i]);
+                }
+            }
+        }
+        positionFen = fen;
+        positionMoves = board.getMoves();
+    }
+    
+    private ChessBoard newBoard() {
+        ChessBoard board = new ChessBoard();
+        board.loadFEN(positionFen);
+        for (int move : positionMoves) {
+            board.playMove(move);
+        }
+        return board;
+    }
+    
+    private void go(String[] words) {
+        long whiteTime = 0;
+        long blackTime = 0;
+        long whiteIncrement = 0;
+        long blackIncrement = 0;
+        int movesToGo = 0;
+        long moveTime = 0;
+        int depth = ChessEngine.MAX_DEPTH;
+        long nodes = 0;
+        boolean infinite = false;
+        boolean ponder = false;
+        for (int i = 1; i < words.length; i++) {
+            switch (words[i]) {
+                case "wtime": whiteTime = goNumber(words, i++); break;
+                case "btime": blackTime = goNumber(words, i++); break;
+                case "winc": whiteIncrement = goNumber(words, i++); break;
+                case "binc": blackIncrement = goNumber(words, i++); break;
+                case "movestogo": movesToGo = (int) Math.min(Integer.MAX_VALUE, goNumber(words, i++)); break;
+                case "movetime": moveTime = goNumber(words, i++); break;
+                case "depth": depth = (int) Math.min(Integer.MAX_VALUE, goNumber(words, i++)); break;
+                case "nodes": nodes = goNumber(words, i++); break;
+                case "infinite": infinite = true; break;
+                case "ponder": ponder = true; break;
+                default: break; // searchmoves, mate... aren't supported, just search normally
+            }
+        }
+        
+        ChessBoard board = newBoard();
+        long time = board.isWhiteTurn() ? whiteTime : blackTime;
+        long increment = board.isWhiteTurn() ? whiteIncrement : blackIncrement;
+        long budget = 0; // 0 = until stop
+        if (moveTime > 0) {
+            budget = Math.max(1, moveTime - MOVE_OVERHEAD);
+        } else if (time > 0) {
+            budget = time / (movesToGo > 0 ? movesToGo : DEFAULT_MOVES_TO_GO) + increment * 3 / 4;
+            budget = Math.max(1, Math.min(budget, time - MOVE_OVERHEAD));
+        }
+        
+        // Clear the stop flags here, not on the search threads - a "stop" that comes in
+        // before they get going still has to stop them
+        for (ChessEngine engine : engines) {
+            engine.clearStop();
+            engine.setNodeLimit(0);
+        }
+        engines.get(0).setNodeLimit(nodes);
+        search = new Search(board, depth, budget, infinite, ponder);
+        search.start();
+    }
+    
+    private void stopSearch() {
+        if (search == null) {
+            return;
+        }
+        search.stopNow();
+        try {
+            search.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        search = null;
+    }
+    
+    private void send(String line) {
+        output.send(line);
+    }
+    
+    private static String scoreToUci(int score) {
+        if (Math.abs(score) > ChessEngine.MATE - MATE_PLIES) {
+            // The engine's "mate" is taking the king, one move after the actual checkmate
+            int plies = ChessEngine.MATE - Math.abs(score);
+            return score > 0 ? "mate " + Math.max(1, plies / 2) : "mate -" + Math.max(0, (plies - 2) / 2);
+        }
+        return "cp " + score;
+    }
+    
+    // One "go" - runs the main engine and the helpers, then says which move it picked
+    private class Search extends Thread {
+        private final ChessBoard board;
+        private final int depth;
+        private final long budget;
+        private final boolean infinite;     // no bestmove before stop...
+        private volatile boolean pondering; // ...or before stop or ponderhit
+        private volatile boolean stopRequested;
+        private volatile boolean finished;
+        private volatile long stopAt = Long.MAX_VALUE; // System.nanoTime() when time's up
+        private final Thread clock;
+        
+        Search(ChessBoard board, int depth, long budget, boolean infinite, boolean pondering) {
+            super("uci-search");
+            this.board = board;
+            this.depth = depth;
+            this.budget = budget;
+            this.infinite = infinite;
+            this.pondering = pondering;
+            if (budget > 0 && !pondering) {
+                stopAt = System.nanoTime() + budget * 1_000_000;
+            }
+            clock = new Thread(this::watchClock, "uci-clock");
+            clock.setDaemon(true);
+        }
+        
+        void stopNow() {
+            stopRequested = true;
+            stopEngines();
+            LockSupport.unpark(this);
+        }
+        
+        // The opponent played the move we were pondering on - now it's our clock that's running
+        void ponderHit() {
+            if (budget > 0) {
+                stopAt = System.nanoTime() + budget * 1_000_000;
+                LockSupport.unpark(clock);
+            }
+            pondering = false;
+            LockSupport.unpark(this);
+        }
+        
+        private void stopEngines() {
+            for (ChessEngine engine : engines) {
+                engine.stop();
+            }
+        }
+        
+        private void watchClock() {
+            while (!finished) {
+                long left = stopAt - System.nanoTime();
+                if (left <= 0) {
+                    stopEngines();
+                    return;
+                }
+                LockSupport.parkNanos(this, left);
+            }
+        }
+        
+        @Override
+        public void run() {
+            clock.start();
+            List<Thread> helpers = new ArrayList<>();
+            for (int i = 1; i < engines.size(); i++) {
+                ChessEngine helper = engines.get(i);
+                ChessBoard helperBoard = newBoard();
+                Thread thread = new Thread(() -> helper.search(helperBoard, ChessEngine.MAX_DEPTH, 1, 0, null),
+                                           "uci-helper-" + i);
+                thread.setDaemon(true);
+                helpers.add(thread);
+                thread.start();
+            }
+            
+            ChessEngine main = engines.get(0);
+            List<ChessEngine.Line> lines = main.search(board, depth, 1, 0, this::sendInfo);
+            
+            // The main thread decides when the search is over
+            for (int i = 1; i < engines.size(); i++) {
+                engines.get(i).stop();
+            }
+            for (Thread helper : helpers) {
+                try {
+                    helper.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            // Finished early, but the GUI isn't ready for a move yet
+            while (!stopRequested && (infinite || pondering)) {
+                LockSupport.park(this);
+            }
+            
+            // The clock has to be gone before the next search clears the stop flags
+            finished = true;
+            LockSupport.unpark(clock);
+            try {
+                clock.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            if (lines.isEmpty()) {
+                // Stopped before even one move was searched - any legal move beats none
+                int[] moves = new int[256];
+                int count = board.generateMoves(moves);
+                String move = "0000";
+                for (int i = 0; i < count; i++) {
+                    if (!board.leavesKingAttacked(moves[i])) {
+                        move = ChessBoard.moveToNotation(moves[i]);
+                        break;
+                    }
+                }
+                send("bestmove " + move);
+            } else {
+                ChessEngine.Line best = lines.get(0);
+                String text = "bestmove " + ChessBoard.moveToNotation(best.bestMove());
+                if (best.moves.length > 1) {
+                    text += " ponder " + ChessBoard.moveToNotation(best.moves[1]);
+                }
+                send(text);
+            }
+        }
+        
+        private void sendInfo(ChessEngine.Line line) {
+            long nodes = 0;
+            for (ChessEngine engine : engines) {
+                nodes += engine.getNodes();
+            }
+            StringBuilder text = new StringBuilder("info depth ").append(line.depth)
+                .append(" score ").append(scoreToUci(line.score))
+                .append(" nodes ").append(nodes)
+                .append(" nps ").append(nodes * 1000 / Math.max(1, line.millis))
+                .append(" time ").append(line.millis)
+                .append(" pv");
+            for (int move : line.moves) {
+                text.append(' ').append(ChessBoard.moveToNotation(move));
+            }
+            send(text.toString());
+        }
+    }
+    
+    // Writes lines to stdout on its own thread, flushing once the queue is empty
+    private static class Output extends Thread {
+        private static final String END = new String("end");
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private final Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        
+        Output() {
+            super("uci-output");
+            setDaemon(true);
+        }
+        
+        void send(String line) {
+            lines.add(line);
+        }
+        
+        // Waits for everything sent so far to be written
+        void finish() {
+            lines.add(END);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String line = lines.take();
+                    do {
+                        if (line == END) {
+                            writer.flush();
+                            return;
+                        }
+                        writer.write(line);
+                        writer.write('\n');
+                    } while ((line = lines.poll()) != null);
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Can't write to the GUI: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Builds chess.jar plus a class data sharing (AppCDS) archive for it, so the game starts faster.
+# The archive holds every class the JVM loaded on a training run (the menu coming up and the
+# background setup), already parsed and checked, so later runs just map it in.
+#
+# Usage: ./build-cds.sh            (needs a display - it opens the menu for a moment and closes it)
+# Then:  java -XX:SharedArchiveFile=build/chess.jsa -jar build/chess.jar
+#
+# Rebuild the archive whenever the code or the JDK changes - if they don't match the JVM
+# prints a warning and starts without it.
+set -e
+cd "$(dirname "$0")"
+
+rm -rf build
+mkdir -p build/classes
+javac -encoding UTF-8 -d build/classes *.java
+# CDS only archives classes that come from a jar, not from a folder of .class files
+jar --create --file build/chess.jar --main-class ChessGame -C build/classes .
+
+java -XX:ArchiveClassesAtExit=build/chess.jsa -jar build/chess.jar --exit-after-startup
+
+echo
+echo "Done. Start the game with:"
+echo "  java -XX:SharedArchiveFile=build/chess.jsa -jar build/chess.jar"